@@ -1,53 +1,119 @@
 package io.axoniq.demo.shoppingcart;
 
+import io.axoniq.demo.shoppingcart.command.CanceledCartSnapshotTriggerDefinition;
+import io.axoniq.demo.shoppingcart.command.MeteredSnapshotTriggerDefinition;
+import io.axoniq.demo.shoppingcart.command.ShoppingCartCache;
+import io.axoniq.demo.shoppingcart.tracing.MessageTracer;
+import io.axoniq.demo.shoppingcart.tracing.TracingEndpoint;
+import io.axoniq.demo.shoppingcart.tracing.TracingInterceptor;
+import io.micrometer.core.instrument.MeterRegistry;
 import org.axonframework.commandhandling.CommandBus;
 import org.axonframework.common.caching.Cache;
-import org.axonframework.common.caching.WeakReferenceCache;
 import org.axonframework.config.EventProcessingConfigurer;
 import org.axonframework.eventhandling.EventBus;
+import org.axonframework.eventsourcing.EventCountSnapshotTriggerDefinition;
+import org.axonframework.eventsourcing.SnapshotTriggerDefinition;
+import org.axonframework.eventsourcing.Snapshotter;
 import org.axonframework.messaging.Message;
-import org.axonframework.messaging.interceptors.LoggingInterceptor;
 import org.axonframework.queryhandling.QueryBus;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.context.annotation.Profile;
+import org.springframework.util.StringUtils;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
 
 @Configuration
 public class AxonConfig {
 
+    /*
+     * Traces messages on all buses and event processors. Tracing happens off the handling threads, and only for the
+     * sampled share of each message type, e.g. "AddArticleCommand=1.0,FetchShoppingCartSummariesQuery=0.01". Settings
+     * can be changed at runtime through the "tracing" actuator endpoint.
+     */
+    @Bean(destroyMethod = "shutDown")
+    public MessageTracer messageTracer(@Value("${shoppingcart.tracing.enabled:false}") boolean enabled,
+                                       @Value("${shoppingcart.tracing.buffer-size:1024}") int bufferSize,
+                                       @Value("${shoppingcart.tracing.default-sampling-rate:0.01}") double defaultRate,
+                                       @Value("${shoppingcart.tracing.sampling-rates:}") String samplingRates) {
+        Map<String, Double> rates = new HashMap<>();
+        for (String rate : StringUtils.commaDelimitedListToStringArray(samplingRates)) {
+            String[] typeAndRate = rate.trim().split("=");
+            if (typeAndRate.length != 2) {
+                throw new IllegalArgumentException("Sampling rate '" + rate + "' is not of the form Type=rate");
+            }
+            rates.put(typeAndRate[0].trim(), Double.parseDouble(typeAndRate[1].trim()));
+        }
+        return new MessageTracer(bufferSize, enabled, defaultRate, rates);
+    }
+
+    @Bean
+    public TracingInterceptor<Message<?>> tracingInterceptor(MessageTracer messageTracer) {
+        return new TracingInterceptor<>(messageTracer);
+    }
+
     @Bean
-    public LoggingInterceptor<Message<?>> loggingInterceptor() {
-        return new LoggingInterceptor<>();
+    public TracingEndpoint tracingEndpoint(MessageTracer messageTracer) {
+        return new TracingEndpoint(messageTracer);
     }
 
     @Autowired
-    public void configureLoggingInterceptorFor(CommandBus commandBus,
-                                               LoggingInterceptor<Message<?>> loggingInterceptor) {
-        commandBus.registerDispatchInterceptor(loggingInterceptor);
-        commandBus.registerHandlerInterceptor(loggingInterceptor);
+    public void configureTracingInterceptorFor(CommandBus commandBus,
+                                               TracingInterceptor<Message<?>> tracingInterceptor) {
+        commandBus.registerDispatchInterceptor(tracingInterceptor);
+        commandBus.registerHandlerInterceptor(tracingInterceptor);
     }
 
     @Autowired
-    public void configureLoggingInterceptorFor(EventBus eventBus, LoggingInterceptor<Message<?>> loggingInterceptor) {
-        eventBus.registerDispatchInterceptor(loggingInterceptor);
+    public void configureTracingInterceptorFor(EventBus eventBus, TracingInterceptor<Message<?>> tracingInterceptor) {
+        eventBus.registerDispatchInterceptor(tracingInterceptor);
     }
 
     @Autowired
-    public void configureLoggingInterceptorFor(EventProcessingConfigurer eventProcessingConfigurer,
-                                               LoggingInterceptor<Message<?>> loggingInterceptor) {
-        eventProcessingConfigurer.registerDefaultHandlerInterceptor((config, processorName) -> loggingInterceptor);
+    public void configureTracingInterceptorFor(EventProcessingConfigurer eventProcessingConfigurer,
+                                               TracingInterceptor<Message<?>> tracingInterceptor) {
+        eventProcessingConfigurer.registerDefaultHandlerInterceptor((config, processorName) -> tracingInterceptor);
     }
 
     @Autowired
-    public void configureLoggingInterceptorFor(QueryBus queryBus, LoggingInterceptor<Message<?>> loggingInterceptor) {
-        queryBus.registerDispatchInterceptor(loggingInterceptor);
-        queryBus.registerHandlerInterceptor(loggingInterceptor);
+    public void configureTracingInterceptorFor(QueryBus queryBus, TracingInterceptor<Message<?>> tracingInterceptor) {
+        queryBus.registerDispatchInterceptor(tracingInterceptor);
+        queryBus.registerHandlerInterceptor(tracingInterceptor);
+    }
+
+    /*
+     * Keeps hot shopping carts in memory, so commands on them don't need to replay any events at all. The cache is
+     * bounded by number of carts, or by their estimated size in bytes when a maximum weight is configured.
+     */
+    @Bean
+    @Profile("command")
+    public Cache shoppingCartCache(MeterRegistry meterRegistry,
+                                   @Value("${shoppingcart.cache.maximum-size:10000}") long maximumSize,
+                                   @Value("${shoppingcart.cache.maximum-weight:0}") long maximumWeight,
+                                   @Value("${shoppingcart.cache.expire-after-access:30m}") Duration expireAfterAccess) {
+        return new ShoppingCartCache(maximumSize, maximumWeight, expireAfterAccess, meterRegistry);
     }
 
+    /*
+     * Take a snapshot of a shopping cart once this many events have been replayed to load it, so long-lived carts
+     * don't have to be sourced from their very first event on every command. Load times are published, with and
+     * without snapshots, as the "shoppingcart.aggregate.load" metric. Canceled carts are snapshotted right away.
+     */
     @Bean
     @Profile("command")
-    public Cache shoppingCartCache() {
-        return new WeakReferenceCache();
+    public SnapshotTriggerDefinition shoppingCartSnapshotTriggerDefinition(
+            Snapshotter snapshotter,
+            MeterRegistry meterRegistry,
+            @Value("${shoppingcart.snapshot.threshold:100}") int threshold) {
+        return new MeteredSnapshotTriggerDefinition(
+                new CanceledCartSnapshotTriggerDefinition(
+                        new EventCountSnapshotTriggerDefinition(snapshotter, threshold), snapshotter
+                ),
+                meterRegistry
+        );
     }
 }
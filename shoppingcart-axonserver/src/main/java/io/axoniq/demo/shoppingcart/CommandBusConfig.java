@@ -0,0 +1,101 @@
+package io.axoniq.demo.shoppingcart;
+
+import com.lmax.disruptor.BlockingWaitStrategy;
+import com.lmax.disruptor.BusySpinWaitStrategy;
+import com.lmax.disruptor.SleepingWaitStrategy;
+import com.lmax.disruptor.WaitStrategy;
+import com.lmax.disruptor.YieldingWaitStrategy;
+import io.axoniq.demo.shoppingcart.command.IdempotentCommandInterceptor;
+import io.axoniq.demo.shoppingcart.command.ShoppingCartCommandCoalescer;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.axonframework.commandhandling.CommandBus;
+import org.axonframework.common.caching.Cache;
+import org.axonframework.common.transaction.TransactionManager;
+import org.axonframework.disruptor.commandhandling.DisruptorCommandBus;
+import org.axonframework.messaging.interceptors.CorrelationDataInterceptor;
+import org.axonframework.spring.config.AxonConfiguration;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.autoconfigure.metrics.MeterRegistryCustomizer;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Profile;
+
+import java.util.Collections;
+
+/**
+ * Opt-in high-throughput command handling for the command profile. With {@code shoppingcart.disruptor.enabled=true}
+ * the local segment of the command bus is a {@link DisruptorCommandBus}: commands are put on a ring buffer, loaded
+ * and handled by the invoker threads, and their events are stored and published by the publisher threads, so these
+ * steps overlap for consecutive commands instead of running one after the other on a single thread.
+ * <p>
+ * Axon notices the disruptor local segment and gives the shopping cart aggregate a disruptor specific repository,
+ * using the aggregate cache as second level cache. Both command buses report to the same {@code commandBus.*}
+ * metrics; every metric of a command node is tagged with the {@code command.bus} in use, so the throughput of both
+ * modes can be compared across deployments.
+ * <p>
+ * Whichever command bus is used, retried commands are answered by the {@link IdempotentCommandInterceptor}, and
+ * article commands arriving for a busy cart are handled together by the {@link ShoppingCartCommandCoalescer}. Retries
+ * are answered first, so they never join a group.
+ */
+@Configuration
+@Profile("command")
+public class CommandBusConfig {
+
+    @Bean
+    public MeterRegistryCustomizer<MeterRegistry> commandBusTag(
+            @Value("${shoppingcart.disruptor.enabled:false}") boolean disruptorEnabled) {
+        return registry -> registry.config().commonTags("command.bus", disruptorEnabled ? "disruptor" : "simple");
+    }
+
+    @Autowired
+    public void configureInterceptorsFor(CommandBus commandBus,
+                                         IdempotentCommandInterceptor idempotentCommandInterceptor,
+                                         ShoppingCartCommandCoalescer commandCoalescer) {
+        commandBus.registerHandlerInterceptor(idempotentCommandInterceptor);
+        commandBus.registerHandlerInterceptor(commandCoalescer);
+    }
+
+    @Bean(destroyMethod = "stop")
+    @Qualifier("localSegment")
+    @ConditionalOnProperty(name = "shoppingcart.disruptor.enabled", havingValue = "true")
+    public DisruptorCommandBus disruptorCommandBus(TransactionManager transactionManager,
+                                                   AxonConfiguration axonConfiguration,
+                                                   @Qualifier("shoppingCartCache") Cache shoppingCartCache,
+                                                   @Value("${shoppingcart.disruptor.buffer-size:4096}") int bufferSize,
+                                                   @Value("${shoppingcart.disruptor.invoker-threads:1}") int invokerThreads,
+                                                   @Value("${shoppingcart.disruptor.publisher-threads:1}") int publisherThreads,
+                                                   @Value("${shoppingcart.disruptor.wait-strategy:blocking}") String waitStrategy) {
+        return DisruptorCommandBus.builder()
+                                  .transactionManager(transactionManager)
+                                  .messageMonitor(axonConfiguration.messageMonitor(CommandBus.class, "commandBus"))
+                                  .invokerInterceptors(Collections.singletonList(
+                                          new CorrelationDataInterceptor<>(axonConfiguration.correlationDataProviders())
+                                  ))
+                                  .cache(shoppingCartCache)
+                                  .bufferSize(bufferSize)
+                                  .invokerThreadCount(invokerThreads)
+                                  .publisherThreadCount(publisherThreads)
+                                  .waitStrategy(waitStrategy(waitStrategy))
+                                  .build();
+    }
+
+    private static WaitStrategy waitStrategy(String name) {
+        switch (name) {
+            case "blocking":
+                return new BlockingWaitStrategy();
+            case "sleeping":
+                return new SleepingWaitStrategy();
+            case "yielding":
+                return new YieldingWaitStrategy();
+            case "busy-spin":
+                return new BusySpinWaitStrategy();
+            default:
+                throw new IllegalArgumentException(
+                        "Unknown wait strategy '" + name + "', use one of blocking, sleeping, yielding or busy-spin"
+                );
+        }
+    }
+}
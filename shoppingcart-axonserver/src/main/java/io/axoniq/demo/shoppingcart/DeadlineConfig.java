@@ -0,0 +1,53 @@
+package io.axoniq.demo.shoppingcart;
+
+import io.axoniq.demo.shoppingcart.command.ShoppingCartExpiry;
+import io.axoniq.demo.shoppingcart.deadline.TimerWheelDeadlineManager;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.axonframework.common.transaction.TransactionManager;
+import org.axonframework.config.ConfigurationScopeAwareProvider;
+import org.axonframework.deadline.DeadlineManager;
+import org.axonframework.serialization.Serializer;
+import org.axonframework.spring.config.AxonConfiguration;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Profile;
+
+import java.nio.file.Paths;
+import java.time.Duration;
+
+/**
+ * The deadline manager of the command profile, which expires abandoned shopping carts through the
+ * {@link ShoppingCartExpiry}. It is a {@link TimerWheelDeadlineManager}, holding millions of pending expiry deadlines
+ * at little cost and firing those that are due in batches.
+ */
+@Configuration
+@Profile("command")
+public class DeadlineConfig {
+
+    @Bean
+    public DeadlineManager deadlineManager(AxonConfiguration axonConfiguration,
+                                           TransactionManager transactionManager,
+                                           @Qualifier("messageSerializer") Serializer messageSerializer,
+                                           MeterRegistry meterRegistry,
+                                           @Value("${shoppingcart.deadlines.tick:1s}") Duration tick,
+                                           @Value("${shoppingcart.deadlines.wheel-size:4096}") int wheelSize,
+                                           @Value("${shoppingcart.deadlines.batch-size:1000}") int batchSize,
+                                           @Value("${shoppingcart.deadlines.firing-threads:2}") int firingThreads,
+                                           @Value("${shoppingcart.deadlines.checkpoint-file:./deadlines.checkpoint}") String checkpointFile,
+                                           @Value("${shoppingcart.deadlines.checkpoint-interval:1m}") Duration checkpointInterval) {
+        return TimerWheelDeadlineManager.builder()
+                                        .scopeAwareProvider(new ConfigurationScopeAwareProvider(axonConfiguration))
+                                        .transactionManager(transactionManager)
+                                        .serializer(messageSerializer)
+                                        .tick(tick)
+                                        .wheelSize(wheelSize)
+                                        .batchSize(batchSize)
+                                        .firingThreads(firingThreads)
+                                        .checkpointFile(Paths.get(checkpointFile))
+                                        .checkpointInterval(checkpointInterval)
+                                        .meterRegistry(meterRegistry)
+                                        .build();
+    }
+}
@@ -0,0 +1,42 @@
+package io.axoniq.demo.shoppingcart;
+
+import io.axoniq.demo.shoppingcart.eventstore.MappedEventStorageEngine;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.axonframework.eventsourcing.eventstore.EventStorageEngine;
+import org.axonframework.serialization.Serializer;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Profile;
+
+import java.nio.file.Paths;
+
+/**
+ * Runs the application without Axon Server, for single node deployments and load tests: with the {@code embedded}
+ * profile active, events are stored on local disk by a {@link MappedEventStorageEngine}, and commands and queries are
+ * handled in process. Use it together with the other profiles, e.g. {@code command,query,gui,embedded}.
+ */
+@Configuration
+@Profile("embedded")
+public class EventStoreConfig {
+
+    @Bean(destroyMethod = "close")
+    public EventStorageEngine eventStorageEngine(@Qualifier("eventSerializer") Serializer eventSerializer,
+                                                 Serializer snapshotSerializer,
+                                                 MeterRegistry meterRegistry,
+                                                 @Value("${shoppingcart.eventstore.directory:./eventstore}") String directory,
+                                                 @Value("${shoppingcart.eventstore.segment-size:67108864}") int segmentSize,
+                                                 @Value("${shoppingcart.eventstore.batch-size:1024}") int batchSize,
+                                                 @Value("${shoppingcart.eventstore.force-on-append:false}") boolean forceOnAppend) {
+        return MappedEventStorageEngine.builder()
+                                       .directory(Paths.get(directory))
+                                       .segmentSize(segmentSize)
+                                       .batchSize(batchSize)
+                                       .forceOnAppend(forceOnAppend)
+                                       .meterRegistry(meterRegistry)
+                                       .eventSerializer(eventSerializer)
+                                       .snapshotSerializer(snapshotSerializer)
+                                       .build();
+    }
+}
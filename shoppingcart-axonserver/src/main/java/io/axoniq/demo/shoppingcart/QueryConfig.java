@@ -0,0 +1,157 @@
+package io.axoniq.demo.shoppingcart;
+
+import io.axoniq.demo.shoppingcart.api.CountShoppingCartSummariesQuery;
+import io.axoniq.demo.shoppingcart.api.FetchShoppingCartSummariesQuery;
+import io.axoniq.demo.shoppingcart.query.EventRateInterceptor;
+import io.axoniq.demo.shoppingcart.query.SegmentBalancer;
+import io.axoniq.demo.shoppingcart.query.ShoppingCartSummaryRebuild;
+import io.axoniq.demo.shoppingcart.query.ShoppingCartSummaryRebuildEndpoint;
+import io.axoniq.demo.shoppingcart.query.ShoppingCartSummaryRebuildProcessor;
+import io.axoniq.demo.shoppingcart.query.ShoppingCartSummarySnapshot;
+import io.axoniq.demo.shoppingcart.query.ShoppingCartSummarySnapshotEndpoint;
+import io.axoniq.demo.shoppingcart.subscription.PrefixIndexedQueryUpdateEmitter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.axonframework.common.AxonThreadFactory;
+import org.axonframework.config.EventProcessingConfiguration;
+import org.axonframework.config.EventProcessingConfigurer;
+import org.axonframework.eventhandling.pooled.PooledStreamingEventProcessor;
+import org.axonframework.eventsourcing.eventstore.EventStore;
+import org.axonframework.queryhandling.QueryUpdateEmitter;
+import org.axonframework.spring.config.AxonConfiguration;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Profile;
+
+import java.time.Duration;
+import java.util.concurrent.Executors;
+
+/**
+ * Event processing of the query profile. The "shoppingcart-summary" processor handles events in batches, configured
+ * with {@code axon.eventhandling.processors.shoppingcart-summary.batch-size}: all events of a batch are handled in a
+ * single transaction, and the read model changes they make are flushed once, at the end of it, in JDBC batches. Its
+ * throughput is measured by an {@link EventRateInterceptor}, for replays and live tailing alike.
+ * <p>
+ * The processor is a pooled streaming processor, of which the {@link SegmentBalancer} splits segments that lag behind,
+ * e.g. during a replay, and merges segments again once they have been idle for a while.
+ * <p>
+ * Subscription queries for summaries and counts are indexed by the id prefix they filter on, by a
+ * {@link PrefixIndexedQueryUpdateEmitter}, so updates about a cart only go past the subscriptions watching it. Updates
+ * about the same cart are coalesced per batch and within the configured window, so watchers get its latest state only.
+ * <p>
+ * The summaries can be rebuilt from scratch through the "summaryrebuild" actuator endpoint, see
+ * {@link ShoppingCartSummaryRebuild}, by the "shoppingcart-summary-rebuild" processor, which is measured and balanced
+ * like the summary processor, while that one keeps the current summaries up to date. It is registered here rather than
+ * through the Axon processor properties, as a {@link ShoppingCartSummaryRebuildProcessor}, which only runs while
+ * rebuilding. A snapshot of the summaries can be exported through the "summarysnapshot" endpoint, and imported by a
+ * new node, see {@link ShoppingCartSummarySnapshot}.
+ */
+@Configuration
+@Profile("query")
+public class QueryConfig {
+
+    static final String SUMMARY_PROCESSOR = "shoppingcart-summary";
+    static final String REBUILD_PROCESSOR = "shoppingcart-summary-rebuild";
+
+    @Autowired
+    public void configureEventRateFor(EventProcessingConfigurer eventProcessingConfigurer,
+                                      MeterRegistry meterRegistry) {
+        for (String processor : new String[]{SUMMARY_PROCESSOR, REBUILD_PROCESSOR}) {
+            EventRateInterceptor eventRateInterceptor = new EventRateInterceptor(processor, meterRegistry);
+            eventProcessingConfigurer.registerHandlerInterceptor(processor, config -> eventRateInterceptor);
+        }
+    }
+
+    /*
+     * Built the way pooled processors configured through properties are, from the settings of the rebuild.
+     */
+    @Autowired
+    public void configureRebuildProcessor(EventProcessingConfigurer eventProcessingConfigurer,
+                                          @Value("${shoppingcart.rebuild.thread-count:4}") int threadCount,
+                                          @Value("${shoppingcart.rebuild.initial-segment-count:4}") int initialSegmentCount,
+                                          @Value("${shoppingcart.rebuild.batch-size:100}") int batchSize) {
+        eventProcessingConfigurer.registerEventProcessor(REBUILD_PROCESSOR, (name, config, eventHandlerInvoker) -> {
+            EventProcessingConfiguration processing = config.eventProcessingConfiguration();
+            return new ShoppingCartSummaryRebuildProcessor(
+                    PooledStreamingEventProcessor.builder()
+                                                 .name(name)
+                                                 .eventHandlerInvoker(eventHandlerInvoker)
+                                                 .rollbackConfiguration(processing.rollbackConfiguration(name))
+                                                 .errorHandler(processing.errorHandler(name))
+                                                 .messageMonitor(processing.messageMonitor(
+                                                         PooledStreamingEventProcessor.class, name
+                                                 ))
+                                                 .messageSource(config.eventStore())
+                                                 .tokenStore(processing.tokenStore(name))
+                                                 .transactionManager(processing.transactionManager(name))
+                                                 .coordinatorExecutor(Executors.newSingleThreadScheduledExecutor(
+                                                         new AxonThreadFactory("Coordinator[" + name + "]")
+                                                 ))
+                                                 .workerExecutor(Executors.newScheduledThreadPool(
+                                                         threadCount, new AxonThreadFactory("WorkPackage[" + name + "]")
+                                                 ))
+                                                 .initialSegmentCount(initialSegmentCount)
+                                                 .batchSize(batchSize)
+            );
+        });
+    }
+
+    @Bean(destroyMethod = "shutDown")
+    public SegmentBalancer summarySegmentBalancer(EventProcessingConfiguration eventProcessingConfiguration,
+                                                  EventStore eventStore,
+                                                  MeterRegistry meterRegistry,
+                                                  @Value("${shoppingcart.segments.check-interval:10s}") Duration checkInterval,
+                                                  @Value("${shoppingcart.segments.split-lag:10000}") long splitLag,
+                                                  @Value("${shoppingcart.segments.merge-lag:100}") long mergeLag,
+                                                  @Value("${shoppingcart.segments.merge-after:5m}") Duration mergeAfter,
+                                                  @Value("${shoppingcart.segments.min:2}") int minSegments,
+                                                  @Value("${shoppingcart.segments.max:32}") int maxSegments) {
+        return new SegmentBalancer(SUMMARY_PROCESSOR, eventProcessingConfiguration, eventStore, checkInterval,
+                                   splitLag, mergeLag, mergeAfter, minSegments, maxSegments, meterRegistry);
+    }
+
+    /*
+     * The rebuild replays all events, so its segments are split and merged by the same rules as the summary processor.
+     */
+    @Bean(destroyMethod = "shutDown")
+    public SegmentBalancer rebuildSegmentBalancer(EventProcessingConfiguration eventProcessingConfiguration,
+                                                  EventStore eventStore,
+                                                  MeterRegistry meterRegistry,
+                                                  @Value("${shoppingcart.segments.check-interval:10s}") Duration checkInterval,
+                                                  @Value("${shoppingcart.segments.split-lag:10000}") long splitLag,
+                                                  @Value("${shoppingcart.segments.merge-lag:100}") long mergeLag,
+                                                  @Value("${shoppingcart.segments.merge-after:5m}") Duration mergeAfter,
+                                                  @Value("${shoppingcart.segments.min:2}") int minSegments,
+                                                  @Value("${shoppingcart.segments.max:32}") int maxSegments) {
+        return new SegmentBalancer(REBUILD_PROCESSOR, eventProcessingConfiguration, eventStore, checkInterval,
+                                   splitLag, mergeLag, mergeAfter, minSegments, maxSegments, meterRegistry);
+    }
+
+    @Bean(destroyMethod = "shutDown")
+    public PrefixIndexedQueryUpdateEmitter queryUpdateEmitter(AxonConfiguration axonConfiguration,
+                                                              MeterRegistry meterRegistry,
+                                                              @Value("${shoppingcart.query-updates.coalesce-window:250ms}") Duration coalesceWindow) {
+        return PrefixIndexedQueryUpdateEmitter.builder()
+                                              .updateMessageMonitor(axonConfiguration.messageMonitor(
+                                                      QueryUpdateEmitter.class, "queryUpdateEmitter"
+                                              ))
+                                              .indexBy(FetchShoppingCartSummariesQuery.class,
+                                                       query -> query.getFilter().getIdStartsWith())
+                                              .indexBy(CountShoppingCartSummariesQuery.class,
+                                                       query -> query.getFilter().getIdStartsWith())
+                                              .coalesceWindow(coalesceWindow)
+                                              .meterRegistry(meterRegistry)
+                                              .build();
+    }
+
+    @Bean
+    public ShoppingCartSummaryRebuildEndpoint summaryRebuildEndpoint(ShoppingCartSummaryRebuild rebuild) {
+        return new ShoppingCartSummaryRebuildEndpoint(rebuild);
+    }
+
+    @Bean
+    public ShoppingCartSummarySnapshotEndpoint summarySnapshotEndpoint(ShoppingCartSummarySnapshot snapshot) {
+        return new ShoppingCartSummarySnapshotEndpoint(snapshot);
+    }
+}
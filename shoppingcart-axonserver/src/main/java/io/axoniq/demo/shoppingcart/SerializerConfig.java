@@ -0,0 +1,163 @@
+package io.axoniq.demo.shoppingcart;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.databind.jsontype.BasicPolymorphicTypeValidator;
+import com.fasterxml.jackson.databind.jsontype.PolymorphicTypeValidator;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import com.fasterxml.jackson.module.kotlin.KotlinModule;
+import com.thoughtworks.xstream.XStream;
+import io.axoniq.demo.shoppingcart.command.ShoppingCartAggregate;
+import io.axoniq.demo.shoppingcart.command.ShoppingCartItemsConverter;
+import io.axoniq.demo.shoppingcart.command.ShoppingCartJacksonModule;
+import io.axoniq.demo.shoppingcart.serialization.MeteredSerializer;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.axonframework.serialization.RevisionResolver;
+import org.axonframework.serialization.Serializer;
+import org.axonframework.serialization.json.JacksonSerializer;
+import org.axonframework.serialization.xml.CompactDriver;
+import org.axonframework.serialization.xml.XStreamSerializer;
+import org.springframework.beans.factory.BeanClassLoaderAware;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Primary;
+import org.springframework.context.annotation.Profile;
+
+/**
+ * The serializers for events, for other messages (commands, queries and their responses) and for snapshots, each
+ * configured on its own with {@code shoppingcart.serializer.events}, {@code .messages} and {@code .snapshots}:
+ * <ul>
+ * <li>{@code xstream}: Axon's default XML format</li>
+ * <li>{@code json}: Jackson's JSON format</li>
+ * <li>{@code cbor}: Jackson's binary CBOR format</li>
+ * <li>{@code smile}: Jackson's binary Smile format</li>
+ * </ul>
+ * The Jackson formats read the Kotlin api classes through their constructors. Every serializer is a
+ * {@link MeteredSerializer}, so bytes per message and (de)serialization times of the formats can be compared.
+ * <p>
+ * Events are stored in the format they were written in, and read back by the serializer that wrote them only: once
+ * events have been stored in one format, switch the event format only on an empty event store.
+ * <p>
+ * XStream only reads the types of this application and of Axon, besides the basic Java types, so a stored or received
+ * message can't have it instantiate anything else. Like Axon's own serializer, it loads classes with the class loader
+ * of the application context. The Jackson formats hold the type names they read to the same list.
+ */
+@Configuration
+public class SerializerConfig implements BeanClassLoaderAware {
+
+    private static final String[] ALLOWED_TYPES = {"io.axoniq.demo.shoppingcart.**", "org.axonframework.**",
+            "java.time.**"};
+
+    private static final PolymorphicTypeValidator ALLOWED_SUBTYPES =
+            BasicPolymorphicTypeValidator.builder()
+                                         .allowIfSubType("io.axoniq.demo.shoppingcart.")
+                                         .allowIfSubType("org.axonframework.")
+                                         .allowIfSubType("java.util.")
+                                         .allowIfSubType("java.time.")
+                                         .allowIfSubTypeIsArray()
+                                         .build();
+
+    private ClassLoader beanClassLoader;
+
+    @Override
+    public void setBeanClassLoader(ClassLoader classLoader) {
+        this.beanClassLoader = classLoader;
+    }
+
+    /*
+     * Axon stores snapshots with the general serializer. In XStream format, the items of the shopping cart aggregate
+     * are written in a compact format.
+     */
+    @Bean
+    @Primary
+    @Profile("command")
+    public Serializer serializer(RevisionResolver revisionResolver,
+                                 MeterRegistry meterRegistry,
+                                 @Value("${shoppingcart.serializer.snapshots:xstream}") String format) {
+        Serializer serializer;
+        if ("xstream".equals(format)) {
+            XStream xStream = xStream();
+            xStream.registerLocalConverter(ShoppingCartAggregate.class, "items", new ShoppingCartItemsConverter());
+            serializer = xStreamSerializer(xStream, revisionResolver);
+        } else {
+            serializer = jacksonSerializer(format, revisionResolver);
+        }
+        return new MeteredSerializer(serializer, "snapshots", format, meterRegistry);
+    }
+
+    @Bean
+    @Qualifier("messageSerializer")
+    public Serializer messageSerializer(RevisionResolver revisionResolver,
+                                        MeterRegistry meterRegistry,
+                                        @Value("${shoppingcart.serializer.messages:xstream}") String format) {
+        return new MeteredSerializer(buildSerializer(format, revisionResolver), "messages", format, meterRegistry);
+    }
+
+    @Bean
+    @Qualifier("eventSerializer")
+    public Serializer eventSerializer(RevisionResolver revisionResolver,
+                                      MeterRegistry meterRegistry,
+                                      @Value("${shoppingcart.serializer.events:xstream}") String format) {
+        return new MeteredSerializer(buildSerializer(format, revisionResolver), "events", format, meterRegistry);
+    }
+
+    private Serializer buildSerializer(String format, RevisionResolver revisionResolver) {
+        if ("xstream".equals(format)) {
+            return xStreamSerializer(xStream(), revisionResolver);
+        }
+        return jacksonSerializer(format, revisionResolver);
+    }
+
+    private static XStream xStream() {
+        XStream xStream = new XStream(new CompactDriver());
+        XStream.setupDefaultSecurity(xStream);
+        xStream.allowTypesByWildcard(ALLOWED_TYPES);
+        return xStream;
+    }
+
+    private Serializer xStreamSerializer(XStream xStream, RevisionResolver revisionResolver) {
+        return XStreamSerializer.builder()
+                                .xStream(xStream)
+                                .classLoader(beanClassLoader)
+                                .revisionResolver(revisionResolver)
+                                .build();
+    }
+
+    /*
+     * Default typing stores the type of values that aren't declared with a final type, like the commands of an
+     * ApplyShoppingCartCommandsCommand and the items of a list of query results. Only the types allowed to XStream and
+     * the Java collections are read back, so a payload can't name any other class to be instantiated.
+     */
+    private static Serializer jacksonSerializer(String format, RevisionResolver revisionResolver) {
+        ObjectMapper objectMapper = new ObjectMapper(jsonFactory(format))
+                .registerModule(new KotlinModule())
+                .registerModule(new ShoppingCartJacksonModule())
+                .disable(SerializationFeature.FAIL_ON_EMPTY_BEANS)
+                .disable(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES)
+                .activateDefaultTyping(ALLOWED_SUBTYPES, ObjectMapper.DefaultTyping.NON_FINAL);
+        return JacksonSerializer.builder()
+                                .objectMapper(objectMapper)
+                                .revisionResolver(revisionResolver)
+                                .build();
+    }
+
+    private static JsonFactory jsonFactory(String format) {
+        switch (format) {
+            case "json":
+                return new JsonFactory();
+            case "cbor":
+                return new CBORFactory();
+            case "smile":
+                return new SmileFactory();
+            default:
+                throw new IllegalArgumentException(
+                        "Unknown serializer format '" + format + "', use one of xstream, json, cbor or smile"
+                );
+        }
+    }
+}
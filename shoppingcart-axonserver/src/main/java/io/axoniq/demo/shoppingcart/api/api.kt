@@ -2,10 +2,12 @@ package io.axoniq.demo.shoppingcart.api
 
 import org.axonframework.modelling.command.TargetAggregateIdentifier
 
+import javax.persistence.Column
 import javax.persistence.Entity
 import javax.persistence.Id
 import javax.persistence.NamedQueries
 import javax.persistence.NamedQuery
+import javax.persistence.Transient
 
 // Commands
 
@@ -14,6 +16,11 @@ data class AddArticleCommand(@TargetAggregateIdentifier val id: String, val arti
 data class RemoveArticleCommand(@TargetAggregateIdentifier val id: String, val article: String)
 data class CancelShoppingCartCommand(@TargetAggregateIdentifier val id: String)
 
+// Applies the given commands, all targeting the same cart, in one go. The result holds one entry per command: null when
+// the command succeeded, or the reason why it failed.
+data class ApplyShoppingCartCommandsCommand(@TargetAggregateIdentifier val id: String, val commands: List<Any>)
+data class ShoppingCartCommandsResult(val errors: List<String?>)
+
 // Events
 
 data class ShoppingCartStartedEvent(val id: String, val customer: String)
@@ -28,9 +35,29 @@ class CountShoppingCartSummariesQuery(val filter: ShoppingCartSummaryFilter = Sh
     override fun toString(): String = "CountCardSummariesQuery"
 }
 
-data class FetchShoppingCartSummariesQuery(val offset: Int, val limit: Int, val filter: ShoppingCartSummaryFilter)
+// Fetches up to limit summaries matching the filter, in order of their ids, skipping the first offset ones. Given the id
+// of a summary, the offset counts from the summary after it, so pages can be sought by id instead of read past.
+data class FetchShoppingCartSummariesQuery(val offset: Int, val limit: Int, val filter: ShoppingCartSummaryFilter,
+                                           val afterId: String? = null)
 class CountChangedUpdate
 
+// Sent to subscribed fetch queries when a summary matching them changes: the articles added to and removed from the cart
+// since the previous update, the resulting number of items, and the customer, when it changed. Articles are unique per
+// cart, so applying an update twice, or to a summary fetched after the change, leaves the summary as it is.
+data class ShoppingCartSummaryChangedUpdate(val id: String, val addedArticles: Set<String>,
+                                            val removedArticles: Set<String>, val itemCount: Int,
+                                            val customer: String? = null) {
+
+    // The change made by this update followed by the given one, as a single update.
+    fun followedBy(later: ShoppingCartSummaryChangedUpdate) = ShoppingCartSummaryChangedUpdate(
+            id,
+            addedArticles - later.removedArticles + later.addedArticles,
+            removedArticles - later.addedArticles + later.removedArticles,
+            later.itemCount,
+            later.customer ?: customer
+    )
+}
+
 // Query Responses
 
 @Entity
@@ -39,13 +66,26 @@ class CountChangedUpdate
                 name = "CardSummary.fetch",
                 query = "SELECT c FROM ShoppingCartSummary c WHERE c.id LIKE CONCAT(:idStartsWith, '%') ORDER BY c.id"
         ),
+        NamedQuery(
+                name = "CardSummary.fetchAfter",
+                query = "SELECT c FROM ShoppingCartSummary c WHERE c.id LIKE CONCAT(:idStartsWith, '%') AND c.id > :afterId ORDER BY c.id"
+        ),
+        NamedQuery(
+                name = "CardSummary.fetchByIds",
+                query = "SELECT c FROM ShoppingCartSummary c WHERE c.id IN :ids ORDER BY c.id"
+        ),
         NamedQuery(
                 name = "CardSummary.count",
                 query = "SELECT COUNT(c) FROM ShoppingCartSummary c WHERE c.id LIKE CONCAT(:idStartsWith, '%')"
         )
 )
-data class ShoppingCartSummary(@Id var id: String, var customer: String, var items: String) {
-    constructor() : this("", "","")
+// The items are kept in a table of their own, see ShoppingCartItem, and filled in when summaries are queried. The
+// default of the item count lets it be added to a summary table which already has rows.
+data class ShoppingCartSummary(@Id var id: String,
+                               var customer: String,
+                               @field:Transient var items: String,
+                               @field:Column(columnDefinition = "integer default 0 not null") var itemCount: Int) {
+    constructor() : this("", "", "", 0)
 }
 
 data class CountShoppingCartSummariesResponse(val count: Int, val lastEvent: Long)
@@ -0,0 +1,110 @@
+package io.axoniq.demo.shoppingcart.command;
+
+import org.axonframework.common.AxonThreadFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Profile;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.servlet.mvc.method.annotation.ResponseBodyEmitter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.time.Duration;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.PreDestroy;
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * Bulk ingestion of shopping cart commands as newline delimited JSON. Both the request and the response are streamed,
+ * so an import job can keep sending commands while it already receives the results of earlier ones:
+ * <pre>
+ * curl -X POST -H 'Content-Type: application/x-ndjson' --data-binary @commands.ndjson \
+ *      http://localhost:8082/shoppingcarts/commands
+ * </pre>
+ * An import may run for much longer than other requests, so it gets a timeout of its own, rather than raising the
+ * timeout of every asynchronous request.
+ * <p>
+ * Every running import holds a thread of its own, so only a configured number of imports run at once. An import
+ * arriving while all of them are taken is answered with {@code 429 Too Many Requests}, to be retried later.
+ */
+@Profile("command")
+@RestController
+public class BulkCommandController {
+
+    private static final String NDJSON = "application/x-ndjson";
+    private static final MediaType NDJSON_TYPE = MediaType.parseMediaType(NDJSON);
+
+    private final BulkCommandIngester ingester;
+    private final Duration timeout;
+    private final ThreadPoolExecutor executor;
+
+    public BulkCommandController(BulkCommandIngester ingester,
+                                 @Value("${shoppingcart.bulk.timeout:1h}") Duration timeout,
+                                 @Value("${shoppingcart.bulk.max-concurrent-imports:4}") int maxConcurrentImports) {
+        this.ingester = ingester;
+        this.timeout = timeout;
+        this.executor = new ThreadPoolExecutor(maxConcurrentImports, maxConcurrentImports, 1, TimeUnit.MINUTES,
+                                               new SynchronousQueue<>(), new AxonThreadFactory("bulkIngestion"));
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    @PostMapping(path = "/shoppingcarts/commands", consumes = NDJSON, produces = NDJSON)
+    public ResponseEntity<ResponseBodyEmitter> ingest(HttpServletRequest request) throws IOException {
+        ResponseBodyEmitter emitter = new ResponseBodyEmitter(timeout.toMillis());
+        InputStream input = request.getInputStream();
+        try {
+            executor.execute(() -> {
+                try (EmitterOutputStream output = new EmitterOutputStream(emitter)) {
+                    ingester.ingest(input, output);
+                } catch (Exception e) {
+                    emitter.completeWithError(e);
+                    return;
+                }
+                emitter.complete();
+            });
+        } catch (RejectedExecutionException e) {
+            return ResponseEntity.status(HttpStatus.TOO_MANY_REQUESTS)
+                                 .header(HttpHeaders.RETRY_AFTER, "60")
+                                 .build();
+        }
+        return ResponseEntity.ok().contentType(NDJSON_TYPE).body(emitter);
+    }
+
+    @PreDestroy
+    public void shutDown() {
+        executor.shutdownNow();
+    }
+
+    /*
+     * Collects the results written by the ingester, and sends them whenever it flushes.
+     */
+    private static class EmitterOutputStream extends ByteArrayOutputStream {
+
+        private final ResponseBodyEmitter emitter;
+
+        private EmitterOutputStream(ResponseBodyEmitter emitter) {
+            this.emitter = emitter;
+        }
+
+        @Override
+        public synchronized void flush() throws IOException {
+            if (count > 0) {
+                emitter.send(toByteArray(), NDJSON_TYPE);
+                reset();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
+    }
+}
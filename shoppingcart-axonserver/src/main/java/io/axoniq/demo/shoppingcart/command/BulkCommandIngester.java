@@ -0,0 +1,255 @@
+package io.axoniq.demo.shoppingcart.command;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.axoniq.demo.shoppingcart.api.*;
+import io.axoniq.demo.shoppingcart.command.CommandIdempotencyCache.CommandOutcome;
+import lombok.Data;
+import org.axonframework.commandhandling.gateway.CommandGateway;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Profile;
+import org.springframework.stereotype.Component;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.lang.invoke.MethodHandles;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.stream.Collectors;
+
+/**
+ * Reads a stream of shopping cart commands, one JSON object per line, and writes one JSON result per command as soon
+ * as it is known. Commands are read in batches, and the commands of a batch targeting the same cart are sent as a
+ * single {@link ApplyShoppingCartCommandsCommand}, so they're handled in one unit of work and appended in one go.
+ * <p>
+ * The number of groups in flight is bounded: once the limit is reached, reading the input blocks until a group
+ * completes. Groups for the same cart are sent one after the other, so a cart sees its commands in input order.
+ * Results are written in order of completion, and refer to the line of the command in the input.
+ * <p>
+ * Commands may carry a {@code commandId}: a command with an id that was handled recently is not sent again, but
+ * answered with its original outcome from the {@link CommandIdempotencyCache}. A command repeating the id of an
+ * earlier line of the same input is not sent either, but answered with the outcome of that line once it is known.
+ */
+@Profile("command")
+@Component
+public class BulkCommandIngester {
+
+    private static final Logger logger = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+
+    private final CommandGateway commandGateway;
+    private final CommandIdempotencyCache idempotencyCache;
+    private final ObjectMapper objectMapper;
+    private final int batchSize;
+    private final int maxInFlight;
+
+    public BulkCommandIngester(CommandGateway commandGateway,
+                               CommandIdempotencyCache idempotencyCache,
+                               ObjectMapper objectMapper,
+                               @Value("${shoppingcart.bulk.batch-size:1000}") int batchSize,
+                               @Value("${shoppingcart.bulk.max-in-flight:64}") int maxInFlight) {
+        this.commandGateway = commandGateway;
+        this.idempotencyCache = idempotencyCache;
+        this.objectMapper = objectMapper;
+        this.batchSize = batchSize;
+        this.maxInFlight = maxInFlight;
+    }
+
+    public void ingest(InputStream input, OutputStream output) throws IOException {
+        ResultWriter results = new ResultWriter(output);
+        Semaphore inFlight = new Semaphore(maxInFlight);
+        Map<String, CompletableFuture<Void>> lastGroupPerCart = new ConcurrentHashMap<>();
+        Map<String, CompletableFuture<CommandOutcome>> outcomesPerCommandId = new ConcurrentHashMap<>();
+
+        BufferedReader reader = new BufferedReader(new InputStreamReader(input, StandardCharsets.UTF_8));
+        Map<String, List<BulkCommand>> batch = new LinkedHashMap<>();
+        int batched = 0;
+        int lineNumber = 0;
+        String line;
+        while ((line = reader.readLine()) != null) {
+            lineNumber++;
+            if (line.isBlank()) {
+                continue;
+            }
+            try {
+                BulkCommand command = objectMapper.readValue(line, BulkCommand.class);
+                command.setLine(lineNumber);
+                command.toCommand();
+                String commandId = command.getCommandId();
+                if (commandId != null) {
+                    CompletableFuture<CommandOutcome> earlier = outcomesPerCommandId.get(commandId);
+                    if (earlier != null) {
+                        earlier.thenAccept(outcome -> {
+                            results.write(result(command, outcome));
+                            results.flush();
+                        });
+                        continue;
+                    }
+                    CommandOutcome outcome = idempotencyCache.get(commandId);
+                    if (outcome != null) {
+                        outcomesPerCommandId.put(commandId, CompletableFuture.completedFuture(outcome));
+                        results.write(result(command, outcome));
+                        continue;
+                    }
+                    outcomesPerCommandId.put(commandId, new CompletableFuture<>());
+                }
+                batch.computeIfAbsent(command.getId(), id -> new ArrayList<>()).add(command);
+                batched++;
+            } catch (JsonProcessingException | IllegalArgumentException e) {
+                results.write(new BulkCommandResult(lineNumber, null, false, e.getMessage()));
+            }
+            if (batched >= batchSize) {
+                batch.forEach((cartId, group) -> dispatch(cartId, group, inFlight, lastGroupPerCart,
+                                                          outcomesPerCommandId, results));
+                batch = new LinkedHashMap<>();
+                batched = 0;
+            }
+        }
+        batch.forEach((cartId, group) -> dispatch(cartId, group, inFlight, lastGroupPerCart, outcomesPerCommandId,
+                                                  results));
+
+        /* All permits being available again means every group has completed and its results have been written. */
+        inFlight.acquireUninterruptibly(maxInFlight);
+        logger.info("Ingested {} lines of shopping cart commands", lineNumber);
+    }
+
+    private void dispatch(String cartId, List<BulkCommand> group, Semaphore inFlight,
+                          Map<String, CompletableFuture<Void>> lastGroupPerCart,
+                          Map<String, CompletableFuture<CommandOutcome>> outcomesPerCommandId, ResultWriter results) {
+        inFlight.acquireUninterruptibly();
+        ApplyShoppingCartCommandsCommand command = new ApplyShoppingCartCommandsCommand(
+                cartId, group.stream().map(BulkCommand::toCommand).collect(Collectors.toList())
+        );
+
+        CompletableFuture<Void> previous = lastGroupPerCart.get(cartId);
+        CompletableFuture<ShoppingCartCommandsResult> result =
+                previous == null
+                        ? commandGateway.send(command)
+                        : previous.thenCompose(done -> commandGateway.send(command));
+        CompletableFuture<Void> completed = result.handle((r, exception) -> {
+            try {
+                for (int i = 0; i < group.size(); i++) {
+                    String error = exception != null ? rootCauseMessage(exception) : r.getErrors().get(i);
+                    String commandId = group.get(i).getCommandId();
+                    if (exception == null && commandId != null) {
+                        if (error == null) {
+                            idempotencyCache.succeeded(commandId, null);
+                        } else {
+                            idempotencyCache.rejected(commandId, error);
+                        }
+                    }
+                    results.write(new BulkCommandResult(group.get(i).getLine(), cartId, error == null, error));
+                    if (commandId != null) {
+                        /* Answers the lines repeating this command id, before the permit is released. */
+                        outcomesPerCommandId.get(commandId).complete(
+                                error == null ? CommandOutcome.success(null) : CommandOutcome.rejected(error)
+                        );
+                    }
+                }
+                results.flush();
+            } finally {
+                inFlight.release();
+            }
+            return null;
+        });
+        lastGroupPerCart.put(cartId, completed);
+        completed.thenRun(() -> lastGroupPerCart.remove(cartId, completed));
+    }
+
+    private static BulkCommandResult result(BulkCommand command, CommandOutcome outcome) {
+        return new BulkCommandResult(command.getLine(), command.getId(), !outcome.isRejected(), outcome.getError());
+    }
+
+    private static String rootCauseMessage(Throwable exception) {
+        Throwable cause = exception;
+        while (cause.getCause() != null) {
+            cause = cause.getCause();
+        }
+        return cause.getMessage();
+    }
+
+    /**
+     * A single line of input, e.g. {@code {"type":"add","id":"cart-1","article":"iPad","commandId":"c-42"}}.
+     */
+    @Data
+    static class BulkCommand {
+
+        private String type;
+        private String id;
+        private String customer;
+        private String article;
+        private String commandId;
+        private int line;
+
+        Object toCommand() {
+            if (id == null || id.isEmpty()) {
+                throw new IllegalArgumentException("id must be specified");
+            }
+            switch (type == null ? "" : type) {
+                case "start":
+                    return new StartShoppingCartCommand(id, required("customer", customer));
+                case "add":
+                    return new AddArticleCommand(id, required("article", article));
+                case "remove":
+                    return new RemoveArticleCommand(id, required("article", article));
+                case "cancel":
+                    return new CancelShoppingCartCommand(id);
+                default:
+                    throw new IllegalArgumentException("type must be one of start, add, remove or cancel");
+            }
+        }
+
+        private static String required(String name, String value) {
+            if (value == null) {
+                throw new IllegalArgumentException(name + " must be specified");
+            }
+            return value;
+        }
+    }
+
+    @lombok.Value
+    static class BulkCommandResult {
+
+        int line;
+        String id;
+        boolean success;
+        String error;
+    }
+
+    private class ResultWriter {
+
+        private final OutputStream output;
+
+        private ResultWriter(OutputStream output) {
+            this.output = output;
+        }
+
+        synchronized void write(BulkCommandResult result) {
+            try {
+                output.write(objectMapper.writeValueAsBytes(result));
+                output.write('\n');
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        synchronized void flush() {
+            try {
+                output.flush();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+}
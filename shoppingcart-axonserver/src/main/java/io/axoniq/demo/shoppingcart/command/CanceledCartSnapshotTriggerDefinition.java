@@ -0,0 +1,74 @@
+package io.axoniq.demo.shoppingcart.command;
+
+import io.axoniq.demo.shoppingcart.api.ShoppingCartCanceledEvent;
+import org.axonframework.eventhandling.DomainEventMessage;
+import org.axonframework.eventhandling.EventMessage;
+import org.axonframework.eventsourcing.SnapshotTrigger;
+import org.axonframework.eventsourcing.SnapshotTriggerDefinition;
+import org.axonframework.eventsourcing.Snapshotter;
+
+import java.io.Serializable;
+
+/**
+ * Decorates a {@link SnapshotTriggerDefinition} so a shopping cart is snapshotted as soon as it is canceled. Nothing
+ * happens to a canceled cart anymore, so from then on it is loaded from that snapshot alone, however long its history.
+ */
+public class CanceledCartSnapshotTriggerDefinition implements SnapshotTriggerDefinition {
+
+    private final SnapshotTriggerDefinition delegate;
+    private final Snapshotter snapshotter;
+
+    public CanceledCartSnapshotTriggerDefinition(SnapshotTriggerDefinition delegate, Snapshotter snapshotter) {
+        this.delegate = delegate;
+        this.snapshotter = snapshotter;
+    }
+
+    @Override
+    public SnapshotTrigger prepareTrigger(Class<?> aggregateType) {
+        return new CanceledCartSnapshotTrigger(delegate.prepareTrigger(aggregateType), aggregateType, snapshotter);
+    }
+
+    @Override
+    public SnapshotTrigger reconfigure(Class<?> aggregateType, SnapshotTrigger trigger) {
+        if (trigger instanceof CanceledCartSnapshotTrigger) {
+            return new CanceledCartSnapshotTrigger(
+                    delegate.reconfigure(aggregateType, ((CanceledCartSnapshotTrigger) trigger).delegate),
+                    aggregateType, snapshotter
+            );
+        }
+        return delegate.reconfigure(aggregateType, trigger);
+    }
+
+    private static class CanceledCartSnapshotTrigger implements SnapshotTrigger, Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private final SnapshotTrigger delegate;
+        private final Class<?> aggregateType;
+        private final transient Snapshotter snapshotter;
+
+        private CanceledCartSnapshotTrigger(SnapshotTrigger delegate, Class<?> aggregateType, Snapshotter snapshotter) {
+            this.delegate = delegate;
+            this.aggregateType = aggregateType;
+            this.snapshotter = snapshotter;
+        }
+
+        @Override
+        public void eventHandled(EventMessage<?> msg) {
+            delegate.eventHandled(msg);
+            /*
+             * The snapshotter defers taking the snapshot until the cancellation has been committed. A canceled cart
+             * that is sourced from its events, for lack of a snapshot, is snapshotted as well.
+             */
+            if (snapshotter != null && msg instanceof DomainEventMessage
+                    && ShoppingCartCanceledEvent.class.equals(msg.getPayloadType())) {
+                snapshotter.scheduleSnapshot(aggregateType, ((DomainEventMessage<?>) msg).getAggregateIdentifier());
+            }
+        }
+
+        @Override
+        public void initializationFinished() {
+            delegate.initializationFinished();
+        }
+    }
+}
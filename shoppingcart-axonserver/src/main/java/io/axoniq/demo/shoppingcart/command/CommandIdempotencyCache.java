@@ -0,0 +1,184 @@
+package io.axoniq.demo.shoppingcart.command;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.axoniq.demo.shoppingcart.api.ShoppingCartCommandsResult;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Profile;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Remembers the outcome of recently handled commands by the id their client gave them, so a retried command can be
+ * answered with its original outcome instead of being handled again. The cache is bounded by number of commands, and
+ * commands are forgotten after a fixed window: retries arriving later than that are handled as new commands.
+ * <p>
+ * A remembered success is never replaced, and a remembered rejection only by a success: a retry that is rejected
+ * because the original command already changed the cart doesn't hide that the command was applied. Commands being
+ * handled are marked as in flight, so a retry arriving meanwhile can wait for the outcome of the original.
+ * <p>
+ * Hits and misses are published as the {@code cache.*} metrics, tagged with {@code cache=commandIdempotencyCache},
+ * the hit ratio as {@code shoppingcart.idempotency.hit.ratio} and the estimated footprint of the remembered outcomes
+ * as {@code shoppingcart.idempotency.footprint}.
+ */
+@Profile("command")
+@Component
+public class CommandIdempotencyCache {
+
+    /**
+     * The meta data key under which clients pass the id of a command.
+     */
+    public static final String COMMAND_ID = "commandId";
+
+    private static final int ENTRY_OVERHEAD = 96;
+
+    private final Cache<String, CommandOutcome> cache;
+    private final Map<String, CompletableFuture<CommandOutcome>> inFlight = new ConcurrentHashMap<>();
+    private final LongAdder footprint = new LongAdder();
+    private final Duration inFlightWait;
+
+    public CommandIdempotencyCache(MeterRegistry meterRegistry,
+                                   @Value("${shoppingcart.idempotency.maximum-size:100000}") long maximumSize,
+                                   @Value("${shoppingcart.idempotency.window:10m}") Duration window,
+                                   @Value("${shoppingcart.idempotency.in-flight-wait:10s}") Duration inFlightWait) {
+        this.inFlightWait = inFlightWait;
+        this.cache = Caffeine.newBuilder()
+                             .maximumSize(maximumSize)
+                             .expireAfterWrite(window)
+                             .<String, CommandOutcome>removalListener(
+                                     (commandId, outcome, cause) -> footprint.add(-estimateSize(commandId, outcome))
+                             )
+                             .recordStats()
+                             .build();
+        CaffeineCacheMetrics.monitor(meterRegistry, cache, "commandIdempotencyCache");
+        Gauge.builder("shoppingcart.idempotency.hit.ratio", cache, c -> c.stats().hitRate())
+             .description("Share of commands with a client supplied id that turned out to be retries")
+             .register(meterRegistry);
+        Gauge.builder("shoppingcart.idempotency.footprint", footprint, LongAdder::sum)
+             .description("Estimated number of bytes taken up by the remembered command outcomes")
+             .baseUnit("bytes")
+             .register(meterRegistry);
+    }
+
+    /**
+     * Returns the outcome of the command with the given id, or {@code null} if it isn't known (anymore).
+     */
+    public CommandOutcome get(String commandId) {
+        return cache.getIfPresent(commandId);
+    }
+
+    /**
+     * Remembers that the command with the given id was applied, replacing a rejection remembered for it before.
+     */
+    public void succeeded(String commandId, Object result) {
+        CommandOutcome outcome = CommandOutcome.success(result);
+        CommandOutcome remembered = cache.asMap().compute(
+                commandId, (id, current) -> current == null || current.isRejected() ? outcome : current
+        );
+        if (remembered == outcome) {
+            footprint.add(estimateSize(commandId, outcome));
+        }
+    }
+
+    /**
+     * Remembers that the command with the given id was rejected, unless an outcome is remembered for it already.
+     * Returns the outcome remembered for the command.
+     */
+    public CommandOutcome rejected(String commandId, String error) {
+        CommandOutcome outcome = CommandOutcome.rejected(error);
+        CommandOutcome remembered = cache.asMap().putIfAbsent(commandId, outcome);
+        if (remembered != null) {
+            return remembered;
+        }
+        footprint.add(estimateSize(commandId, outcome));
+        return outcome;
+    }
+
+    /**
+     * Marks the command with the given id as in flight, returning {@code false} if it already was. A successful mark
+     * must be {@link #finished(String) finished} once the outcome of the command is remembered, or it failed.
+     */
+    public boolean markInFlight(String commandId) {
+        return inFlight.putIfAbsent(commandId, new CompletableFuture<>()) == null;
+    }
+
+    /**
+     * Waits for the command with the given id that is in flight, and returns its outcome, or {@code null} if it
+     * didn't leave an outcome within the wait time.
+     */
+    public CommandOutcome awaitInFlight(String commandId) throws InterruptedException {
+        CompletableFuture<CommandOutcome> original = inFlight.get(commandId);
+        if (original == null) {
+            return cache.getIfPresent(commandId);
+        }
+        try {
+            return original.get(inFlightWait.toMillis(), TimeUnit.MILLISECONDS);
+        } catch (ExecutionException | TimeoutException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Ends the in flight mark of the command with the given id, handing its remembered outcome, if any, to the
+     * retries waiting for it.
+     */
+    public void finished(String commandId) {
+        CompletableFuture<CommandOutcome> mark = inFlight.remove(commandId);
+        if (mark != null) {
+            mark.complete(cache.asMap().get(commandId));
+        }
+    }
+
+    private static long estimateSize(String commandId, CommandOutcome outcome) {
+        long size = ENTRY_OVERHEAD + stringSize(commandId);
+        if (outcome == null) {
+            return size;
+        }
+        size += 24 + stringSize(outcome.getError());
+        if (outcome.getResult() instanceof ShoppingCartCommandsResult) {
+            for (String error : ((ShoppingCartCommandsResult) outcome.getResult()).getErrors()) {
+                size += 8 + stringSize(error);
+            }
+        } else if (outcome.getResult() != null) {
+            size += 64;
+        }
+        return size;
+    }
+
+    private static int stringSize(String value) {
+        return value == null ? 0 : 40 + value.length();
+    }
+
+    /**
+     * The outcome of a command: the result it was handled with, or the reason it was rejected.
+     */
+    @lombok.Value
+    public static class CommandOutcome {
+
+        Object result;
+        String error;
+
+        public static CommandOutcome success(Object result) {
+            return new CommandOutcome(result, null);
+        }
+
+        public static CommandOutcome rejected(String error) {
+            return new CommandOutcome(null, error);
+        }
+
+        public boolean isRejected() {
+            return error != null;
+        }
+    }
+}
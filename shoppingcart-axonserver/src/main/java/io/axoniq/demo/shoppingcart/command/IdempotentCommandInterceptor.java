@@ -0,0 +1,68 @@
+package io.axoniq.demo.shoppingcart.command;
+
+import io.axoniq.demo.shoppingcart.command.CommandIdempotencyCache.CommandOutcome;
+import org.axonframework.commandhandling.CommandMessage;
+import org.axonframework.messaging.InterceptorChain;
+import org.axonframework.messaging.MessageHandlerInterceptor;
+import org.axonframework.messaging.unitofwork.UnitOfWork;
+import org.springframework.context.annotation.Profile;
+import org.springframework.stereotype.Component;
+
+/**
+ * Answers retried commands from the {@link CommandIdempotencyCache}, before the shopping cart they target is loaded.
+ * Only commands carrying a {@link CommandIdempotencyCache#COMMAND_ID} in their meta data are considered.
+ * <p>
+ * A command's outcome is remembered once its unit of work is committed, or when the cart rejects it: a retry of a
+ * rejected command is rejected with the same reason. Commands failing for any other reason, like a concurrency
+ * conflict or an unavailable event store, are not remembered, so they can be retried. A retry arriving while the
+ * original command is still being handled waits for its outcome, and is only handled as usual if the original leaves
+ * none.
+ */
+@Profile("command")
+@Component
+public class IdempotentCommandInterceptor implements MessageHandlerInterceptor<CommandMessage<?>> {
+
+    private final CommandIdempotencyCache cache;
+
+    public IdempotentCommandInterceptor(CommandIdempotencyCache cache) {
+        this.cache = cache;
+    }
+
+    @Override
+    public Object handle(UnitOfWork<? extends CommandMessage<?>> unitOfWork,
+                         InterceptorChain interceptorChain) throws Exception {
+        Object commandId = unitOfWork.getMessage().getMetaData().get(CommandIdempotencyCache.COMMAND_ID);
+        if (commandId == null) {
+            return interceptorChain.proceed();
+        }
+
+        String key = commandId.toString();
+        CommandOutcome outcome = cache.get(key);
+        if (outcome == null) {
+            if (cache.markInFlight(key)) {
+                unitOfWork.onCleanup(u -> cache.finished(key));
+            } else {
+                outcome = cache.awaitInFlight(key);
+            }
+        }
+        if (outcome != null) {
+            if (outcome.isRejected()) {
+                throw new IllegalArgumentException(outcome.getError());
+            }
+            return outcome.getResult();
+        }
+
+        try {
+            Object result = interceptorChain.proceed();
+            unitOfWork.afterCommit(u -> cache.succeeded(key, result));
+            return result;
+        } catch (IllegalArgumentException e) {
+            /* A retry rejected because its original was applied meanwhile is answered with the original's result. */
+            outcome = cache.rejected(key, e.getMessage());
+            if (!outcome.isRejected()) {
+                return outcome.getResult();
+            }
+            throw e;
+        }
+    }
+}
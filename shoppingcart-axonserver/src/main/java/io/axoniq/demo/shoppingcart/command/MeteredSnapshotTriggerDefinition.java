@@ -0,0 +1,177 @@
+package io.axoniq.demo.shoppingcart.command;
+
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.axonframework.eventhandling.EventMessage;
+import org.axonframework.eventsourcing.SnapshotTrigger;
+import org.axonframework.eventsourcing.SnapshotTriggerDefinition;
+
+import java.io.Serializable;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decorates a {@link SnapshotTriggerDefinition} so every aggregate load is measured. The repository prepares a
+ * trigger right before it reads the event stream and tells it when sourcing has finished, which makes the trigger
+ * the natural place to time a load and to count how many events had to be replayed on top of a snapshot (if any).
+ * <p>
+ * The results end up in the {@code shoppingcart.aggregate.load} timer, tagged with whether a snapshot was used and
+ * the order of magnitude of the replayed stream, so load latency can be compared against stream length with and
+ * without snapshots on {@code /actuator/metrics}. Where the JVM supports it, the number of bytes allocated while
+ * sourcing is recorded as well, as {@code shoppingcart.aggregate.load.allocated}. The meters of an aggregate type
+ * are registered when it's first loaded, for every combination of tags, so a load only looks up the ones it records to.
+ */
+public class MeteredSnapshotTriggerDefinition implements SnapshotTriggerDefinition {
+
+    private static final com.sun.management.ThreadMXBean threadMXBean = allocationMeasuringThreadMXBean();
+    private static final String[] STREAM_LENGTHS = {"<10", "<100", "<1000", "<10000", ">=10000"};
+
+    private final SnapshotTriggerDefinition delegate;
+    private final MeterRegistry meterRegistry;
+    private final Map<Class<?>, LoadMeters> loadMeters = new ConcurrentHashMap<>();
+
+    public MeteredSnapshotTriggerDefinition(SnapshotTriggerDefinition delegate, MeterRegistry meterRegistry) {
+        this.delegate = delegate;
+        this.meterRegistry = meterRegistry;
+    }
+
+    @Override
+    public SnapshotTrigger prepareTrigger(Class<?> aggregateType) {
+        return new MeteredSnapshotTrigger(delegate.prepareTrigger(aggregateType), aggregateType,
+                                          loadMeters.computeIfAbsent(aggregateType, LoadMeters::new));
+    }
+
+    @Override
+    public SnapshotTrigger reconfigure(Class<?> aggregateType, SnapshotTrigger trigger) {
+        /* A reconfigured trigger belongs to a cached aggregate, which is not sourced again: nothing to measure. */
+        if (trigger instanceof MeteredSnapshotTrigger) {
+            return delegate.reconfigure(aggregateType, ((MeteredSnapshotTrigger) trigger).delegate);
+        }
+        return delegate.reconfigure(aggregateType, trigger);
+    }
+
+    private static com.sun.management.ThreadMXBean allocationMeasuringThreadMXBean() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean
+                && ((com.sun.management.ThreadMXBean) bean).isThreadAllocatedMemorySupported()) {
+            return (com.sun.management.ThreadMXBean) bean;
+        }
+        return null;
+    }
+
+    private static long allocatedBytes() {
+        return threadMXBean == null ? 0 : threadMXBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    /*
+     * The index of the order of magnitude of the given stream length in STREAM_LENGTHS.
+     */
+    private static int streamLength(int eventCount) {
+        if (eventCount < 10) {
+            return 0;
+        } else if (eventCount < 100) {
+            return 1;
+        } else if (eventCount < 1_000) {
+            return 2;
+        } else if (eventCount < 10_000) {
+            return 3;
+        }
+        return 4;
+    }
+
+    /*
+     * The meters of a single aggregate type, indexed by whether a snapshot was used, and by stream length.
+     */
+    private class LoadMeters {
+
+        private final Timer[][] loadTimers = new Timer[2][STREAM_LENGTHS.length];
+        private final DistributionSummary[] replayedEvents = new DistributionSummary[2];
+        private final DistributionSummary[] allocatedBytes = new DistributionSummary[2];
+
+        private LoadMeters(Class<?> aggregateType) {
+            for (int snapshot = 0; snapshot < 2; snapshot++) {
+                String snapshotTag = String.valueOf(snapshot == 1);
+                for (int length = 0; length < STREAM_LENGTHS.length; length++) {
+                    loadTimers[snapshot][length] =
+                            Timer.builder("shoppingcart.aggregate.load")
+                                 .description("Time taken to source an aggregate from the event store")
+                                 .tag("aggregate", aggregateType.getSimpleName())
+                                 .tag("snapshot", snapshotTag)
+                                 .tag("events", STREAM_LENGTHS[length])
+                                 .register(meterRegistry);
+                }
+                replayedEvents[snapshot] =
+                        DistributionSummary.builder("shoppingcart.aggregate.load.events")
+                                           .description("Number of events replayed while sourcing an aggregate")
+                                           .tag("aggregate", aggregateType.getSimpleName())
+                                           .tag("snapshot", snapshotTag)
+                                           .register(meterRegistry);
+                if (threadMXBean != null) {
+                    allocatedBytes[snapshot] =
+                            DistributionSummary.builder("shoppingcart.aggregate.load.allocated")
+                                               .description("Bytes allocated while sourcing an aggregate")
+                                               .baseUnit("bytes")
+                                               .tag("aggregate", aggregateType.getSimpleName())
+                                               .tag("snapshot", snapshotTag)
+                                               .register(meterRegistry);
+                }
+            }
+        }
+
+        private void record(boolean fromSnapshot, int eventCount, long nanos, long allocated) {
+            int snapshot = fromSnapshot ? 1 : 0;
+            loadTimers[snapshot][streamLength(eventCount)].record(nanos, TimeUnit.NANOSECONDS);
+            replayedEvents[snapshot].record(eventCount);
+            if (allocatedBytes[snapshot] != null) {
+                allocatedBytes[snapshot].record(allocated);
+            }
+        }
+    }
+
+    private static class MeteredSnapshotTrigger implements SnapshotTrigger, Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private final SnapshotTrigger delegate;
+        private final Class<?> aggregateType;
+        private final transient LoadMeters loadMeters;
+        private final long startNanos = System.nanoTime();
+        private final long startAllocatedBytes = allocatedBytes();
+        private int eventCount;
+        private boolean fromSnapshot;
+        private boolean initialized;
+
+        private MeteredSnapshotTrigger(SnapshotTrigger delegate, Class<?> aggregateType, LoadMeters loadMeters) {
+            this.delegate = delegate;
+            this.aggregateType = aggregateType;
+            this.loadMeters = loadMeters;
+        }
+
+        @Override
+        public void eventHandled(EventMessage<?> msg) {
+            if (!initialized) {
+                /* A snapshot is always the first message of the stream, and carries the aggregate as its payload. */
+                if (eventCount == 0 && !fromSnapshot && aggregateType.isAssignableFrom(msg.getPayloadType())) {
+                    fromSnapshot = true;
+                } else {
+                    eventCount++;
+                }
+            }
+            delegate.eventHandled(msg);
+        }
+
+        @Override
+        public void initializationFinished() {
+            delegate.initializationFinished();
+            if (initialized || loadMeters == null) {
+                return;
+            }
+            initialized = true;
+            loadMeters.record(fromSnapshot, eventCount, System.nanoTime() - startNanos,
+                              allocatedBytes() - startAllocatedBytes);
+        }
+    }
+}
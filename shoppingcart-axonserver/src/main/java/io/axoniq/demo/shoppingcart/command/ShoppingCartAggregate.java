@@ -1,45 +1,105 @@
 package io.axoniq.demo.shoppingcart.command;
 
 import io.axoniq.demo.shoppingcart.api.*;
-import lombok.Builder;
-import lombok.Data;
 import org.axonframework.commandhandling.CommandHandler;
+import org.axonframework.deadline.annotation.DeadlineHandler;
 import org.axonframework.eventhandling.DomainEventSequenceAware;
+import org.axonframework.eventhandling.Timestamp;
 import org.axonframework.eventsourcing.EventSourcingHandler;
+import org.axonframework.modelling.command.AggregateCreationPolicy;
 import org.axonframework.modelling.command.AggregateIdentifier;
+import org.axonframework.modelling.command.CreationPolicy;
 import org.axonframework.spring.stereotype.Aggregate;
 import org.springframework.context.annotation.Profile;
 
-import java.util.*;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
 
 import static org.axonframework.modelling.command.AggregateLifecycle.apply;
 
 @Profile("command")
-@Aggregate  // (cache = "shoppingCartCache")
+@Aggregate(snapshotTriggerDefinition = "shoppingCartSnapshotTriggerDefinition", cache = "shoppingCartCache")
 public class ShoppingCartAggregate {
 
     @AggregateIdentifier
     private String cartId;
     private String customer;
-    private Map<String, ShoppingCartItem> items = null;
+    private ShoppingCartItems items = null;
+    private boolean canceled;
+    private long lastTouched;
 
     @CommandHandler
-    public ShoppingCartAggregate(StartShoppingCartCommand command) {
-        System.out.println("Command ========>: " + command);
+    public ShoppingCartAggregate(StartShoppingCartCommand command, ShoppingCartExpiry expiry) {
+        start(command);
+        expiry.reset();
+    }
+
+    /*
+     * Handles a group of commands for this cart in a single unit of work, so all resulting events are appended to the
+     * event store at once. Commands succeed or fail one by one, except when the cart doesn't exist and the group
+     * doesn't start it: then the group fails as a whole. The expiry timer is reset once for the whole group.
+     */
+    @CommandHandler
+    @CreationPolicy(AggregateCreationPolicy.CREATE_IF_MISSING)
+    public ShoppingCartCommandsResult handle(ApplyShoppingCartCommandsCommand command, ShoppingCartExpiry expiry) {
+        List<String> errors = new ArrayList<>(command.getCommands().size());
+        boolean touched = false;
+        for (Object subCommand : command.getCommands()) {
+            try {
+                if (subCommand instanceof StartShoppingCartCommand) {
+                    start((StartShoppingCartCommand) subCommand);
+                } else if (cartId == null) {
+                    throw new IllegalArgumentException("shopping cart " + command.getId() + " has not been started");
+                } else if (subCommand instanceof AddArticleCommand) {
+                    add((AddArticleCommand) subCommand);
+                } else if (subCommand instanceof RemoveArticleCommand) {
+                    remove((RemoveArticleCommand) subCommand);
+                } else if (subCommand instanceof CancelShoppingCartCommand) {
+                    cancel();
+                } else {
+                    throw new IllegalArgumentException("unsupported command " + subCommand.getClass().getSimpleName());
+                }
+                errors.add(null);
+                touched = true;
+            } catch (IllegalArgumentException e) {
+                errors.add(e.getMessage());
+            }
+        }
+        if (cartId == null) {
+            throw new IllegalArgumentException(errors.isEmpty() ? "no commands given" : errors.get(0));
+        }
+        if (canceled) {
+            expiry.stop();
+        } else if (touched) {
+            expiry.reset();
+        }
+        return new ShoppingCartCommandsResult(errors);
+    }
+
+    private void start(StartShoppingCartCommand command) {
+        if (cartId != null) {
+            throw new IllegalArgumentException("shopping cart is already started");
+        }
         if (command.getCustomer() == null || command.getCustomer().isEmpty()) {
-            throw new IllegalArgumentException("customer must be specfied!");
+            throw new IllegalArgumentException("customer must be specified");
         }
         apply(new ShoppingCartStartedEvent(command.getId(), command.getCustomer()));
     }
 
     @CommandHandler
-    public void handle(AddArticleCommand command) {
-        System.out.println("Command ========>: " + command);
+    public void handle(AddArticleCommand command, ShoppingCartExpiry expiry) {
+        add(command);
+        expiry.reset();
+    }
+
+    private void add(AddArticleCommand command) {
+        assertNotCanceled();
         if (command.getArticle() == null) {
             throw new IllegalArgumentException("article must be specified");
         }
 
-        if (items.containsKey(command.getArticle())) {
+        if (items.contains(command.getArticle())) {
             throw new IllegalArgumentException("article is already in the cart");
         }
 
@@ -47,48 +107,101 @@ public class ShoppingCartAggregate {
     }
 
     @CommandHandler
-    public void handle(RemoveArticleCommand command) {
-        System.out.println("Command ========>: " + command);
+    public void handle(RemoveArticleCommand command, ShoppingCartExpiry expiry) {
+        remove(command);
+        expiry.reset();
+    }
 
-        if (items.containsKey(command.getArticle())) {
+    private void remove(RemoveArticleCommand command) {
+        assertNotCanceled();
+        if (items.contains(command.getArticle())) {
             apply(new ArticleRemovedEvent(cartId, command.getArticle()));
         }
+    }
 
+    /*
+     * A canceled cart is kept, so commands on it are rejected instead of restarting it. Its snapshot is taken right
+     * away, see CanceledCartSnapshotTriggerDefinition, so loading it again doesn't replay its history.
+     */
+    @CommandHandler
+    public void handle(CancelShoppingCartCommand command, ShoppingCartExpiry expiry) {
+        cancel();
+        expiry.stop();
     }
 
-    @EventSourcingHandler
-    public void on(ShoppingCartStartedEvent event) {
-        System.out.println(event);
+    private void cancel() {
+        assertNotCanceled();
+        apply(new ShoppingCartCanceledEvent(cartId));
+    }
+
+    /*
+     * A cart left untouched for the idle time of ShoppingCartExpiry is abandoned, and canceled like any other. The
+     * deadline of a cart touched since, which was left over by a crash or another node, only restarts its timer.
+     */
+    @DeadlineHandler(deadlineName = ShoppingCartExpiry.DEADLINE_NAME)
+    public void expire(ShoppingCartExpiry expiry) {
+        if (canceled) {
+            return;
+        }
+        Instant touched = Instant.ofEpochMilli(lastTouched);
+        if (expiry.isIdleSince(touched)) {
+            apply(new ShoppingCartCanceledEvent(cartId));
+        } else {
+            expiry.resetFrom(touched);
+        }
+    }
 
+    private void assertNotCanceled() {
+        if (canceled) {
+            throw new IllegalArgumentException("shopping cart is canceled");
+        }
+    }
+
+    @EventSourcingHandler
+    public void on(ShoppingCartStartedEvent event, @Timestamp Instant timestamp) {
+        lastTouched = timestamp.toEpochMilli();
         cartId = event.getId();
         customer = event.getCustomer();
-        items = new HashMap<>();
+        items = new ShoppingCartItems();
     }
 
     @EventSourcingHandler
-    public void on(ArticleAddedEvent event) {
-        System.out.println(event);
-
-        if (!items.containsKey(event.getArticle())) {
-            items.put(event.getArticle(), ShoppingCartItem.builder().price(event.getPrice()).build());
-        }
+    public void on(ArticleAddedEvent event, @Timestamp Instant timestamp) {
+        lastTouched = timestamp.toEpochMilli();
+        items.add(event.getArticle(), event.getPrice());
     }
 
     @EventSourcingHandler
-    public void on(ArticleRemovedEvent event) {
-        System.out.println(event);
+    public void on(ArticleRemovedEvent event, @Timestamp Instant timestamp) {
+        lastTouched = timestamp.toEpochMilli();
+        items.remove(event.getArticle());
+    }
 
-        ShoppingCartItem item = items.remove(event.getArticle());
+    @EventSourcingHandler
+    public void on(ShoppingCartCanceledEvent event) {
+        canceled = true;
+        items = new ShoppingCartItems();
     }
 
     public ShoppingCartAggregate() {
         // Required by Axon to construct an empty instance to initiate Event Sourcing.
     }
-}
 
-@Data
-@Builder
-class ShoppingCartItem {
-    private String article;
-    private Double price;
+    /*
+     * A rough estimate of the heap taken up by this cart, in bytes, used to bound the aggregate cache by weight.
+     */
+    int estimatedSize() {
+        return 40 + stringSize(cartId) + stringSize(customer) + (items == null ? 0 : items.footprint());
+    }
+
+    /*
+     * The same estimate for this cart if its items were held in a map of item objects, for comparison.
+     */
+    int estimatedMapSize() {
+        return 40 + stringSize(cartId) + stringSize(customer) + (items == null ? 0 : items.mapFootprint());
+    }
+
+    private static int stringSize(String value) {
+        return value == null ? 0 : 40 + value.length();
+    }
 }
@@ -0,0 +1,172 @@
+package io.axoniq.demo.shoppingcart.command;
+
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.RemovalCause;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import org.axonframework.common.Registration;
+import org.axonframework.common.caching.Cache;
+import org.axonframework.eventsourcing.AggregateCacheEntry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+import java.util.function.ToIntFunction;
+
+/**
+ * A bounded, in-heap {@link Cache} for shopping cart aggregates, backed by Caffeine and its (W-)TinyLFU eviction
+ * policy. The cache is either bounded by number of carts, or, when a maximum weight is given, by the estimated
+ * number of bytes the cached carts take up. Carts that have not been used for a while expire, so abandoned carts
+ * don't stick around until the cache is full.
+ * <p>
+ * Hits, misses, evictions and the size of the cache are published as the {@code cache.*} metrics, tagged with
+ * {@code cache=shoppingCartCache}. The estimated footprint of the cached carts is published as
+ * {@code shoppingcart.cache.footprint}, next to the footprint the same carts would have with their items held in a
+ * map of item objects.
+ */
+public class ShoppingCartCache implements Cache {
+
+    private static final Logger logger = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+
+    private static final int ENTRY_OVERHEAD = 96;
+    private static final VarHandle AGGREGATE_ROOT = aggregateRoot();
+
+    private final com.github.benmanes.caffeine.cache.Cache<Object, Object> cache;
+    private final List<EntryListener> listeners = new CopyOnWriteArrayList<>();
+
+    /**
+     * @param maximumSize       the maximum number of cached carts, used when {@code maximumWeight} is not positive
+     * @param maximumWeight     the maximum estimated size of all cached carts in bytes, or {@code 0} to bound by
+     *                          number of carts instead
+     * @param expireAfterAccess the time after which a cart that hasn't been used is dropped from the cache
+     * @param meterRegistry     the registry to publish the cache statistics to
+     */
+    public ShoppingCartCache(long maximumSize, long maximumWeight, Duration expireAfterAccess,
+                             MeterRegistry meterRegistry) {
+        Caffeine<Object, Object> builder = Caffeine.newBuilder()
+                                                   .expireAfterAccess(expireAfterAccess)
+                                                   .removalListener(this::onRemoval)
+                                                   .recordStats();
+        if (maximumWeight > 0) {
+            builder.maximumWeight(maximumWeight)
+                   .weigher((key, value) -> estimateSize(value));
+        } else {
+            builder.maximumSize(maximumSize);
+        }
+        this.cache = builder.build();
+        CaffeineCacheMetrics.monitor(meterRegistry, cache, "shoppingCartCache");
+        Gauge.builder("shoppingcart.cache.footprint", this, c -> c.footprint(ShoppingCartAggregate::estimatedSize))
+             .description("Estimated number of bytes taken up by the cached shopping carts")
+             .baseUnit("bytes")
+             .tag("representation", "compact")
+             .register(meterRegistry);
+        Gauge.builder("shoppingcart.cache.footprint", this, c -> c.footprint(ShoppingCartAggregate::estimatedMapSize))
+             .description("Estimated number of bytes taken up by the cached shopping carts")
+             .baseUnit("bytes")
+             .tag("representation", "map")
+             .register(meterRegistry);
+    }
+
+    private double footprint(ToIntFunction<ShoppingCartAggregate> estimate) {
+        long footprint = 0;
+        for (Object value : cache.asMap().values()) {
+            ShoppingCartAggregate cart = cart(value);
+            footprint += ENTRY_OVERHEAD + (cart == null ? 0 : estimate.applyAsInt(cart));
+        }
+        return footprint;
+    }
+
+    /*
+     * The repository caches the aggregate wrapped in an AggregateCacheEntry, which holds on to the aggregate root but
+     * has no accessor for it. Its field is looked up once; if that fails, carts are weighed by their entry only.
+     */
+    private static VarHandle aggregateRoot() {
+        try {
+            return MethodHandles.privateLookupIn(AggregateCacheEntry.class, MethodHandles.lookup())
+                                .findVarHandle(AggregateCacheEntry.class, "aggregateRoot", Object.class);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            logger.warn("Unable to find the aggregate root of cache entries, cached carts are not weighed", e);
+            return null;
+        }
+    }
+
+    private static ShoppingCartAggregate cart(Object value) {
+        if (AGGREGATE_ROOT != null && value instanceof AggregateCacheEntry) {
+            Object root = AGGREGATE_ROOT.get((AggregateCacheEntry<?>) value);
+            if (root instanceof ShoppingCartAggregate) {
+                return (ShoppingCartAggregate) root;
+            }
+        }
+        return null;
+    }
+
+    private static int estimateSize(Object value) {
+        ShoppingCartAggregate cart = cart(value);
+        return ENTRY_OVERHEAD + (cart == null ? 0 : cart.estimatedSize());
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <K, V> V get(K key) {
+        Object value = cache.getIfPresent(key);
+        if (value != null) {
+            notifyListeners(listener -> listener.onEntryRead(key, value));
+        }
+        return (V) value;
+    }
+
+    @Override
+    public void put(Object key, Object value) {
+        Object previous = cache.asMap().put(key, value);
+        if (previous == null) {
+            notifyListeners(listener -> listener.onEntryCreated(key, value));
+        } else {
+            notifyListeners(listener -> listener.onEntryUpdated(key, value));
+        }
+    }
+
+    @Override
+    public boolean putIfAbsent(Object key, Object value) {
+        boolean added = cache.asMap().putIfAbsent(key, value) == null;
+        if (added) {
+            notifyListeners(listener -> listener.onEntryCreated(key, value));
+        }
+        return added;
+    }
+
+    @Override
+    public boolean remove(Object key) {
+        return cache.asMap().remove(key) != null;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return cache.asMap().containsKey(key);
+    }
+
+    @Override
+    public Registration registerCacheEntryListener(EntryListener cacheEntryListener) {
+        listeners.add(cacheEntryListener);
+        return () -> listeners.remove(cacheEntryListener);
+    }
+
+    private void onRemoval(Object key, Object value, RemovalCause cause) {
+        if (cause == RemovalCause.EXPIRED) {
+            notifyListeners(listener -> listener.onEntryExpired(key));
+        } else if (cause != RemovalCause.REPLACED) {
+            notifyListeners(listener -> listener.onEntryRemoved(key));
+        }
+    }
+
+    private void notifyListeners(Consumer<EntryListener> notification) {
+        if (!listeners.isEmpty()) {
+            listeners.forEach(notification);
+        }
+    }
+}
@@ -0,0 +1,313 @@
+package io.axoniq.demo.shoppingcart.command;
+
+import io.axoniq.demo.shoppingcart.api.AddArticleCommand;
+import io.axoniq.demo.shoppingcart.api.ApplyShoppingCartCommandsCommand;
+import io.axoniq.demo.shoppingcart.api.RemoveArticleCommand;
+import io.axoniq.demo.shoppingcart.api.ShoppingCartCommandsResult;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.axonframework.commandhandling.CommandMessage;
+import org.axonframework.commandhandling.GenericCommandMessage;
+import org.axonframework.messaging.GenericMessage;
+import org.axonframework.messaging.InterceptorChain;
+import org.axonframework.messaging.MessageHandlerInterceptor;
+import org.axonframework.messaging.unitofwork.UnitOfWork;
+import org.axonframework.modelling.command.AggregateNotFoundException;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Profile;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Handles the article commands for a shopping cart that arrive while a command for it is being handled together, as a
+ * single {@link ApplyShoppingCartCommandsCommand}, whoever sent them: the GUI of any node, the bulk endpoint or any
+ * other client. Commands are queued by the cart they target; the first one in the queue handles itself and everything
+ * queued behind it, up to the maximum group size, in its own unit of work, while the others wait for their outcome. A
+ * busy cart is thus locked, loaded and appended to once per group instead of once per command, while a cart that isn't
+ * busy gets its command handled as it is. Every command still has its own outcome, known once the group is committed:
+ * nothing when it succeeded, or the reason the cart rejected it.
+ * <p>
+ * If the cart was never started, the group fails as a whole, and each command fails as it would have on its own: an
+ * article command with an {@link AggregateNotFoundException}, a group of commands with the reason the cart rejected it.
+ * <p>
+ * Commands waiting for their cart hold on to the thread that delivered them, e.g. one of the command threads of the
+ * Axon Server connector, so a group can't grow beyond the number of those threads. A command waits for up to the
+ * maximum wait: if it is still queued by then, it leaves the queue and is handled on its own, waiting for the lock on
+ * the cart like any other command. Once taken into a group, it waits for the group's unit of work to end. A {@link
+ * org.axonframework.disruptor.commandhandling.DisruptorCommandBus} hands all commands for a cart to the same invoker
+ * thread, one after the other, so these never wait, and are not grouped.
+ * <p>
+ * The number of waiting commands is published as {@code shoppingcart.coalescing.queue.depth}, and the number of
+ * commands handled per group as {@code shoppingcart.coalescing.factor}. Commands which gave up waiting are counted as
+ * {@code shoppingcart.coalescing.timeouts}.
+ */
+@Profile("command")
+@Component
+public class ShoppingCartCommandCoalescer implements MessageHandlerInterceptor<CommandMessage<?>> {
+
+    private final int maxGroupSize;
+    private final Duration maxWait;
+    private final Map<String, CartQueue> queues = new ConcurrentHashMap<>();
+    private final AtomicInteger queueDepth = new AtomicInteger();
+    private final DistributionSummary coalescingFactor;
+    private final Counter timeouts;
+
+    public ShoppingCartCommandCoalescer(MeterRegistry meterRegistry,
+                                        @Value("${shoppingcart.coalescing.max-group-size:8}") int maxGroupSize,
+                                        @Value("${shoppingcart.coalescing.max-wait:1s}") Duration maxWait) {
+        this.maxGroupSize = maxGroupSize;
+        this.maxWait = maxWait;
+        Gauge.builder("shoppingcart.coalescing.queue.depth", queueDepth, AtomicInteger::get)
+             .description("Number of commands waiting for a command on the same shopping cart to complete")
+             .register(meterRegistry);
+        this.coalescingFactor = DistributionSummary.builder("shoppingcart.coalescing.factor")
+                                                   .description("Number of commands handled for a cart at once")
+                                                   .register(meterRegistry);
+        this.timeouts = Counter.builder("shoppingcart.coalescing.timeouts")
+                               .description("Number of commands handled on their own after waiting for their cart")
+                               .register(meterRegistry);
+    }
+
+    @Override
+    public Object handle(UnitOfWork<? extends CommandMessage<?>> unitOfWork,
+                         InterceptorChain interceptorChain) throws Exception {
+        Object payload = unitOfWork.getMessage().getPayload();
+        String cartId = cartId(payload);
+        if (cartId == null) {
+            return interceptorChain.proceed();
+        }
+
+        QueuedCommand queued = new QueuedCommand(payload);
+        boolean[] idle = new boolean[1];
+        queueDepth.incrementAndGet();
+        queues.compute(cartId, (id, queue) -> {
+            if (queue == null) {
+                queue = new CartQueue();
+            }
+            queue.waiting.add(queued);
+            idle[0] = !queue.handling;
+            queue.handling = true;
+            return queue;
+        });
+        if (!idle[0]) {
+            Turn turn = awaitTurn(cartId, queued);
+            if (turn == Turn.HANDLED) {
+                return outcome(queued);
+            } else if (turn == Turn.ALONE) {
+                return interceptorChain.proceed();
+            }
+        }
+        try {
+            return handleGroup(cartId, unitOfWork, interceptorChain);
+        } finally {
+            handOver(cartId);
+        }
+    }
+
+    private static String cartId(Object payload) {
+        if (payload instanceof AddArticleCommand) {
+            return ((AddArticleCommand) payload).getId();
+        } else if (payload instanceof RemoveArticleCommand) {
+            return ((RemoveArticleCommand) payload).getId();
+        } else if (payload instanceof ApplyShoppingCartCommandsCommand) {
+            return ((ApplyShoppingCartCommandsCommand) payload).getId();
+        }
+        return null;
+    }
+
+    /*
+     * Waits until the given command is either handled as part of a group, or first in the queue, in which case it
+     * handles the group itself. A command interrupted while still queued leaves the queue, passing on its turn, and one
+     * still queued after the maximum wait leaves it to be handled on its own, unless its turn came meanwhile.
+     */
+    private Turn awaitTurn(String cartId, QueuedCommand queued) throws InterruptedException {
+        try {
+            CompletableFuture.anyOf(queued.turn, queued.outcome).get(maxWait.toMillis(), TimeUnit.MILLISECONDS);
+        } catch (ExecutionException e) {
+            return Turn.HANDLED;
+        } catch (TimeoutException e) {
+            if (leave(cartId, queued)) {
+                if (queued.turn.isDone()) {
+                    handOver(cartId);
+                }
+                timeouts.increment();
+                return Turn.ALONE;
+            }
+            /* Taken into a group, of which the outcome is known once its unit of work ends. */
+            return Turn.HANDLED;
+        } catch (InterruptedException e) {
+            if (leave(cartId, queued) && queued.turn.isDone()) {
+                handOver(cartId);
+            }
+            throw e;
+        }
+        return queued.outcome.isDone() ? Turn.HANDLED : Turn.LEAD;
+    }
+
+    private boolean leave(String cartId, QueuedCommand queued) {
+        boolean[] removed = new boolean[1];
+        queues.computeIfPresent(cartId, (id, queue) -> {
+            removed[0] = queue.waiting.remove(queued);
+            return queue;
+        });
+        if (removed[0]) {
+            queueDepth.decrementAndGet();
+        }
+        return removed[0];
+    }
+
+    private static Object outcome(QueuedCommand queued) throws Exception {
+        try {
+            return queued.outcome.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Exception) {
+                throw (Exception) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    /*
+     * The command first in the queue is handled along with the ones queued behind it, as one command replacing it in
+     * its unit of work. The others learn their outcome once that unit of work is committed, or rolled back.
+     */
+    private Object handleGroup(String cartId,
+                               UnitOfWork<? extends CommandMessage<?>> unitOfWork,
+                               InterceptorChain interceptorChain) throws Exception {
+        List<QueuedCommand> group = new ArrayList<>();
+        queues.computeIfPresent(cartId, (id, queue) -> {
+            List<QueuedCommand> taken = queue.waiting.subList(0, Math.min(queue.waiting.size(), maxGroupSize));
+            group.addAll(taken);
+            taken.clear();
+            return queue;
+        });
+        queueDepth.addAndGet(-group.size());
+        coalescingFactor.record(group.size());
+        if (group.size() == 1) {
+            return interceptorChain.proceed();
+        }
+
+        List<QueuedCommand> others = group.subList(1, group.size());
+        IllegalArgumentException[] notStarted = new IllegalArgumentException[1];
+        unitOfWork.onRollback(u -> others.forEach(queued -> queued.outcome.completeExceptionally(
+                notStarted[0] != null
+                        ? queued.notStarted(cartId, notStarted[0])
+                        : u.getExecutionResult().getExceptionResult()
+        )));
+        List<Object> commands = new ArrayList<>();
+        group.forEach(queued -> commands.addAll(queued.commands()));
+        unitOfWork.transformMessage(command -> new GenericCommandMessage<>(
+                new GenericMessage<>(command.getIdentifier(), new ApplyShoppingCartCommandsCommand(cartId, commands),
+                                     command.getMetaData()),
+                ApplyShoppingCartCommandsCommand.class.getName()
+        ));
+        List<String> errors;
+        try {
+            errors = ((ShoppingCartCommandsResult) interceptorChain.proceed()).getErrors();
+        } catch (IllegalArgumentException e) {
+            /* The cart rejects a group as a whole only when it doesn't exist, and the group doesn't start it. */
+            notStarted[0] = e;
+            throw group.get(0).notStarted(cartId, e);
+        }
+
+        List<Runnable> completions = new ArrayList<>();
+        int from = group.get(0).commands().size();
+        for (QueuedCommand queued : others) {
+            int to = from + queued.commands().size();
+            List<String> queuedErrors = errors.subList(from, to);
+            completions.add(() -> queued.complete(queuedErrors));
+            from = to;
+        }
+        unitOfWork.afterCommit(u -> completions.forEach(Runnable::run));
+        return group.get(0).result(errors.subList(0, group.get(0).commands().size()));
+    }
+
+    /*
+     * Passes the turn to the command first in the queue, or forgets the cart when none is left.
+     */
+    private void handOver(String cartId) {
+        queues.computeIfPresent(cartId, (id, queue) -> {
+            if (queue.waiting.isEmpty()) {
+                return null;
+            }
+            queue.waiting.get(0).turn.complete(null);
+            return queue;
+        });
+    }
+
+    private enum Turn {
+        /* First in the queue, handling the group. */
+        LEAD,
+        /* Handled as part of a group. */
+        HANDLED,
+        /* Given up waiting, handled on its own. */
+        ALONE
+    }
+
+    private static class CartQueue {
+
+        private final List<QueuedCommand> waiting = new ArrayList<>();
+        private boolean handling;
+    }
+
+    /*
+     * A queued article command, or group of commands, with its outcome as it would have been had it been handled on its
+     * own: nothing, or the reason it was rejected, for an article command, and the result of a group of commands.
+     */
+    private static class QueuedCommand {
+
+        private final Object payload;
+        private final CompletableFuture<Void> turn = new CompletableFuture<>();
+        private final CompletableFuture<Object> outcome = new CompletableFuture<>();
+
+        private QueuedCommand(Object payload) {
+            this.payload = payload;
+        }
+
+        private List<?> commands() {
+            return payload instanceof ApplyShoppingCartCommandsCommand
+                    ? ((ApplyShoppingCartCommandsCommand) payload).getCommands()
+                    : Collections.singletonList(payload);
+        }
+
+        private Object result(List<String> errors) {
+            if (payload instanceof ApplyShoppingCartCommandsCommand) {
+                return new ShoppingCartCommandsResult(new ArrayList<>(errors));
+            } else if (errors.get(0) != null) {
+                throw new IllegalArgumentException(errors.get(0));
+            }
+            return null;
+        }
+
+        /*
+         * The failure of a command on a cart which was never started: a group of commands is rejected, the cart of an
+         * article command isn't found.
+         */
+        private Exception notStarted(String cartId, IllegalArgumentException groupFailure) {
+            return payload instanceof ApplyShoppingCartCommandsCommand
+                    ? groupFailure
+                    : new AggregateNotFoundException(cartId, "The aggregate was not found in the event store");
+        }
+
+        private void complete(List<String> errors) {
+            try {
+                outcome.complete(result(errors));
+            } catch (IllegalArgumentException e) {
+                outcome.completeExceptionally(e);
+            }
+        }
+    }
+}
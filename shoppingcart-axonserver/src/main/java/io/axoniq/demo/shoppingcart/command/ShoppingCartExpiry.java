@@ -0,0 +1,72 @@
+package io.axoniq.demo.shoppingcart.command;
+
+import org.axonframework.deadline.DeadlineManager;
+import org.axonframework.eventhandling.GenericEventMessage;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Profile;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.time.Instant;
+
+/**
+ * The timer of shopping carts left untouched: a cart that hasn't been started, changed or otherwise used for the
+ * configured idle time expires, and is canceled by the {@link ShoppingCartAggregate}. An idle time of zero turns
+ * expiry off. Passed to the command handlers of the aggregate, which call it from within the scope of a cart.
+ * <p>
+ * A deadline may fire for a cart that is still in use: one reset after the last checkpoint of the deadline manager
+ * before a crash, or one scheduled on another node before the cart moved. The aggregate therefore only cancels a cart
+ * that {@link #isIdleSince(Instant) has been idle} for the idle time, and restarts the timer of any other.
+ */
+@Profile("command")
+@Component
+public class ShoppingCartExpiry {
+
+    static final String DEADLINE_NAME = "shoppingCartExpiry";
+
+    private final DeadlineManager deadlineManager;
+    private final Duration idleTime;
+
+    public ShoppingCartExpiry(DeadlineManager deadlineManager,
+                              @Value("${shoppingcart.expiry.idle-time:24h}") Duration idleTime) {
+        this.deadlineManager = deadlineManager;
+        this.idleTime = idleTime;
+    }
+
+    /**
+     * (Re)starts the timer of the current cart.
+     */
+    void reset() {
+        if (!idleTime.isZero()) {
+            deadlineManager.cancelAllWithinScope(DEADLINE_NAME);
+            deadlineManager.schedule(idleTime, DEADLINE_NAME);
+        }
+    }
+
+    /**
+     * Restarts the timer of the current cart for what is left of the idle time of a cart last touched at the given time.
+     */
+    void resetFrom(Instant lastTouched) {
+        if (!idleTime.isZero()) {
+            Duration left = idleTime.minus(Duration.between(lastTouched, GenericEventMessage.clock.instant()));
+            deadlineManager.cancelAllWithinScope(DEADLINE_NAME);
+            deadlineManager.schedule(left.isNegative() ? Duration.ZERO : left, DEADLINE_NAME);
+        }
+    }
+
+    /**
+     * Whether a cart last touched at the given time has been left untouched for the idle time. Never when expiry is
+     * turned off.
+     */
+    boolean isIdleSince(Instant lastTouched) {
+        return !idleTime.isZero()
+                && Duration.between(lastTouched, GenericEventMessage.clock.instant()).compareTo(idleTime) >= 0;
+    }
+
+    /**
+     * Stops the timer of the current cart.
+     */
+    void stop() {
+        deadlineManager.cancelAllWithinScope(DEADLINE_NAME);
+    }
+}
@@ -0,0 +1,153 @@
+package io.axoniq.demo.shoppingcart.command;
+
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
+
+import java.util.function.ObjDoubleConsumer;
+
+/**
+ * The articles in a shopping cart and their prices, in a form that is cheap to keep in memory for a lot of carts.
+ * <p>
+ * Articles and prices are kept in two parallel arrays, using open addressing with linear probing. Most carts hold
+ * a handful of articles, so the arrays start small and are only allocated once the first article is added. Prices
+ * are stored as primitive doubles, and article names are interned so that all carts holding the same article share
+ * a single string instance. Adding an article allocates nothing unless the arrays need to grow.
+ */
+final class ShoppingCartItems {
+
+    private static final Interner<String> ARTICLES = Interners.newWeakInterner();
+
+    private static final int INITIAL_CAPACITY = 4;
+
+    private String[] articles;
+    private double[] prices;
+    private int size;
+
+    boolean contains(String article) {
+        return size > 0 && indexOf(article) >= 0;
+    }
+
+    /**
+     * Adds the given article, unless the cart already holds it.
+     */
+    void add(String article, double price) {
+        if (articles == null) {
+            articles = new String[INITIAL_CAPACITY];
+            prices = new double[INITIAL_CAPACITY];
+        } else if (indexOf(article) >= 0) {
+            return;
+        } else if ((size + 1) * 4 > articles.length * 3) {
+            resize(articles.length * 2);
+        }
+        insert(ARTICLES.intern(article), price);
+        size++;
+    }
+
+    /**
+     * Removes the given article, returning {@code true} if the cart held it.
+     */
+    boolean remove(String article) {
+        int index = size > 0 ? indexOf(article) : -1;
+        if (index < 0) {
+            return false;
+        }
+        /* Shift following entries of the probe sequence back, so lookups never need tombstones. */
+        int mask = articles.length - 1;
+        int gap = index;
+        for (int next = (gap + 1) & mask; articles[next] != null; next = (next + 1) & mask) {
+            int home = slot(articles[next], mask);
+            if (((next - home) & mask) >= ((next - gap) & mask)) {
+                articles[gap] = articles[next];
+                prices[gap] = prices[next];
+                gap = next;
+            }
+        }
+        articles[gap] = null;
+        prices[gap] = 0;
+        size--;
+        return true;
+    }
+
+    int size() {
+        return size;
+    }
+
+    void forEach(ObjDoubleConsumer<String> action) {
+        if (articles == null) {
+            return;
+        }
+        for (int i = 0; i < articles.length; i++) {
+            if (articles[i] != null) {
+                action.accept(articles[i], prices[i]);
+            }
+        }
+    }
+
+    /**
+     * The number of bytes taken up by this instance and its arrays. The interned article names are shared between
+     * carts, and are therefore not included.
+     */
+    int footprint() {
+        int footprint = 24;
+        if (articles != null) {
+            footprint += 16 + 4 * articles.length + 16 + 8 * prices.length;
+        }
+        return footprint;
+    }
+
+    /**
+     * The number of bytes the same articles would take up as a {@code HashMap} from article name to an item object
+     * with a boxed price, with an article name deserialized per cart. Used to report what this representation
+     * saves.
+     */
+    int mapFootprint() {
+        int table = Integer.highestOneBit(Math.max(1, size * 4 / 3) * 2 - 1);
+        int footprint = 48 + (size > 0 ? 16 + 4 * Math.max(16, table) : 0);
+        if (articles != null) {
+            for (String article : articles) {
+                if (article != null) {
+                    // hash map node, article key, item object and its boxed price
+                    footprint += 32 + 40 + article.length() + 24 + 16;
+                }
+            }
+        }
+        return footprint;
+    }
+
+    private int indexOf(String article) {
+        int mask = articles.length - 1;
+        for (int i = slot(article, mask); articles[i] != null; i = (i + 1) & mask) {
+            if (articles[i] == article || articles[i].equals(article)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private void insert(String article, double price) {
+        int mask = articles.length - 1;
+        int i = slot(article, mask);
+        while (articles[i] != null) {
+            i = (i + 1) & mask;
+        }
+        articles[i] = article;
+        prices[i] = price;
+    }
+
+    private void resize(int capacity) {
+        String[] oldArticles = articles;
+        double[] oldPrices = prices;
+        articles = new String[capacity];
+        prices = new double[capacity];
+        for (int i = 0; i < oldArticles.length; i++) {
+            if (oldArticles[i] != null) {
+                insert(oldArticles[i], oldPrices[i]);
+            }
+        }
+    }
+
+    private static int slot(String article, int mask) {
+        int hash = article.hashCode();
+        return (hash ^ (hash >>> 16)) & mask;
+    }
+}
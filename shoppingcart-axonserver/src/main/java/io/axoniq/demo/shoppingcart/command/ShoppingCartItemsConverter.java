@@ -0,0 +1,48 @@
+package io.axoniq.demo.shoppingcart.command;
+
+import com.thoughtworks.xstream.converters.Converter;
+import com.thoughtworks.xstream.converters.MarshallingContext;
+import com.thoughtworks.xstream.converters.UnmarshallingContext;
+import com.thoughtworks.xstream.io.HierarchicalStreamReader;
+import com.thoughtworks.xstream.io.HierarchicalStreamWriter;
+
+/**
+ * Writes the {@code items} of a {@link ShoppingCartAggregate} snapshot as one {@code <item article=".." price=".."/>}
+ * element per article, instead of XStream's generic format for the open addressing arrays of
+ * {@link ShoppingCartItems}, empty slots included. Long-lived carts are exactly the ones being snapshotted, so this
+ * keeps their snapshots small and quick to read back.
+ */
+public class ShoppingCartItemsConverter implements Converter {
+
+    private static final String ITEM = "item";
+    private static final String ARTICLE = "article";
+    private static final String PRICE = "price";
+
+    @Override
+    public boolean canConvert(@SuppressWarnings("rawtypes") Class type) {
+        return ShoppingCartItems.class.equals(type);
+    }
+
+    @Override
+    public void marshal(Object source, HierarchicalStreamWriter writer, MarshallingContext context) {
+        ((ShoppingCartItems) source).forEach((article, price) -> {
+            writer.startNode(ITEM);
+            writer.addAttribute(ARTICLE, article);
+            writer.addAttribute(PRICE, Double.toString(price));
+            writer.endNode();
+        });
+    }
+
+    @Override
+    public Object unmarshal(HierarchicalStreamReader reader, UnmarshallingContext context) {
+        ShoppingCartItems items = new ShoppingCartItems();
+        while (reader.hasMoreChildren()) {
+            reader.moveDown();
+            String article = reader.getAttribute(ARTICLE);
+            String price = reader.getAttribute(PRICE);
+            items.add(article, price == null ? 0.0 : Double.parseDouble(price));
+            reader.moveUp();
+        }
+        return items;
+    }
+}
@@ -0,0 +1,71 @@
+package io.axoniq.demo.shoppingcart.command;
+
+import com.fasterxml.jackson.annotation.JsonAutoDetect;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.DeserializationContext;
+import com.fasterxml.jackson.databind.JsonDeserializer;
+import com.fasterxml.jackson.databind.JsonSerializer;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.module.SimpleModule;
+
+import java.io.IOException;
+
+/**
+ * Makes {@link ShoppingCartAggregate} snapshots serializable with Jackson: the aggregate is written field by field,
+ * and its {@code items} as a single {@code {"article": price, ...}} object, like the {@link ShoppingCartItemsConverter}
+ * does for XStream. The items are final, so default typing never wraps them in a type id.
+ */
+public class ShoppingCartJacksonModule extends SimpleModule {
+
+    public ShoppingCartJacksonModule() {
+        super("ShoppingCartJacksonModule");
+        setMixInAnnotation(ShoppingCartAggregate.class, FieldsOnly.class);
+        addSerializer(ShoppingCartItems.class, new ItemsSerializer());
+        addDeserializer(ShoppingCartItems.class, new ItemsDeserializer());
+    }
+
+    @JsonAutoDetect(fieldVisibility = JsonAutoDetect.Visibility.ANY,
+            getterVisibility = JsonAutoDetect.Visibility.NONE,
+            isGetterVisibility = JsonAutoDetect.Visibility.NONE,
+            setterVisibility = JsonAutoDetect.Visibility.NONE)
+    private static class FieldsOnly {
+
+    }
+
+    private static class ItemsSerializer extends JsonSerializer<ShoppingCartItems> {
+
+        @Override
+        public void serialize(ShoppingCartItems items, JsonGenerator generator, SerializerProvider provider)
+                throws IOException {
+            generator.writeStartObject();
+            IOException[] failure = new IOException[1];
+            items.forEach((article, price) -> {
+                try {
+                    generator.writeNumberField(article, price);
+                } catch (IOException e) {
+                    failure[0] = e;
+                }
+            });
+            if (failure[0] != null) {
+                throw failure[0];
+            }
+            generator.writeEndObject();
+        }
+    }
+
+    private static class ItemsDeserializer extends JsonDeserializer<ShoppingCartItems> {
+
+        @Override
+        public ShoppingCartItems deserialize(JsonParser parser, DeserializationContext context) throws IOException {
+            ShoppingCartItems items = new ShoppingCartItems();
+            String article;
+            while ((article = parser.nextFieldName()) != null) {
+                JsonToken price = parser.nextToken();
+                items.add(article, price == JsonToken.VALUE_NULL ? 0.0 : parser.getDoubleValue());
+            }
+            return items;
+        }
+    }
+}
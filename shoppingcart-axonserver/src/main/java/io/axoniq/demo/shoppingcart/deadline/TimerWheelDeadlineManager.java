@@ -0,0 +1,628 @@
+package io.axoniq.demo.shoppingcart.deadline;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.axonframework.common.AxonConfigurationException;
+import org.axonframework.common.AxonThreadFactory;
+import org.axonframework.common.IdentifierFactory;
+import org.axonframework.common.transaction.NoTransactionManager;
+import org.axonframework.common.transaction.TransactionManager;
+import org.axonframework.deadline.AbstractDeadlineManager;
+import org.axonframework.deadline.DeadlineMessage;
+import org.axonframework.deadline.GenericDeadlineMessage;
+import org.axonframework.eventhandling.GenericEventMessage;
+import org.axonframework.lifecycle.Phase;
+import org.axonframework.lifecycle.ShutdownHandler;
+import org.axonframework.lifecycle.StartHandler;
+import org.axonframework.messaging.DefaultInterceptorChain;
+import org.axonframework.messaging.MetaData;
+import org.axonframework.messaging.ResultMessage;
+import org.axonframework.messaging.ScopeAware;
+import org.axonframework.messaging.ScopeAwareProvider;
+import org.axonframework.messaging.ScopeDescriptor;
+import org.axonframework.messaging.unitofwork.DefaultUnitOfWork;
+import org.axonframework.modelling.command.AggregateScopeDescriptor;
+import org.axonframework.serialization.SerializedObject;
+import org.axonframework.serialization.Serializer;
+import org.axonframework.serialization.SimpleSerializedObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A deadline manager for millions of pending deadlines. Deadlines are kept on a hashed timer wheel: a ring of buckets
+ * of one tick each, where a deadline goes into the bucket of the tick it is due in, wrapping around the ring. A single
+ * worker thread wakes up once per tick, takes the due deadlines out of the current bucket, and hands them to the
+ * firing threads in batches. Pending deadlines take a single small entry each, and scheduling or canceling one doesn't
+ * wake up any thread: both are queued and picked up by the worker on its next tick.
+ * <p>
+ * There is at most one pending deadline per name and scope: the schedule id is derived from both, and scheduling a
+ * deadline again replaces the pending one, so resetting a timer costs no more than scheduling it.
+ * <p>
+ * Pending deadlines are checkpointed to a file periodically and at shut down, and recovered from it on start up.
+ * Deadlines which became due while the application was down fire right after start up. Deadlines scheduled or canceled
+ * after the last checkpoint before a crash are lost, or fire anyway.
+ * <p>
+ * Fired and failed deadlines are counted as {@code shoppingcart.deadlines.fired} and
+ * {@code shoppingcart.deadlines.failed}, the number of pending deadlines is published as
+ * {@code shoppingcart.deadlines.pending}, the size of firing batches as {@code shoppingcart.deadlines.batch} and the
+ * time taken by checkpoints as {@code shoppingcart.deadlines.checkpoint}.
+ */
+public class TimerWheelDeadlineManager extends AbstractDeadlineManager {
+
+    private static final Logger logger = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+
+    private static final int CHECKPOINT_VERSION = 1;
+    private static final byte AGGREGATE_SCOPE = 1;
+    private static final byte SERIALIZED_SCOPE = 2;
+
+    private final ScopeAwareProvider scopeAwareProvider;
+    private final TransactionManager transactionManager;
+    private final Serializer serializer;
+    private final long tickMillis;
+    private final int batchSize;
+    private final Path checkpointFile;
+    private final long checkpointIntervalMillis;
+
+    private final Entry[] wheel;
+    private final Map<String, Entry> pending = new ConcurrentHashMap<>();
+    private final Queue<Entry> scheduled = new ConcurrentLinkedQueue<>();
+    private final Queue<Entry> canceled = new ConcurrentLinkedQueue<>();
+    private final ExecutorService firingExecutor;
+    private final Thread worker;
+    private volatile boolean running;
+    private boolean shutDown;
+
+    private final Counter firedDeadlines;
+    private final Counter failedDeadlines;
+    private final DistributionSummary batchSizes;
+    private final Timer checkpointTimer;
+
+    protected TimerWheelDeadlineManager(Builder builder) {
+        builder.validate();
+        this.scopeAwareProvider = builder.scopeAwareProvider;
+        this.transactionManager = builder.transactionManager;
+        this.serializer = builder.serializer;
+        this.tickMillis = builder.tick.toMillis();
+        this.batchSize = builder.batchSize;
+        this.checkpointFile = builder.checkpointFile;
+        this.checkpointIntervalMillis = builder.checkpointInterval.toMillis();
+        this.wheel = new Entry[builder.wheelSize];
+        this.firingExecutor = Executors.newFixedThreadPool(builder.firingThreads,
+                                                           new AxonThreadFactory("deadlineFiring"));
+        this.worker = new AxonThreadFactory("deadlineWheel").newThread(this::run);
+
+        MeterRegistry meterRegistry = builder.meterRegistry;
+        this.firedDeadlines = Counter.builder("shoppingcart.deadlines.fired")
+                                     .baseUnit("deadlines")
+                                     .register(meterRegistry);
+        this.failedDeadlines = Counter.builder("shoppingcart.deadlines.failed")
+                                      .baseUnit("deadlines")
+                                      .register(meterRegistry);
+        this.batchSizes = DistributionSummary.builder("shoppingcart.deadlines.batch")
+                                             .baseUnit("deadlines")
+                                             .register(meterRegistry);
+        this.checkpointTimer = Timer.builder("shoppingcart.deadlines.checkpoint")
+                                    .description("Time taken to checkpoint all pending deadlines")
+                                    .register(meterRegistry);
+        Gauge.builder("shoppingcart.deadlines.pending", pending, Map::size)
+             .baseUnit("deadlines")
+             .register(meterRegistry);
+
+        recover();
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    @Override
+    public String schedule(Instant triggerDateTime, String deadlineName, Object messageOrPayload,
+                           ScopeDescriptor deadlineScope) {
+        String scheduleId = scheduleId(deadlineName, deadlineScope);
+        runOnPrepareCommitOrNow(() -> {
+            DeadlineMessage<?> deadlineMessage = processDispatchInterceptors(
+                    GenericDeadlineMessage.asDeadlineMessage(deadlineName, messageOrPayload, triggerDateTime)
+            );
+            add(new Entry(scheduleId, deadlineName, deadlineScope, deadlineMessage.getPayload(),
+                          deadlineMessage.getMetaData(), triggerDateTime.toEpochMilli(), tickMillis));
+        });
+        return scheduleId;
+    }
+
+    @Override
+    public void cancelSchedule(String deadlineName, String scheduleId) {
+        runOnPrepareCommitOrNow(() -> {
+            Entry entry = pending.get(scheduleId);
+            if (entry != null && entry.deadlineName.equals(deadlineName) && pending.remove(scheduleId, entry)) {
+                cancel(entry);
+            }
+        });
+    }
+
+    @Override
+    public void cancelAll(String deadlineName) {
+        runOnPrepareCommitOrNow(() -> pending.forEach((scheduleId, entry) -> {
+            if (entry.deadlineName.equals(deadlineName) && pending.remove(scheduleId, entry)) {
+                cancel(entry);
+            }
+        }));
+    }
+
+    @Override
+    public void cancelAllWithinScope(String deadlineName, ScopeDescriptor scope) {
+        cancelSchedule(deadlineName, scheduleId(deadlineName, scope));
+    }
+
+    /*
+     * The schedule id of a deadline in the scope of an aggregate is kept short, as there may be millions of them.
+     */
+    private static String scheduleId(String deadlineName, ScopeDescriptor scope) {
+        if (scope instanceof AggregateScopeDescriptor) {
+            AggregateScopeDescriptor aggregateScope = (AggregateScopeDescriptor) scope;
+            return deadlineName + '|' + aggregateScope.getType() + '|' + aggregateScope.getIdentifier();
+        }
+        return deadlineName + '|' + scope.scopeDescription();
+    }
+
+    private void add(Entry entry) {
+        Entry replaced = pending.put(entry.scheduleId, entry);
+        if (replaced != null) {
+            cancel(replaced);
+        }
+        scheduled.add(entry);
+    }
+
+    private void cancel(Entry entry) {
+        entry.canceled = true;
+        canceled.add(entry);
+    }
+
+    @StartHandler(phase = Phase.INBOUND_EVENT_CONNECTORS)
+    public synchronized void start() {
+        if (!running && !shutDown) {
+            running = true;
+            worker.start();
+        }
+    }
+
+    @Override
+    @ShutdownHandler(phase = Phase.INBOUND_EVENT_CONNECTORS)
+    public synchronized void shutdown() {
+        if (shutDown) {
+            return;
+        }
+        shutDown = true;
+        running = false;
+        worker.interrupt();
+        try {
+            if (worker.isAlive()) {
+                worker.join();
+            }
+            firingExecutor.shutdown();
+            firingExecutor.awaitTermination(30, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        checkpoint();
+    }
+
+    /*
+     * The worker owns the wheel: only the worker links entries into buckets and unlinks them. A tick is processed once
+     * its time has come; ticks missed while the worker was busy are caught up at once.
+     */
+    private void run() {
+        long nextTick = System.currentTimeMillis() / tickMillis;
+        long nextCheckpoint = System.currentTimeMillis() + checkpointIntervalMillis;
+        while (running) {
+            long now = System.currentTimeMillis();
+            long wait = nextTick * tickMillis - now;
+            if (wait > 0) {
+                try {
+                    Thread.sleep(wait);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                continue;
+            }
+            transferScheduled(nextTick);
+            unlinkCanceled();
+            long currentTick = now / tickMillis;
+            List<Entry> due = new ArrayList<>();
+            if (currentTick - nextTick >= wheel.length) {
+                for (int bucket = 0; bucket < wheel.length; bucket++) {
+                    expire(bucket, currentTick, due);
+                }
+                nextTick = currentTick + 1;
+            } else {
+                for (; nextTick <= currentTick; nextTick++) {
+                    expire(bucket(nextTick), nextTick, due);
+                }
+            }
+            fire(due);
+            if (now >= nextCheckpoint) {
+                checkpoint();
+                nextCheckpoint = now + checkpointIntervalMillis;
+            }
+        }
+    }
+
+    private int bucket(long tick) {
+        return (int) (tick & (wheel.length - 1));
+    }
+
+    private void transferScheduled(long nextTick) {
+        Entry entry;
+        while ((entry = scheduled.poll()) != null) {
+            if (!entry.canceled) {
+                link(entry, bucket(Math.max(entry.tick, nextTick)));
+            }
+        }
+    }
+
+    private void unlinkCanceled() {
+        Entry entry;
+        while ((entry = canceled.poll()) != null) {
+            unlink(entry);
+        }
+    }
+
+    private void expire(int bucket, long tick, List<Entry> due) {
+        Entry entry = wheel[bucket];
+        while (entry != null) {
+            Entry next = entry.next;
+            if (entry.tick <= tick) {
+                unlink(entry);
+                if (!entry.canceled && pending.remove(entry.scheduleId, entry)) {
+                    due.add(entry);
+                }
+            }
+            entry = next;
+        }
+    }
+
+    private void link(Entry entry, int bucket) {
+        entry.bucket = bucket;
+        entry.next = wheel[bucket];
+        if (entry.next != null) {
+            entry.next.previous = entry;
+        }
+        wheel[bucket] = entry;
+    }
+
+    private void unlink(Entry entry) {
+        if (entry.bucket < 0) {
+            return;
+        }
+        if (entry.previous != null) {
+            entry.previous.next = entry.next;
+        } else {
+            wheel[entry.bucket] = entry.next;
+        }
+        if (entry.next != null) {
+            entry.next.previous = entry.previous;
+        }
+        entry.previous = null;
+        entry.next = null;
+        entry.bucket = -1;
+    }
+
+    private void fire(List<Entry> due) {
+        for (int from = 0; from < due.size(); from += batchSize) {
+            List<Entry> batch = due.subList(from, Math.min(from + batchSize, due.size()));
+            batchSizes.record(batch.size());
+            firingExecutor.execute(() -> batch.forEach(this::fire));
+        }
+    }
+
+    private void fire(Entry entry) {
+        Instant triggerInstant = GenericEventMessage.clock.instant();
+        DeadlineMessage<?> deadlineMessage = new GenericDeadlineMessage<>(
+                entry.deadlineName, IdentifierFactory.getInstance().generateIdentifier(), entry.payload,
+                entry.metaData, triggerInstant
+        );
+        try {
+            DefaultUnitOfWork<DeadlineMessage<?>> unitOfWork = new DefaultUnitOfWork<>(deadlineMessage);
+            unitOfWork.attachTransaction(transactionManager);
+            DefaultInterceptorChain<DeadlineMessage<?>> chain = new DefaultInterceptorChain<>(
+                    unitOfWork, handlerInterceptors(), message -> {
+                scopeAwareProvider.provideScopeAwareStream(entry.scope)
+                                  .filter(component -> component.canResolve(entry.scope))
+                                  .forEach(component -> send(component, message, entry.scope));
+                return null;
+            });
+            ResultMessage<?> resultMessage = unitOfWork.executeWithResult(chain::proceed);
+            if (resultMessage.isExceptional()) {
+                failed(entry, resultMessage.exceptionResult());
+            } else {
+                firedDeadlines.increment();
+            }
+        } catch (Exception e) {
+            failed(entry, e);
+        }
+    }
+
+    private static void send(ScopeAware component, DeadlineMessage<?> message,
+                             ScopeDescriptor scope) {
+        try {
+            component.send(message, scope);
+        } catch (Exception e) {
+            throw new IllegalStateException("Failed to send a DeadlineMessage for scope " + scope.scopeDescription(),
+                                            e);
+        }
+    }
+
+    private void failed(Entry entry, Throwable cause) {
+        failedDeadlines.increment();
+        logger.error("An error occurred while triggering the deadline [{}] with identifier [{}]",
+                     entry.deadlineName, entry.scheduleId, cause);
+    }
+
+    /*
+     * The checkpoint is written next to the previous one and then moved over it, so a crash while checkpointing leaves
+     * the previous checkpoint intact.
+     */
+    private void checkpoint() {
+        long start = System.nanoTime();
+        Path temporaryFile = checkpointFile.resolveSibling(checkpointFile.getFileName() + ".tmp");
+        try {
+            try (DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(Files.newOutputStream(temporaryFile)))) {
+                out.writeInt(CHECKPOINT_VERSION);
+                for (Entry entry : pending.values()) {
+                    out.writeBoolean(true);
+                    write(entry, out);
+                }
+                out.writeBoolean(false);
+            }
+            Files.move(temporaryFile, checkpointFile, StandardCopyOption.REPLACE_EXISTING,
+                       StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException | RuntimeException e) {
+            logger.warn("Unable to checkpoint pending deadlines to {}", checkpointFile, e);
+        }
+        checkpointTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+    }
+
+    private void recover() {
+        if (!Files.exists(checkpointFile)) {
+            return;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(checkpointFile)))) {
+            int version = in.readInt();
+            if (version != CHECKPOINT_VERSION) {
+                throw new IOException("Unknown checkpoint version " + version);
+            }
+            while (in.readBoolean()) {
+                add(read(in));
+            }
+            logger.info("Recovered {} pending deadlines from {}", pending.size(), checkpointFile);
+        } catch (IOException | RuntimeException e) {
+            throw new AxonConfigurationException("Unable to recover pending deadlines from " + checkpointFile, e);
+        }
+    }
+
+    /*
+     * Deadlines in the scope of an aggregate with a String identifier and without payload or meta data, like the
+     * expiry of shopping carts, are written without the serializer.
+     */
+    private void write(Entry entry, DataOutputStream out) throws IOException {
+        out.writeUTF(entry.deadlineName);
+        out.writeLong(entry.deadline);
+        if (entry.scope instanceof AggregateScopeDescriptor
+                && ((AggregateScopeDescriptor) entry.scope).getIdentifier() instanceof String) {
+            AggregateScopeDescriptor aggregateScope = (AggregateScopeDescriptor) entry.scope;
+            out.writeByte(AGGREGATE_SCOPE);
+            out.writeUTF(aggregateScope.getType());
+            out.writeUTF((String) aggregateScope.getIdentifier());
+        } else {
+            out.writeByte(SERIALIZED_SCOPE);
+            writeSerialized(serializer.serialize(entry.scope, byte[].class), out);
+        }
+        out.writeBoolean(entry.payload != null);
+        if (entry.payload != null) {
+            writeSerialized(serializer.serialize(entry.payload, byte[].class), out);
+        }
+        out.writeBoolean(!entry.metaData.isEmpty());
+        if (!entry.metaData.isEmpty()) {
+            writeSerialized(serializer.serialize(entry.metaData, byte[].class), out);
+        }
+    }
+
+    private Entry read(DataInputStream in) throws IOException {
+        String deadlineName = in.readUTF();
+        long deadline = in.readLong();
+        ScopeDescriptor scope;
+        if (in.readByte() == AGGREGATE_SCOPE) {
+            String type = in.readUTF();
+            String identifier = in.readUTF();
+            scope = new AggregateScopeDescriptor(type, identifier);
+        } else {
+            scope = serializer.deserialize(readSerialized(in));
+        }
+        Object payload = in.readBoolean() ? serializer.deserialize(readSerialized(in)) : null;
+        MetaData metaData = in.readBoolean() ? serializer.deserialize(readSerialized(in)) : MetaData.emptyInstance();
+        return new Entry(scheduleId(deadlineName, scope), deadlineName, scope, payload, metaData, deadline,
+                         tickMillis);
+    }
+
+    private static void writeSerialized(SerializedObject<byte[]> serialized, DataOutputStream out)
+            throws IOException {
+        out.writeUTF(serialized.getType().getName());
+        out.writeBoolean(serialized.getType().getRevision() != null);
+        if (serialized.getType().getRevision() != null) {
+            out.writeUTF(serialized.getType().getRevision());
+        }
+        out.writeInt(serialized.getData().length);
+        out.write(serialized.getData());
+    }
+
+    private static SerializedObject<byte[]> readSerialized(DataInputStream in) throws IOException {
+        String type = in.readUTF();
+        String revision = in.readBoolean() ? in.readUTF() : null;
+        byte[] data = new byte[in.readInt()];
+        in.readFully(data);
+        return new SimpleSerializedObject<>(data, byte[].class, type, revision);
+    }
+
+    /**
+     * A pending deadline, linked into the bucket of the tick it is due in by the worker.
+     */
+    private static class Entry {
+
+        private final String scheduleId;
+        private final String deadlineName;
+        private final ScopeDescriptor scope;
+        private final Object payload;
+        private final MetaData metaData;
+        private final long deadline;
+        private final long tick;
+        private volatile boolean canceled;
+        private Entry previous;
+        private Entry next;
+        private int bucket = -1;
+
+        private Entry(String scheduleId, String deadlineName, ScopeDescriptor scope, Object payload,
+                      MetaData metaData, long deadline, long tickMillis) {
+            this.scheduleId = scheduleId;
+            this.deadlineName = deadlineName;
+            this.scope = scope;
+            this.payload = payload;
+            this.metaData = metaData;
+            this.deadline = deadline;
+            this.tick = (deadline + tickMillis - 1) / tickMillis;
+        }
+    }
+
+    /**
+     * Builder for a {@link TimerWheelDeadlineManager}. The scope aware provider and the serializer are required.
+     */
+    public static class Builder {
+
+        private ScopeAwareProvider scopeAwareProvider;
+        private TransactionManager transactionManager = NoTransactionManager.INSTANCE;
+        private Serializer serializer;
+        private Duration tick = Duration.ofSeconds(1);
+        private int wheelSize = 4096;
+        private int batchSize = 1000;
+        private int firingThreads = 2;
+        private Path checkpointFile = Paths.get("deadlines.checkpoint");
+        private Duration checkpointInterval = Duration.ofMinutes(1);
+        private MeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+        public Builder scopeAwareProvider(ScopeAwareProvider scopeAwareProvider) {
+            this.scopeAwareProvider = scopeAwareProvider;
+            return this;
+        }
+
+        public Builder transactionManager(TransactionManager transactionManager) {
+            this.transactionManager = transactionManager;
+            return this;
+        }
+
+        /**
+         * The serializer for the scopes, payloads and meta data of deadlines in checkpoints.
+         */
+        public Builder serializer(Serializer serializer) {
+            this.serializer = serializer;
+            return this;
+        }
+
+        /**
+         * The duration of a tick of the wheel, defaults to one second. Deadlines fire at most a tick late.
+         */
+        public Builder tick(Duration tick) {
+            this.tick = tick;
+            return this;
+        }
+
+        /**
+         * The number of buckets of the wheel, a power of two, defaults to 4096. Deadlines further away than the wheel
+         * goes round in, are skipped each time their bucket comes by until they are due.
+         */
+        public Builder wheelSize(int wheelSize) {
+            this.wheelSize = wheelSize;
+            return this;
+        }
+
+        /**
+         * The maximum number of deadlines fired by a firing thread in one go, defaults to 1000.
+         */
+        public Builder batchSize(int batchSize) {
+            this.batchSize = batchSize;
+            return this;
+        }
+
+        public Builder firingThreads(int firingThreads) {
+            this.firingThreads = firingThreads;
+            return this;
+        }
+
+        /**
+         * The file to checkpoint pending deadlines to, defaults to {@code ./deadlines.checkpoint}.
+         */
+        public Builder checkpointFile(Path checkpointFile) {
+            this.checkpointFile = checkpointFile;
+            return this;
+        }
+
+        public Builder checkpointInterval(Duration checkpointInterval) {
+            this.checkpointInterval = checkpointInterval;
+            return this;
+        }
+
+        public Builder meterRegistry(MeterRegistry meterRegistry) {
+            this.meterRegistry = meterRegistry;
+            return this;
+        }
+
+        protected void validate() throws AxonConfigurationException {
+            if (scopeAwareProvider == null || serializer == null) {
+                throw new AxonConfigurationException("The ScopeAwareProvider and the Serializer may not be null");
+            }
+            if (transactionManager == null || checkpointFile == null || meterRegistry == null) {
+                throw new AxonConfigurationException(
+                        "The TransactionManager, checkpoint file and MeterRegistry may not be null"
+                );
+            }
+            if (tick == null || tick.toMillis() <= 0 || checkpointInterval == null || checkpointInterval.isNegative()) {
+                throw new AxonConfigurationException("The tick must be positive and the checkpoint interval set");
+            }
+            if (wheelSize <= 0 || Integer.bitCount(wheelSize) != 1) {
+                throw new AxonConfigurationException("The wheel size must be a power of two");
+            }
+            if (batchSize <= 0 || firingThreads <= 0) {
+                throw new AxonConfigurationException("The batch size and number of firing threads must be positive");
+            }
+        }
+
+        public TimerWheelDeadlineManager build() {
+            return new TimerWheelDeadlineManager(this);
+        }
+    }
+}
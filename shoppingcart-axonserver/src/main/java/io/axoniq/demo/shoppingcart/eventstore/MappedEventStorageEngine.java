@@ -0,0 +1,734 @@
+package io.axoniq.demo.shoppingcart.eventstore;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.axonframework.common.AxonConfigurationException;
+import org.axonframework.eventhandling.DomainEventData;
+import org.axonframework.eventhandling.DomainEventMessage;
+import org.axonframework.eventhandling.EventMessage;
+import org.axonframework.eventhandling.GenericDomainEventEntry;
+import org.axonframework.eventhandling.GlobalSequenceTrackingToken;
+import org.axonframework.eventhandling.TrackedDomainEventData;
+import org.axonframework.eventhandling.TrackedEventData;
+import org.axonframework.eventhandling.TrackingToken;
+import org.axonframework.eventsourcing.eventstore.AbstractEventStorageEngine;
+import org.axonframework.eventsourcing.eventstore.EventStoreException;
+import org.axonframework.modelling.command.AggregateStreamCreationException;
+import org.axonframework.modelling.command.ConcurrencyException;
+import org.axonframework.serialization.SerializedObject;
+import org.axonframework.serialization.Serializer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongFunction;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * An event storage engine keeping events in append-only segment files on local disk, written and read through
+ * memory mapped I/O. Events get consecutive global indexes, which are used as {@link GlobalSequenceTrackingToken}s by
+ * event processors. Snapshots are kept in segment files of their own, of which only the latest per aggregate is used.
+ * <p>
+ * Two indexes are kept in memory, and rebuilt from the segment files when the engine is opened: the position of every
+ * event by its global index, for event processors, and the global indexes of the events of every aggregate, so an
+ * aggregate is loaded without scanning any other events.
+ * <p>
+ * Appends are serialized on a single lock. A batch of events becomes visible to readers as a whole, once all of it
+ * has been written, to event processors as well as to aggregates. If writing a batch fails, e.g. as a new segment file
+ * can't be created, what was written of it is dropped again. So is a batch which was only partly written when the
+ * process stopped, once the store is opened again: the last record of every batch is marked as such, and the records
+ * following the last marked one are dropped. As the position of every event is kept in an array, the store holds up to
+ * {@value #MAX_EVENTS} events. Appending an event with a sequence number that doesn't follow on the last one of its
+ * aggregate is rejected like other event stores do: with an {@link AggregateStreamCreationException} for the first
+ * event of an aggregate, and a {@link ConcurrencyException} otherwise.
+ * <p>
+ * Appended and read events are counted as {@code shoppingcart.eventstore.appended} and
+ * {@code shoppingcart.eventstore.read} (by source: aggregate or tracking), and the time taken by appends is published
+ * as {@code shoppingcart.eventstore.append}.
+ */
+public class MappedEventStorageEngine extends AbstractEventStorageEngine implements Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+
+    private static final String EVENTS = "events";
+    private static final String SNAPSHOTS = "snapshots";
+    private static final String SEGMENT_SUFFIX = ".seg";
+    /* The largest array a JVM can allocate, so a global index can be cast to an index into the event positions. */
+    private static final int MAX_EVENTS = Integer.MAX_VALUE - 8;
+
+    private final Path eventDirectory;
+    private final Path snapshotDirectory;
+    private final int segmentSize;
+    private final int batchSize;
+    private final boolean forceOnAppend;
+
+    private final List<MappedSegment> eventSegments = new CopyOnWriteArrayList<>();
+    private final List<MappedSegment> snapshotSegments = new CopyOnWriteArrayList<>();
+    private final Map<String, AggregateStream> aggregateStreams = new ConcurrentHashMap<>();
+    private final Map<String, Long> snapshotPositions = new ConcurrentHashMap<>();
+    private final Object appendLock = new Object();
+    private volatile long[] eventPositions = new long[1024];
+    private volatile long eventCount;
+
+    private final Timer appendTimer;
+    private final Counter appendedEvents;
+    private final Counter aggregateReadEvents;
+    private final Counter trackingReadEvents;
+
+    protected MappedEventStorageEngine(Builder builder) {
+        super(builder);
+        this.eventDirectory = builder.directory.resolve(EVENTS);
+        this.snapshotDirectory = builder.directory.resolve(SNAPSHOTS);
+        this.segmentSize = builder.segmentSize;
+        this.batchSize = builder.batchSize;
+        this.forceOnAppend = builder.forceOnAppend;
+
+        MeterRegistry meterRegistry = builder.meterRegistry;
+        this.appendTimer = Timer.builder("shoppingcart.eventstore.append")
+                                .description("Time taken to append a batch of events")
+                                .register(meterRegistry);
+        this.appendedEvents = Counter.builder("shoppingcart.eventstore.appended")
+                                     .baseUnit("events")
+                                     .register(meterRegistry);
+        this.aggregateReadEvents = Counter.builder("shoppingcart.eventstore.read")
+                                          .baseUnit("events")
+                                          .tag("source", "aggregate")
+                                          .register(meterRegistry);
+        this.trackingReadEvents = Counter.builder("shoppingcart.eventstore.read")
+                                         .baseUnit("events")
+                                         .tag("source", "tracking")
+                                         .register(meterRegistry);
+        Gauge.builder("shoppingcart.eventstore.size", eventSegments, MappedEventStorageEngine::bytesUsed)
+             .baseUnit("bytes")
+             .tag("content", EVENTS)
+             .register(meterRegistry);
+        Gauge.builder("shoppingcart.eventstore.size", snapshotSegments, MappedEventStorageEngine::bytesUsed)
+             .baseUnit("bytes")
+             .tag("content", SNAPSHOTS)
+             .register(meterRegistry);
+
+        try {
+            open();
+        } catch (IOException e) {
+            throw new EventStoreException("Unable to open the event store in " + builder.directory, e);
+        }
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    private void open() throws IOException {
+        long start = System.nanoTime();
+        Files.createDirectories(eventDirectory);
+        Files.createDirectories(snapshotDirectory);
+
+        long[] completeEvents = {0};
+        for (Path file : segmentFiles(eventDirectory)) {
+            int segmentNumber = eventSegments.size();
+            eventSegments.add(openSegment(file, (record, offset, lastOfBatch) -> {
+                addEventPosition(eventCount, position(segmentNumber, offset));
+                eventCount++;
+                if (lastOfBatch) {
+                    completeEvents[0] = eventCount;
+                }
+            }));
+        }
+        if (eventSegments.isEmpty()) {
+            eventSegments.add(openSegment(segmentFile(eventDirectory, 0), (record, offset, lastOfBatch) -> {
+            }));
+        }
+        if (eventCount > completeEvents[0]) {
+            dropIncompleteBatch(completeEvents[0]);
+        }
+        for (long globalIndex = 0; globalIndex < eventCount; globalIndex++) {
+            indexEvent(globalIndex);
+        }
+        for (Path file : segmentFiles(snapshotDirectory)) {
+            int segmentNumber = snapshotSegments.size();
+            snapshotSegments.add(openSegment(file, (record, offset, lastOfBatch) ->
+                    indexSnapshot(record, segmentNumber, offset)));
+        }
+        if (snapshotSegments.isEmpty()) {
+            snapshotSegments.add(openSegment(segmentFile(snapshotDirectory, 0), (record, offset, lastOfBatch) -> {
+            }));
+        }
+
+        logger.info("Opened event store with {} events of {} aggregates and {} snapshots in {} ms",
+                    eventCount, aggregateStreams.size(), snapshotPositions.size(),
+                    (System.nanoTime() - start) / 1_000_000);
+    }
+
+    private static List<Path> segmentFiles(Path directory) throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter(file -> file.getFileName().toString().endsWith(SEGMENT_SUFFIX))
+                        .sorted()
+                        .collect(Collectors.toList());
+        }
+    }
+
+    private static Path segmentFile(Path directory, long firstIndex) {
+        return directory.resolve(String.format("%020d%s", firstIndex, SEGMENT_SUFFIX));
+    }
+
+    /*
+     * Drops the events from the given global index on, which belong to a batch of which the last event was never
+     * written, along with the segments created for them.
+     */
+    private void dropIncompleteBatch(long completeEvents) {
+        long position = eventPositions[(int) completeEvents];
+        int segmentNumber = (int) (position >>> 32);
+        while (eventSegments.size() > segmentNumber + 1) {
+            MappedSegment segment = eventSegments.remove(eventSegments.size() - 1);
+            closeQuietly(segment);
+            deleteQuietly(segmentFile(eventDirectory, segment.firstIndex()));
+        }
+        MappedSegment segment = eventSegments.get(segmentNumber);
+        segment.truncate((int) position, (int) (completeEvents - segment.firstIndex()));
+        logger.warn("Dropped {} events of a batch which was only partly written", eventCount - completeEvents);
+        eventCount = completeEvents;
+    }
+
+    private MappedSegment openSegment(Path file, MappedSegment.RecordConsumer recordConsumer) throws IOException {
+        String name = file.getFileName().toString();
+        long firstIndex = Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+        return MappedSegment.open(file, firstIndex, segmentSize, recordConsumer);
+    }
+
+    /*
+     * Positions combine the number of the segment (in the high bits) and the offset in the segment (in the low bits).
+     */
+    private static long position(int segmentNumber, int offset) {
+        return ((long) segmentNumber << 32) | offset;
+    }
+
+    private static ByteBuffer read(List<MappedSegment> segments, long position) {
+        return segments.get((int) (position >>> 32)).read((int) position);
+    }
+
+    private void indexEvent(long globalIndex) {
+        EventRecord event = EventRecord.header(read(eventSegments, eventPositions[(int) globalIndex]));
+        if (event.type != null) {
+            aggregateStreams.computeIfAbsent(event.aggregateIdentifier,
+                                             id -> new AggregateStream(event.sequenceNumber))
+                            .add(globalIndex);
+        }
+    }
+
+    private void indexSnapshot(ByteBuffer record, int segmentNumber, int offset) {
+        snapshotPositions.put(EventRecord.header(record).aggregateIdentifier, position(segmentNumber, offset));
+    }
+
+    private void addEventPosition(long globalIndex, long position) {
+        if (globalIndex >= MAX_EVENTS) {
+            throw new EventStoreException("The event store is full, holding " + MAX_EVENTS + " events");
+        }
+        long[] positions = eventPositions;
+        if (globalIndex >= positions.length) {
+            positions = Arrays.copyOf(positions, (int) Math.min(positions.length * 2L, MAX_EVENTS));
+        }
+        positions[(int) globalIndex] = position;
+        eventPositions = positions;
+    }
+
+    @Override
+    protected void appendEvents(List<? extends EventMessage<?>> events, Serializer serializer) {
+        if (events.isEmpty()) {
+            return;
+        }
+        long start = System.nanoTime();
+        List<byte[]> records = new ArrayList<>(events.size());
+        for (EventMessage<?> event : events) {
+            records.add(encode(event, serializer));
+        }
+
+        synchronized (appendLock) {
+            checkSequenceNumbers(events);
+            long firstIndex = eventCount;
+            if (firstIndex + records.size() > MAX_EVENTS) {
+                throw new EventStoreException("The event store is full, holding " + firstIndex + " events");
+            }
+            long[] positions = write(records, firstIndex);
+            for (int i = 0; i < records.size(); i++) {
+                long globalIndex = firstIndex + i;
+                addEventPosition(globalIndex, positions[i]);
+                EventMessage<?> event = events.get(i);
+                if (event instanceof DomainEventMessage) {
+                    DomainEventMessage<?> domainEvent = (DomainEventMessage<?>) event;
+                    aggregateStreams.computeIfAbsent(domainEvent.getAggregateIdentifier(),
+                                                     id -> new AggregateStream(domainEvent.getSequenceNumber()))
+                                    .add(globalIndex);
+                }
+            }
+            eventCount = firstIndex + records.size();
+        }
+        appendedEvents.increment(events.size());
+        appendTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+    }
+
+    private void checkSequenceNumbers(List<? extends EventMessage<?>> events) {
+        Map<String, Long> nextSequenceNumbers = new HashMap<>();
+        for (EventMessage<?> event : events) {
+            if (!(event instanceof DomainEventMessage)) {
+                continue;
+            }
+            DomainEventMessage<?> domainEvent = (DomainEventMessage<?>) event;
+            String aggregateIdentifier = domainEvent.getAggregateIdentifier();
+            Long expected = nextSequenceNumbers.get(aggregateIdentifier);
+            if (expected == null) {
+                AggregateStream stream = aggregateStreams.get(aggregateIdentifier);
+                expected = stream == null ? null : stream.lastSequenceNumber() + 1;
+            }
+            if (expected != null && expected != domainEvent.getSequenceNumber()) {
+                String message = String.format("An event for aggregate [%s] at sequence [%d] was already inserted",
+                                               aggregateIdentifier, domainEvent.getSequenceNumber());
+                if (domainEvent.getSequenceNumber() == 0) {
+                    throw new AggregateStreamCreationException(message);
+                }
+                throw new ConcurrencyException(message);
+            }
+            nextSequenceNumbers.put(aggregateIdentifier, domainEvent.getSequenceNumber() + 1);
+        }
+    }
+
+    /*
+     * Writes the records of a batch, returning their positions. If that fails, the records written so far are dropped,
+     * along with the segments created for them, so they're neither indexed nor found when the store is opened again.
+     * Must be called holding the lock.
+     */
+    private long[] write(List<byte[]> records, long firstIndex) {
+        int segmentCount = eventSegments.size();
+        MappedSegment last = eventSegments.get(segmentCount - 1);
+        int size = last.size();
+        int recordCount = last.recordCount();
+        try {
+            long[] positions = new long[records.size()];
+            for (int i = 0; i < records.size(); i++) {
+                positions[i] = append(eventSegments, eventDirectory, firstIndex + i, records.get(i),
+                                      i == records.size() - 1);
+            }
+            if (forceOnAppend) {
+                eventSegments.get(eventSegments.size() - 1).force();
+            }
+            return positions;
+        } catch (RuntimeException e) {
+            while (eventSegments.size() > segmentCount) {
+                MappedSegment segment = eventSegments.remove(eventSegments.size() - 1);
+                closeQuietly(segment);
+                deleteQuietly(segmentFile(eventDirectory, segment.firstIndex()));
+            }
+            last.truncate(size, recordCount);
+            throw e;
+        }
+    }
+
+    /*
+     * Appends the record to the last segment, or to a new one if it doesn't fit. Must be called holding the lock.
+     */
+    private long append(List<MappedSegment> segments, Path directory, long index, byte[] record,
+                        boolean lastOfBatch) {
+        int segmentNumber = segments.size() - 1;
+        int offset = segments.get(segmentNumber).append(record, lastOfBatch);
+        if (offset < 0) {
+            Path file = segmentFile(directory, index);
+            try {
+                segments.get(segmentNumber).force();
+                segments.add(openSegment(file, (r, o, l) -> {
+                }));
+            } catch (IOException e) {
+                deleteQuietly(file);
+                throw new EventStoreException("Unable to create a new segment in " + directory, e);
+            }
+            segmentNumber++;
+            offset = segments.get(segmentNumber).append(record, lastOfBatch);
+        }
+        return position(segmentNumber, offset);
+    }
+
+    @Override
+    protected void storeSnapshot(DomainEventMessage<?> snapshot, Serializer serializer) {
+        byte[] record = encode(snapshot, serializer);
+        synchronized (appendLock) {
+            MappedSegment last = snapshotSegments.get(snapshotSegments.size() - 1);
+            long position = append(snapshotSegments, snapshotDirectory,
+                                   last.firstIndex() + last.recordCount(), record, true);
+            snapshotPositions.put(snapshot.getAggregateIdentifier(), position);
+        }
+    }
+
+    private byte[] encode(EventMessage<?> event, Serializer serializer) {
+        String aggregateIdentifier = event.getIdentifier();
+        String type = null;
+        long sequenceNumber = 0;
+        if (event instanceof DomainEventMessage) {
+            DomainEventMessage<?> domainEvent = (DomainEventMessage<?>) event;
+            aggregateIdentifier = domainEvent.getAggregateIdentifier();
+            type = domainEvent.getType();
+            sequenceNumber = domainEvent.getSequenceNumber();
+        }
+        SerializedObject<byte[]> payload = event.serializePayload(serializer, byte[].class);
+        SerializedObject<byte[]> metaData = event.serializeMetaData(serializer, byte[].class);
+        byte[] record = EventRecord.encode(sequenceNumber, event.getTimestamp(), event.getIdentifier(),
+                                           aggregateIdentifier, type, payload.getType().getName(),
+                                           payload.getType().getRevision(), payload.getData(), metaData.getData());
+        if (record.length > MappedSegment.maxRecordSize(segmentSize)) {
+            throw new EventStoreException(String.format(
+                    "Event [%s] takes %d bytes, which doesn't fit in a segment of %d bytes",
+                    event.getIdentifier(), record.length, segmentSize
+            ));
+        }
+        return record;
+    }
+
+    @Override
+    protected Stream<? extends DomainEventData<?>> readEventData(String aggregateIdentifier,
+                                                                  long firstSequenceNumber) {
+        long count = eventCount;
+        AggregateStream stream = aggregateStreams.get(aggregateIdentifier);
+        if (stream == null) {
+            return Stream.empty();
+        }
+        List<DomainEventData<?>> events = stream.from(firstSequenceNumber, count, globalIndex -> EventRecord.decode(
+                read(eventSegments, eventPositions[(int) globalIndex])
+        ));
+        aggregateReadEvents.increment(events.size());
+        return events.stream();
+    }
+
+    /*
+     * Returns the next batch of events after the given token. The embedded event store waits for new events itself
+     * when this batch is empty, so there's no need to block here.
+     */
+    @Override
+    protected Stream<? extends TrackedEventData<?>> readEventData(TrackingToken trackingToken, boolean mayBlock) {
+        if (trackingToken != null && !(trackingToken instanceof GlobalSequenceTrackingToken)) {
+            throw new IllegalArgumentException("Unsupported token format: " + trackingToken);
+        }
+        long from = trackingToken == null ? 0 : ((GlobalSequenceTrackingToken) trackingToken).getGlobalIndex() + 1;
+        long to = Math.min(eventCount, from + batchSize);
+        long[] positions = eventPositions;
+        List<TrackedEventData<?>> events = new ArrayList<>((int) Math.max(0, to - from));
+        for (long globalIndex = from; globalIndex < to; globalIndex++) {
+            events.add(new TrackedDomainEventData<>(
+                    new GlobalSequenceTrackingToken(globalIndex),
+                    EventRecord.decode(read(eventSegments, positions[(int) globalIndex]))
+            ));
+        }
+        trackingReadEvents.increment(events.size());
+        return events.stream();
+    }
+
+    @Override
+    protected Stream<? extends DomainEventData<?>> readSnapshotData(String aggregateIdentifier) {
+        Long position = snapshotPositions.get(aggregateIdentifier);
+        if (position == null) {
+            return Stream.empty();
+        }
+        return Stream.of(EventRecord.decode(read(snapshotSegments, position)));
+    }
+
+    @Override
+    public Optional<Long> lastSequenceNumberFor(String aggregateIdentifier) {
+        return Optional.ofNullable(aggregateStreams.get(aggregateIdentifier))
+                       .map(AggregateStream::lastSequenceNumber);
+    }
+
+    @Override
+    public TrackingToken createTailToken() {
+        return null;
+    }
+
+    @Override
+    public TrackingToken createHeadToken() {
+        long count = eventCount;
+        return count == 0 ? null : new GlobalSequenceTrackingToken(count - 1);
+    }
+
+    /*
+     * Timestamps are assigned when events are created, so they're increasing in the order events are appended, give
+     * or take events created concurrently. A binary search is good enough to find a position for a point in time.
+     */
+    @Override
+    public TrackingToken createTokenAt(Instant dateTime) {
+        long low = 0;
+        long high = eventCount;
+        long[] positions = eventPositions;
+        while (low < high) {
+            long middle = (low + high) >>> 1;
+            Instant timestamp = EventRecord.timestamp(read(eventSegments, positions[(int) middle]));
+            if (timestamp.isBefore(dateTime)) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low == 0 ? null : new GlobalSequenceTrackingToken(low - 1);
+    }
+
+    private static double bytesUsed(List<MappedSegment> segments) {
+        return segments.stream().mapToLong(MappedSegment::size).sum();
+    }
+
+    @Override
+    public void close() {
+        synchronized (appendLock) {
+            for (MappedSegment segment : eventSegments) {
+                closeQuietly(segment);
+            }
+            for (MappedSegment segment : snapshotSegments) {
+                closeQuietly(segment);
+            }
+        }
+    }
+
+    private static void closeQuietly(MappedSegment segment) {
+        try {
+            segment.close();
+        } catch (IOException e) {
+            logger.warn("Unable to close event store segment", e);
+        }
+    }
+
+    private static void deleteQuietly(Path file) {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            logger.warn("Unable to delete event store segment {}", file, e);
+        }
+    }
+
+    /**
+     * The global indexes of the events of a single aggregate, in order of sequence number. The events of a batch are
+     * added before the batch becomes visible, so readers only read the events below the number of visible events.
+     */
+    private static class AggregateStream {
+
+        private final long firstSequenceNumber;
+        private long[] globalIndexes = new long[4];
+        private volatile int size;
+
+        private AggregateStream(long firstSequenceNumber) {
+            this.firstSequenceNumber = firstSequenceNumber;
+        }
+
+        private void add(long globalIndex) {
+            if (size == globalIndexes.length) {
+                globalIndexes = Arrays.copyOf(globalIndexes, size * 2);
+            }
+            globalIndexes[size] = globalIndex;
+            size++;
+        }
+
+        private long lastSequenceNumber() {
+            return firstSequenceNumber + size - 1;
+        }
+
+        private List<DomainEventData<?>> from(long sequenceNumber, long eventCount,
+                                              LongFunction<DomainEventData<?>> reader) {
+            int count = size;
+            long[] indexes = globalIndexes;
+            int first = (int) Math.max(0, sequenceNumber - firstSequenceNumber);
+            List<DomainEventData<?>> events = new ArrayList<>(Math.max(0, count - first));
+            for (int i = first; i < count && indexes[i] < eventCount; i++) {
+                events.add(reader.apply(indexes[i]));
+            }
+            return events;
+        }
+    }
+
+    /**
+     * The binary layout of a stored event or snapshot: sequence number, timestamp (seconds and nanos), event
+     * identifier, aggregate identifier, aggregate type, payload type and revision, payload and meta data. Strings and
+     * byte arrays are prefixed with their length, which is {@code -1} for {@code null}.
+     */
+    private static class EventRecord {
+
+        private final long sequenceNumber;
+        private final String aggregateIdentifier;
+        private final String type;
+
+        private EventRecord(long sequenceNumber, String aggregateIdentifier, String type) {
+            this.sequenceNumber = sequenceNumber;
+            this.aggregateIdentifier = aggregateIdentifier;
+            this.type = type;
+        }
+
+        private static byte[] encode(long sequenceNumber, Instant timestamp, String eventIdentifier,
+                                     String aggregateIdentifier, String type, String payloadType,
+                                     String payloadRevision, byte[] payload, byte[] metaData) {
+            byte[][] fields = {
+                    bytes(eventIdentifier), bytes(aggregateIdentifier), bytes(type), bytes(payloadType),
+                    bytes(payloadRevision), payload, metaData
+            };
+            int size = 8 + 8 + 4;
+            for (byte[] field : fields) {
+                size += 4 + (field == null ? 0 : field.length);
+            }
+            ByteBuffer buffer = ByteBuffer.allocate(size);
+            buffer.putLong(sequenceNumber);
+            buffer.putLong(timestamp.getEpochSecond());
+            buffer.putInt(timestamp.getNano());
+            for (byte[] field : fields) {
+                if (field == null) {
+                    buffer.putInt(-1);
+                } else {
+                    buffer.putInt(field.length);
+                    buffer.put(field);
+                }
+            }
+            return buffer.array();
+        }
+
+        private static EventRecord header(ByteBuffer record) {
+            long sequenceNumber = record.getLong();
+            record.position(record.position() + 12);
+            skip(record);
+            return new EventRecord(sequenceNumber, string(record), string(record));
+        }
+
+        private static Instant timestamp(ByteBuffer record) {
+            return Instant.ofEpochSecond(record.getLong(8), record.getInt(16));
+        }
+
+        private static GenericDomainEventEntry<byte[]> decode(ByteBuffer record) {
+            long sequenceNumber = record.getLong();
+            Instant timestamp = Instant.ofEpochSecond(record.getLong(), record.getInt());
+            String eventIdentifier = string(record);
+            String aggregateIdentifier = string(record);
+            String type = string(record);
+            String payloadType = string(record);
+            String payloadRevision = string(record);
+            byte[] payload = bytes(record);
+            byte[] metaData = bytes(record);
+            return new GenericDomainEventEntry<>(type, aggregateIdentifier, sequenceNumber, eventIdentifier,
+                                                 timestamp, payloadType, payloadRevision, payload, metaData);
+        }
+
+        private static byte[] bytes(String value) {
+            return value == null ? null : value.getBytes(StandardCharsets.UTF_8);
+        }
+
+        private static byte[] bytes(ByteBuffer record) {
+            int length = record.getInt();
+            if (length < 0) {
+                return null;
+            }
+            byte[] bytes = new byte[length];
+            record.get(bytes);
+            return bytes;
+        }
+
+        private static String string(ByteBuffer record) {
+            byte[] bytes = bytes(record);
+            return bytes == null ? null : new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        private static void skip(ByteBuffer record) {
+            int length = record.getInt();
+            if (length > 0) {
+                record.position(record.position() + length);
+            }
+        }
+    }
+
+    /**
+     * Builder for a {@link MappedEventStorageEngine}. The event serializer and the snapshot serializer are required.
+     */
+    public static class Builder extends AbstractEventStorageEngine.Builder {
+
+        private Path directory = Paths.get("eventstore");
+        private int segmentSize = 64 * 1024 * 1024;
+        private int batchSize = 1024;
+        private boolean forceOnAppend = false;
+        private MeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+        @Override
+        public Builder eventSerializer(Serializer eventSerializer) {
+            super.eventSerializer(eventSerializer);
+            return this;
+        }
+
+        @Override
+        public Builder snapshotSerializer(Serializer snapshotSerializer) {
+            super.snapshotSerializer(snapshotSerializer);
+            return this;
+        }
+
+        /**
+         * The directory to keep the segment files in, defaults to {@code ./eventstore}.
+         */
+        public Builder directory(Path directory) {
+            this.directory = directory;
+            return this;
+        }
+
+        /**
+         * The size of each segment file in bytes, defaults to 64 MB. An event must fit in a single segment.
+         */
+        public Builder segmentSize(int segmentSize) {
+            this.segmentSize = segmentSize;
+            return this;
+        }
+
+        /**
+         * The maximum number of events handed to an event processor at once, defaults to 1024.
+         */
+        public Builder batchSize(int batchSize) {
+            this.batchSize = batchSize;
+            return this;
+        }
+
+        /**
+         * Whether to force appended events to disk before an append returns, defaults to {@code false}: appended
+         * events are then written to disk by the operating system, and only survive a crash of the process itself.
+         */
+        public Builder forceOnAppend(boolean forceOnAppend) {
+            this.forceOnAppend = forceOnAppend;
+            return this;
+        }
+
+        public Builder meterRegistry(MeterRegistry meterRegistry) {
+            this.meterRegistry = meterRegistry;
+            return this;
+        }
+
+        @Override
+        protected void validate() throws AxonConfigurationException {
+            super.validate();
+            if (directory == null) {
+                throw new AxonConfigurationException("The directory of the event store may not be null");
+            }
+            if (segmentSize <= 0 || batchSize <= 0) {
+                throw new AxonConfigurationException("The segment size and batch size must be positive");
+            }
+            if (meterRegistry == null) {
+                throw new AxonConfigurationException("The MeterRegistry may not be null");
+            }
+        }
+
+        public MappedEventStorageEngine build() {
+            return new MappedEventStorageEngine(this);
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package io.axoniq.demo.shoppingcart.eventstore;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A segment file of fixed size, mapped into memory as a whole, holding length prefixed records one after the other.
+ * The length of a record is written after the record itself, so a record that was only partly written when the
+ * process stopped is never read back: the first length of zero marks the end of the segment.
+ * <p>
+ * Records are appended in batches, which may span segments. The length of every record but the last of its batch
+ * has its highest bit set, so a batch of which the last record was never written can be told apart when the segments
+ * are opened again.
+ * <p>
+ * Appending is not thread safe and is guarded by the engine. Reading is thread safe, for records that have been
+ * appended before the reading thread learned about them.
+ */
+class MappedSegment implements Closeable {
+
+    private static final int LENGTH_SIZE = 4;
+    private static final int BATCH_CONTINUES = 0x8000_0000;
+
+    private final long firstIndex;
+    private final FileChannel channel;
+    private final MappedByteBuffer buffer;
+    private int writePosition;
+    private int recordCount;
+
+    private MappedSegment(long firstIndex, FileChannel channel, MappedByteBuffer buffer) {
+        this.firstIndex = firstIndex;
+        this.channel = channel;
+        this.buffer = buffer;
+    }
+
+    /**
+     * Opens the given segment file, creating it with the given size if it doesn't exist, and calls the given consumer
+     * with every record found in it.
+     */
+    static MappedSegment open(Path file, long firstIndex, int size, RecordConsumer recordConsumer)
+            throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                                               StandardOpenOption.WRITE);
+        int mappedSize = (int) Math.max(size, channel.size());
+        MappedSegment segment = new MappedSegment(firstIndex, channel,
+                                                  channel.map(FileChannel.MapMode.READ_WRITE, 0, mappedSize));
+        segment.recover(recordConsumer);
+        return segment;
+    }
+
+    private void recover(RecordConsumer recordConsumer) {
+        int position = 0;
+        while (position + LENGTH_SIZE <= buffer.capacity()) {
+            int header = buffer.getInt(position);
+            int length = header & ~BATCH_CONTINUES;
+            if (length == 0 || position + LENGTH_SIZE + length > buffer.capacity()) {
+                break;
+            }
+            recordConsumer.accept(read(position), position, (header & BATCH_CONTINUES) == 0);
+            recordCount++;
+            position += LENGTH_SIZE + length;
+        }
+        writePosition = position;
+    }
+
+    /**
+     * Appends the given record, returning its offset in this segment, or {@code -1} if it doesn't fit.
+     */
+    int append(byte[] record, boolean lastOfBatch) {
+        if (writePosition + LENGTH_SIZE + record.length > buffer.capacity()) {
+            return -1;
+        }
+        int offset = writePosition;
+        ByteBuffer writer = buffer.duplicate();
+        writer.position(offset + LENGTH_SIZE);
+        writer.put(record);
+        buffer.putInt(offset, lastOfBatch ? record.length : record.length | BATCH_CONTINUES);
+        writePosition += LENGTH_SIZE + record.length;
+        recordCount++;
+        return offset;
+    }
+
+    /**
+     * Drops the records appended after the given size, which held the given number of records, zeroing them so they're
+     * not read back when the segment is opened again.
+     */
+    void truncate(int size, int recordCount) {
+        for (int position = size; position < writePosition; position++) {
+            buffer.put(position, (byte) 0);
+        }
+        this.writePosition = size;
+        this.recordCount = recordCount;
+    }
+
+    /**
+     * Returns the record at the given offset, as a buffer of its own.
+     */
+    ByteBuffer read(int offset) {
+        int length = buffer.getInt(offset) & ~BATCH_CONTINUES;
+        ByteBuffer reader = buffer.duplicate();
+        reader.position(offset + LENGTH_SIZE);
+        reader.limit(offset + LENGTH_SIZE + length);
+        return reader.slice();
+    }
+
+    static int maxRecordSize(int segmentSize) {
+        return segmentSize - LENGTH_SIZE;
+    }
+
+    long firstIndex() {
+        return firstIndex;
+    }
+
+    int recordCount() {
+        return recordCount;
+    }
+
+    int size() {
+        return writePosition;
+    }
+
+    void force() {
+        buffer.force();
+    }
+
+    @Override
+    public void close() throws IOException {
+        buffer.force();
+        channel.close();
+    }
+
+    /**
+     * Receives the records found when a segment is opened: each record, its offset in the segment, and whether it is
+     * the last record of its batch.
+     */
+    @FunctionalInterface
+    interface RecordConsumer {
+
+        void accept(ByteBuffer record, int offset, boolean lastOfBatch);
+    }
+}
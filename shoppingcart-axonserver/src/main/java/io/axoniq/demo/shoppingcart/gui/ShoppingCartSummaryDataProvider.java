@@ -3,6 +3,8 @@ package io.axoniq.demo.shoppingcart.gui;
 import com.vaadin.data.provider.AbstractBackEndDataProvider;
 import com.vaadin.data.provider.DataChangeEvent;
 import com.vaadin.data.provider.Query;
+import com.vaadin.ui.UI;
+import com.vaadin.ui.UIDetachedException;
 import io.axoniq.demo.shoppingcart.api.*;
 import lombok.Getter;
 import lombok.NonNull;
@@ -16,9 +18,18 @@ import org.slf4j.LoggerFactory;
 
 import java.lang.invoke.MethodHandles;
 import java.time.Duration;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.function.Function;
+import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 public class ShoppingCartSummaryDataProvider extends AbstractBackEndDataProvider<ShoppingCartSummary, Void> {
@@ -28,20 +39,35 @@ public class ShoppingCartSummaryDataProvider extends AbstractBackEndDataProvider
     private static final ExecutorService executorService = Executors.newCachedThreadPool();
 
     private final QueryGateway queryGateway;
+    private final UI ui;
     /**
      * We need to keep track of our current subscriptions. To avoid subscriptions being modified while we are processing
      * query updates, the methods on these class are synchronized.
      */
-    private SubscriptionQueryResult<List<ShoppingCartSummary>, ShoppingCartSummary> fetchQueryResult;
+    private SubscriptionQueryResult<List<ShoppingCartSummary>, ShoppingCartSummaryChangedUpdate> fetchQueryResult;
     private SubscriptionQueryResult<CountShoppingCartSummariesResponse, CountChangedUpdate> countQueryResult;
+    /**
+     * The ids of the last summaries of the pages fetched so far, by the offset of the row following them, so the next
+     * page can be fetched after the id of the summary before it, and any other page after the id closest to it. This
+     * way, the back end seeks to a page rather than reading past all rows before it. As offsets shift when carts are
+     * started or canceled, the cursors are forgotten whenever the size is asked for again, which the grid does when
+     * it's refreshed, and when the filter changes.
+     */
+    private final NavigableMap<Integer, String> cursors = new TreeMap<>();
+    private ShoppingCartSummaryFilter cursorsFilter;
+    /**
+     * The summaries of the page fetched last, by their ids, which the updates of its subscription are applied to.
+     */
+    private volatile Map<String, ShoppingCartSummary> rows = Collections.emptyMap();
     @Getter
     @Setter
     @NonNull
     @SuppressWarnings("FieldMayBeFinal")
     private ShoppingCartSummaryFilter filter = new ShoppingCartSummaryFilter("");
 
-    public ShoppingCartSummaryDataProvider(QueryGateway queryGateway) {
+    public ShoppingCartSummaryDataProvider(QueryGateway queryGateway, UI ui) {
         this.queryGateway = queryGateway;
+        this.ui = ui;
     }
 
     @Override
@@ -55,35 +81,85 @@ public class ShoppingCartSummaryDataProvider extends AbstractBackEndDataProvider
             fetchQueryResult.cancel();
             fetchQueryResult = null;
         }
+        if (!filter.equals(cursorsFilter)) {
+            cursors.clear();
+            cursorsFilter = filter;
+        }
+        Map.Entry<Integer, String> cursor = cursors.floorEntry(query.getOffset());
         FetchShoppingCartSummariesQuery fetchCardSummariesQuery =
-                new FetchShoppingCartSummariesQuery(query.getOffset(), query.getLimit(), filter);
+                cursor == null
+                        ? new FetchShoppingCartSummariesQuery(query.getOffset(), query.getLimit(), filter, null)
+                        : new FetchShoppingCartSummariesQuery(query.getOffset() - cursor.getKey(), query.getLimit(),
+                                                              filter, cursor.getValue());
         /*
          * Submitting our query as a subscription query, specifying both the initially expected
          * response type (multiple CardSummaries) as wel as the expected type of the updates
-         * (single CardSummary object). The result is a SubscriptionQueryResult which contains
+         * (the changes made to a single CardSummary). The result is a SubscriptionQueryResult which contains
          * a project reactor Mono for the initial response, and a Flux for the updates.
          */
         fetchQueryResult = queryGateway.subscriptionQuery(fetchCardSummariesQuery,
                                                           ResponseTypes.multipleInstancesOf(ShoppingCartSummary.class),
-                                                          ResponseTypes.instanceOf(ShoppingCartSummary.class));
+                                                          ResponseTypes.instanceOf(ShoppingCartSummaryChangedUpdate.class));
         /*
-         * Subscribing to the updates before we get the initial results.
+         * Remembering where the next page starts, and which rows the updates go to.
          */
-        fetchQueryResult.updates().subscribe(
-                cardSummary -> {
-                    logger.trace("processing query update for {}: {}", fetchCardSummariesQuery, cardSummary);
-                    /* This is a Vaadin-specific call to update the UI as a result of data changes. */
-                    fireEvent(new DataChangeEvent.DataRefreshEvent<>(this, cardSummary));
-                });
+        List<ShoppingCartSummary> summaries = fetchQueryResult.initialResult().block();
+        if (!summaries.isEmpty()) {
+            cursors.put(query.getOffset() + summaries.size(), summaries.get(summaries.size() - 1).getId());
+        }
+        rows = summaries.stream().collect(Collectors.toMap(ShoppingCartSummary::getId, Function.identity()));
         /*
-         * Returning the initial result.
+         * Subscribing to the updates once we have the rows to apply them to. Updates emitted since the subscription
+         * query was sent are buffered until then, so none of them are missed.
          */
-        return fetchQueryResult.initialResult().block().stream();
+        fetchQueryResult.updates().subscribe(
+                update -> {
+                    logger.trace("processing query update for {}: {}", fetchCardSummariesQuery, update);
+                    try {
+                        ui.access(() -> {
+                            ShoppingCartSummary row = rows.get(update.getId());
+                            if (row != null) {
+                                apply(update, row);
+                                /* This is a Vaadin-specific call to update the UI as a result of data changes. */
+                                fireEvent(new DataChangeEvent.DataRefreshEvent<>(this, row));
+                            }
+                        });
+                    } catch (UIDetachedException e) {
+                        logger.trace("dropping query update for a detached UI: {}", update);
+                    }
+                });
+        return summaries.stream();
+    }
+
+    /*
+     * Applied to the row the grid holds, as refreshing a row shows the item the grid has for its id, so only while
+     * holding the lock of the session, as the grid reads it. Updates made before the row was fetched may have been
+     * applied to it already, which applying them again doesn't change.
+     */
+    private static void apply(ShoppingCartSummaryChangedUpdate update, ShoppingCartSummary row) {
+        Set<String> items = new LinkedHashSet<>(Arrays.asList(row.getItems().split(",")));
+        items.remove("");
+        items.removeAll(update.getRemovedArticles());
+        items.addAll(update.getAddedArticles());
+        row.setItems(String.join(",", items));
+        row.setItemCount(update.getItemCount());
+        if (update.getCustomer() != null) {
+            row.setCustomer(update.getCustomer());
+        }
+    }
+
+    /**
+     * Summaries are identified by their id, rather than by all of their fields, so rows are refreshed when they change.
+     */
+    @Override
+    public Object getId(ShoppingCartSummary item) {
+        return item.getId();
     }
 
     @Override
     @Synchronized
     protected int sizeInBackEnd(Query<ShoppingCartSummary, Void> query) {
+        cursors.clear();
         if (countQueryResult != null) {
             countQueryResult.cancel();
             countQueryResult = null;
@@ -51,7 +51,7 @@ public class ShoppingCartUI extends UI {
     protected void init(VaadinRequest vaadinRequest) {
         HorizontalLayout commandBar = new HorizontalLayout();
         commandBar.setWidth("100%");
-        commandBar.addComponents(startShoppingPanel(), addArticlePanel(), removeArticlePanel());
+        commandBar.addComponents(startShoppingPanel(), addArticlePanel(), removeArticlePanel(), cancelShoppingPanel());
 
         Grid<ShoppingCartSummary> summary = summaryGrid();
 
@@ -155,8 +155,27 @@ public class ShoppingCartUI extends UI {
         return panel;
     }
 
+    private Panel cancelShoppingPanel() {
+        TextField id = new TextField("ShoppingCart id");
+        Button submit = new Button("Submit");
+
+        submit.addClickListener(evt -> {
+            commandGateway.sendAndWait(new CancelShoppingCartCommand(id.getValue()));
+            Notification.show("Success", Notification.Type.HUMANIZED_MESSAGE)
+                        .addCloseListener(e -> shoppingCartSummaryDataProvider.refreshAll());
+        });
+
+        FormLayout form = new FormLayout();
+        form.addComponents(id, submit);
+        form.setMargin(true);
+
+        Panel panel = new Panel("Cancel ShoppingCart");
+        panel.setContent(form);
+        return panel;
+    }
+
     private Grid<ShoppingCartSummary> summaryGrid() {
-        shoppingCartSummaryDataProvider = new ShoppingCartSummaryDataProvider(queryGateway);
+        shoppingCartSummaryDataProvider = new ShoppingCartSummaryDataProvider(queryGateway, this);
         Grid<ShoppingCartSummary> grid = new Grid<>();
         grid.addColumn(ShoppingCartSummary::getId).setCaption("Card ID");
         grid.addColumn(ShoppingCartSummary::getCustomer).setCaption("Customer");
@@ -0,0 +1,29 @@
+package io.axoniq.demo.shoppingcart.query;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.time.Instant;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.Lob;
+
+/**
+ * A canceled shopping cart, as it was when it was canceled. Canceled carts are moved out of the summary table into
+ * this archive, which is never queried by the GUI and is kept when the summaries are rebuilt: during a replay, the
+ * events of archived carts are skipped.
+ */
+@Entity
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class ArchivedShoppingCart {
+
+    @Id
+    private String id;
+    private String customer;
+    @Lob
+    private String items;
+    private Instant canceledAt;
+}
@@ -0,0 +1,159 @@
+package io.axoniq.demo.shoppingcart.query;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Profile;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowCallbackHandler;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import javax.annotation.PostConstruct;
+import javax.persistence.EntityManagerFactory;
+
+/**
+ * Tells whether a cart has been archived, so its events can be skipped when they are handled again, without a query
+ * per event and without holding every archived id in memory. The ids are added to a Bloom filter of fixed size, sized
+ * for the expected number of archived carts and the false positive rate: an id the filter doesn't contain has not
+ * been archived, and an id it may contain is looked up in the archive. Ids found there are cached, up to the cache
+ * size, as the events of a cart tend to be replayed close together. Once the archive holds more carts than expected,
+ * the filter answers "maybe" more often, which costs more lookups, but not more memory.
+ * <p>
+ * Ids found in the archive and false positives of the filter are counted as {@code shoppingcart.archive.lookups},
+ * tagged with {@code archived=true} or {@code false}.
+ */
+@Profile("query")
+@Component
+public class ArchivedShoppingCartIds {
+
+    private final JdbcTemplate jdbcTemplate;
+    private final int bits;
+    private final int hashes;
+    private final Cache<String, Boolean> archivedCache;
+    private final Counter archivedLookups;
+    private final Counter falsePositives;
+    private volatile AtomicLongArray filter;
+
+    /*
+     * The EntityManagerFactory isn't used, but makes sure the archive table has been created before reading its ids.
+     */
+    public ArchivedShoppingCartIds(@SuppressWarnings("unused") EntityManagerFactory entityManagerFactory,
+                                   JdbcTemplate jdbcTemplate,
+                                   MeterRegistry meterRegistry,
+                                   @Value("${shoppingcart.archive.expected-carts:10000000}") long expectedCarts,
+                                   @Value("${shoppingcart.archive.false-positive-rate:0.01}") double falsePositiveRate,
+                                   @Value("${shoppingcart.archive.cache-size:10000}") long cacheSize) {
+        if (expectedCarts <= 0 || falsePositiveRate <= 0 || falsePositiveRate >= 1) {
+            throw new IllegalArgumentException("The expected number of carts must be positive, and the false positive "
+                                                       + "rate between 0 and 1");
+        }
+        this.jdbcTemplate = jdbcTemplate;
+        /* The optimal number of bits and hash functions for the expected carts and false positive rate. */
+        long optimalBits = (long) Math.ceil(-expectedCarts * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2)));
+        this.bits = (int) Math.min(Math.max(optimalBits, Long.SIZE), (long) Integer.MAX_VALUE - Long.SIZE);
+        this.hashes = (int) Math.max(1, Math.round((double) bits / expectedCarts * Math.log(2)));
+        this.archivedCache = Caffeine.newBuilder().maximumSize(cacheSize).build();
+        this.archivedLookups = Counter.builder("shoppingcart.archive.lookups")
+                                      .description("Number of ids looked up in the archive as the filter may hold them")
+                                      .tag("archived", "true")
+                                      .register(meterRegistry);
+        this.falsePositives = Counter.builder("shoppingcart.archive.lookups")
+                                     .description("Number of ids looked up in the archive as the filter may hold them")
+                                     .tag("archived", "false")
+                                     .register(meterRegistry);
+        this.filter = new AtomicLongArray(words());
+    }
+
+    /**
+     * Reads the ids of the archived carts into a new filter, replacing the current one, e.g. after a snapshot has been
+     * imported.
+     */
+    @PostConstruct
+    public void reload() {
+        AtomicLongArray loaded = new AtomicLongArray(words());
+        jdbcTemplate.query("SELECT id FROM archived_shopping_cart",
+                           (RowCallbackHandler) row -> add(loaded, row.getString("id")));
+        archivedCache.invalidateAll();
+        filter = loaded;
+    }
+
+    /**
+     * Whether the cart with the given id has been archived, in which case its events can be skipped.
+     */
+    public boolean isArchived(String id) {
+        if (!mayContain(filter, id)) {
+            return false;
+        }
+        if (archivedCache.getIfPresent(id) != null) {
+            return true;
+        }
+        Integer count = jdbcTemplate.queryForObject("SELECT COUNT(*) FROM archived_shopping_cart WHERE id = ?",
+                                                    Integer.class, id);
+        if (count == null || count == 0) {
+            falsePositives.increment();
+            return false;
+        }
+        archivedLookups.increment();
+        archivedCache.put(id, Boolean.TRUE);
+        return true;
+    }
+
+    /**
+     * Adds the id of a cart being archived. Added right away: until the archive is committed, asking for it only costs
+     * a lookup which doesn't find it.
+     */
+    public void archived(String id) {
+        add(filter, id);
+    }
+
+    private int words() {
+        return (bits + Long.SIZE - 1) / Long.SIZE;
+    }
+
+    private void add(AtomicLongArray filter, String id) {
+        long hash = hash(id);
+        long step = step(hash);
+        for (int i = 0; i < hashes; i++) {
+            int bit = (int) Math.floorMod(hash + i * step, (long) bits);
+            filter.accumulateAndGet(bit / Long.SIZE, 1L << (bit % Long.SIZE), (word, mask) -> word | mask);
+        }
+    }
+
+    private boolean mayContain(AtomicLongArray filter, String id) {
+        long hash = hash(id);
+        long step = step(hash);
+        for (int i = 0; i < hashes; i++) {
+            int bit = (int) Math.floorMod(hash + i * step, (long) bits);
+            if ((filter.get(bit / Long.SIZE) & (1L << (bit % Long.SIZE))) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /*
+     * 64-bit FNV-1a over the characters of the id. The hashes of the filter are derived from it and a step, by double
+     * hashing.
+     */
+    private static long hash(String id) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < id.length(); i++) {
+            hash ^= id.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    /*
+     * The finalizer of SplitMix64, made odd so it never steps in place.
+     */
+    private static long step(long hash) {
+        long step = hash;
+        step = (step ^ (step >>> 30)) * 0xbf58476d1ce4e5b9L;
+        step = (step ^ (step >>> 27)) * 0x94d049bb133111ebL;
+        return (step ^ (step >>> 31)) | 1;
+    }
+}
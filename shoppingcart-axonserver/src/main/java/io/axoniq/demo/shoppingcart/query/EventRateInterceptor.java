@@ -0,0 +1,79 @@
+package io.axoniq.demo.shoppingcart.query;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.axonframework.eventhandling.EventMessage;
+import org.axonframework.eventhandling.ReplayToken;
+import org.axonframework.messaging.InterceptorChain;
+import org.axonframework.messaging.MessageHandlerInterceptor;
+import org.axonframework.messaging.unitofwork.UnitOfWork;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Measures the rate at which an event processor handles events, separately for replays and for tailing the live
+ * event stream. Handled events are counted as {@code shoppingcart.projection.events}, and the events handled per
+ * second since the previous reading, taken at most once a second, are published as
+ * {@code shoppingcart.projection.events.rate}. Both are tagged with the {@code processor} and the {@code mode}:
+ * replay or live.
+ */
+public class EventRateInterceptor implements MessageHandlerInterceptor<EventMessage<?>> {
+
+    private final Rate replayRate;
+    private final Rate liveRate;
+
+    public EventRateInterceptor(String processorName, MeterRegistry meterRegistry) {
+        this.replayRate = new Rate(processorName, "replay", meterRegistry);
+        this.liveRate = new Rate(processorName, "live", meterRegistry);
+    }
+
+    @Override
+    public Object handle(UnitOfWork<? extends EventMessage<?>> unitOfWork, InterceptorChain interceptorChain)
+            throws Exception {
+        Object result = interceptorChain.proceed();
+        (ReplayToken.isReplay(unitOfWork.getMessage()) ? replayRate : liveRate).increment();
+        return result;
+    }
+
+    private static class Rate {
+
+        private static final long WINDOW = TimeUnit.SECONDS.toNanos(1);
+
+        private final Counter counter;
+        private final LongAdder events = new LongAdder();
+        private long windowStart = System.nanoTime();
+        private long eventsAtWindowStart;
+        private double perSecond;
+
+        private Rate(String processorName, String mode, MeterRegistry meterRegistry) {
+            this.counter = Counter.builder("shoppingcart.projection.events")
+                                  .baseUnit("events")
+                                  .tag("processor", processorName)
+                                  .tag("mode", mode)
+                                  .register(meterRegistry);
+            Gauge.builder("shoppingcart.projection.events.rate", this, Rate::perSecond)
+                 .baseUnit("events/s")
+                 .tag("processor", processorName)
+                 .tag("mode", mode)
+                 .register(meterRegistry);
+        }
+
+        private void increment() {
+            counter.increment();
+            events.increment();
+        }
+
+        private synchronized double perSecond() {
+            long now = System.nanoTime();
+            if (now - windowStart >= WINDOW) {
+                long total = events.sum();
+                perSecond = (total - eventsAtWindowStart) * (double) WINDOW / (now - windowStart);
+                windowStart = now;
+                eventsAtWindowStart = total;
+            }
+            return perSecond;
+        }
+    }
+}
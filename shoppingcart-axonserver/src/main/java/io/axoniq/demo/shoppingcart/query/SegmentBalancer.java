@@ -0,0 +1,208 @@
+package io.axoniq.demo.shoppingcart.query;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.axonframework.common.AxonThreadFactory;
+import org.axonframework.config.EventProcessingConfiguration;
+import org.axonframework.eventhandling.EventTrackerStatus;
+import org.axonframework.eventhandling.Segment;
+import org.axonframework.eventhandling.TrackingToken;
+import org.axonframework.eventhandling.pooled.PooledStreamingEventProcessor;
+import org.axonframework.messaging.StreamableMessageSource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+
+import java.lang.invoke.MethodHandles;
+import java.time.Duration;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Adapts the number of segments of a {@link PooledStreamingEventProcessor} to its lag. The lag of a segment is the
+ * number of events between the head of the event stream and the position of the segment. Periodically:
+ * <ul>
+ * <li>the segment lagging furthest behind is split in two, if it lags more than the split lag and the processor has
+ * fewer than the maximum number of segments, so more worker threads can catch up on its events;</li>
+ * <li>otherwise, a segment is merged with its sibling, if both have stayed within the merge lag for the merge delay
+ * and the processor has more than the minimum number of segments, so quiet periods don't keep idle segments.</li>
+ * </ul>
+ * At most one segment is split or merged at a time. Only segments claimed by this instance are considered. The lag of
+ * every segment is published as {@code shoppingcart.processor.segment.lag}, tagged with the {@code processor} and the
+ * {@code segment}, for as long as this instance claims it, and splits and merges are counted as
+ * {@code shoppingcart.processor.segment.splits} and {@code .merges}. A segment which is split or merged is only idle
+ * again from then on, as its siblings have changed. Balancing starts once the application is ready, as looking up the
+ * processor before it has been started would race with its construction.
+ */
+public class SegmentBalancer {
+
+    private static final Logger logger = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+
+    private final String processorName;
+    private final EventProcessingConfiguration eventProcessingConfiguration;
+    private final StreamableMessageSource<?> messageSource;
+    private final Duration checkInterval;
+    private final long splitLag;
+    private final long mergeLag;
+    private final long mergeAfterMillis;
+    private final int minSegments;
+    private final int maxSegments;
+    private final MeterRegistry meterRegistry;
+
+    private final ScheduledExecutorService executor;
+    private final Map<Integer, Long> lags = new ConcurrentHashMap<>();
+    private final Map<Integer, Long> idleSince = new ConcurrentHashMap<>();
+    /* Only used by the balancing thread. */
+    private final Map<Integer, Integer> masks = new HashMap<>();
+    private final Map<Integer, Gauge> lagGauges = new HashMap<>();
+    private final Counter splits;
+    private final Counter merges;
+
+    public SegmentBalancer(String processorName,
+                           EventProcessingConfiguration eventProcessingConfiguration,
+                           StreamableMessageSource<?> messageSource,
+                           Duration checkInterval,
+                           long splitLag,
+                           long mergeLag,
+                           Duration mergeAfter,
+                           int minSegments,
+                           int maxSegments,
+                           MeterRegistry meterRegistry) {
+        this.processorName = processorName;
+        this.eventProcessingConfiguration = eventProcessingConfiguration;
+        this.messageSource = messageSource;
+        this.checkInterval = checkInterval;
+        this.splitLag = splitLag;
+        this.mergeLag = mergeLag;
+        this.mergeAfterMillis = mergeAfter.toMillis();
+        this.minSegments = minSegments;
+        this.maxSegments = maxSegments;
+        this.meterRegistry = meterRegistry;
+        this.splits = Counter.builder("shoppingcart.processor.segment.splits")
+                             .tag("processor", processorName)
+                             .register(meterRegistry);
+        this.merges = Counter.builder("shoppingcart.processor.segment.merges")
+                             .tag("processor", processorName)
+                             .register(meterRegistry);
+        this.executor = Executors.newSingleThreadScheduledExecutor(new AxonThreadFactory("segmentBalancer"));
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void start() {
+        executor.scheduleWithFixedDelay(this::balance, checkInterval.toMillis(), checkInterval.toMillis(),
+                                        TimeUnit.MILLISECONDS);
+    }
+
+    private void balance() {
+        try {
+            Optional<PooledStreamingEventProcessor> processor =
+                    eventProcessingConfiguration.eventProcessor(processorName, PooledStreamingEventProcessor.class);
+            if (processor.isPresent() && processor.get().isRunning()) {
+                balance(processor.get());
+            }
+        } catch (Exception e) {
+            logger.warn("Unable to balance the segments of processor {}", processorName, e);
+        }
+    }
+
+    private void balance(PooledStreamingEventProcessor processor) {
+        Map<Integer, EventTrackerStatus> status = processor.processingStatus();
+        TrackingToken headToken = messageSource.createHeadToken();
+        long head = headToken == null ? 0 : headToken.position().orElse(0);
+        long now = System.currentTimeMillis();
+        lagGauges.keySet().stream()
+                 .filter(segmentId -> !status.containsKey(segmentId))
+                 .collect(Collectors.toList())
+                 .forEach(this::forget);
+        for (EventTrackerStatus segmentStatus : status.values()) {
+            int segmentId = segmentStatus.getSegment().getSegmentId();
+            long lag = Math.max(0, head - segmentStatus.getCurrentPosition().orElse(head));
+            lags.put(segmentId, lag);
+            lagGauges.computeIfAbsent(segmentId, this::registerLagGauge);
+            Integer mask = masks.put(segmentId, segmentStatus.getSegment().getMask());
+            if (mask != null && mask != segmentStatus.getSegment().getMask()) {
+                idleSince.remove(segmentId);
+            }
+            if (lag <= mergeLag) {
+                idleSince.putIfAbsent(segmentId, now);
+            } else {
+                idleSince.remove(segmentId);
+            }
+        }
+        if (status.values().stream().anyMatch(EventTrackerStatus::isMerging)) {
+            return;
+        }
+
+        Optional<EventTrackerStatus> furthestBehind =
+                status.values().stream().max(Comparator.comparingLong(s -> lags.get(s.getSegment().getSegmentId())));
+        if (furthestBehind.isPresent()) {
+            Segment segment = furthestBehind.get().getSegment();
+            long lag = lags.get(segment.getSegmentId());
+            if (lag > splitLag && segmentCount(segment) < maxSegments) {
+                logger.info("Splitting segment {} of processor {}, lagging {} events behind",
+                            segment.getSegmentId(), processorName, lag);
+                processor.splitSegment(segment.getSegmentId());
+                splits.increment();
+                return;
+            }
+        }
+
+        status.values().stream()
+              .map(EventTrackerStatus::getSegment)
+              .filter(segment -> segmentCount(segment) / 2 >= minSegments)
+              .filter(segment -> status.containsKey(segment.mergeableSegmentId())
+                      && segment.getSegmentId() < segment.mergeableSegmentId())
+              .filter(segment -> isIdle(segment.getSegmentId(), now) && isIdle(segment.mergeableSegmentId(), now))
+              .findFirst()
+              .ifPresent(segment -> {
+                  logger.info("Merging segments {} and {} of processor {}, both idle",
+                              segment.getSegmentId(), segment.mergeableSegmentId(), processorName);
+                  processor.mergeSegment(segment.getSegmentId());
+                  merges.increment();
+              });
+    }
+
+    /*
+     * The number of segments the processor would have if all were as small as the given one.
+     */
+    private static int segmentCount(Segment segment) {
+        return segment.getMask() + 1;
+    }
+
+    private boolean isIdle(int segmentId, long now) {
+        Long since = idleSince.get(segmentId);
+        return since != null && now - since >= mergeAfterMillis;
+    }
+
+    private Gauge registerLagGauge(int segmentId) {
+        return Gauge.builder("shoppingcart.processor.segment.lag", lags,
+                             lags -> Optional.ofNullable(lags.get(segmentId)).map(Long::doubleValue).orElse(Double.NaN))
+                    .baseUnit("events")
+                    .tag("processor", processorName)
+                    .tag("segment", Integer.toString(segmentId))
+                    .register(meterRegistry);
+    }
+
+    /*
+     * A segment which is no longer claimed by this instance, e.g. as it has been merged into its sibling, has no lag.
+     */
+    private void forget(int segmentId) {
+        meterRegistry.remove(lagGauges.remove(segmentId));
+        lags.remove(segmentId);
+        idleSince.remove(segmentId);
+        masks.remove(segmentId);
+    }
+
+    public void shutDown() {
+        executor.shutdownNow();
+    }
+}
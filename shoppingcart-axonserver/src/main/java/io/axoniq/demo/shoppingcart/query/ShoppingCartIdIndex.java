@@ -0,0 +1,414 @@
+package io.axoniq.demo.shoppingcart.query;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.axonframework.common.AxonThreadFactory;
+import org.axonframework.config.EventProcessingConfiguration;
+import org.axonframework.eventhandling.EventTrackerStatus;
+import org.axonframework.eventhandling.StreamingEventProcessor;
+import org.axonframework.messaging.unitofwork.CurrentUnitOfWork;
+import org.axonframework.messaging.unitofwork.UnitOfWork;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.annotation.Profile;
+import org.springframework.context.event.EventListener;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowCallbackHandler;
+import org.springframework.stereotype.Component;
+
+import java.lang.invoke.MethodHandles;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import javax.annotation.PreDestroy;
+
+/**
+ * An in-memory prefix index of the ids of the shopping cart summaries, to count and page through the carts whose id
+ * starts with a given prefix without scanning the summary table. The ids are kept in a trie, of which every node counts
+ * the ids below it, so counting takes as long as the prefix is, and paging skips whole subtrees up to the offset.
+ * <p>
+ * The counts of the prefixes queries actually ask for are materialized, along with the time of the last event which
+ * changed them, so counting them doesn't even walk the trie: a started or canceled cart updates the counters of the
+ * prefixes of its id in constant time each, and counts are read without locking. Up to the configured number of
+ * prefixes is counted; when more are asked for, the counters are cleared, and materialized again as they are used.
+ * <p>
+ * Nodes are removed once the last id below them is, so the trie only holds the ids of the current carts. A materialized
+ * count keeps the time of the last event which changed it when its node is removed. A prefix which isn't materialized
+ * and which no id starts with has last changed when the longest prefix of it with ids did, which is the latest time
+ * its count could have changed.
+ * <p>
+ * The index is kept up to date by the event handlers of the "shoppingcart-summary" processor, once the changes they
+ * made have been committed, after which the cached results of the queries filtering on a prefix of a changed id are
+ * invalidated. It can only be trusted as long as this instance handles the events of all carts, i.e. has
+ * claimed all segments of the processor, so it isn't current until then: queries should go to the database, while the
+ * index is rebuilt from the summary table, which stays the source of truth. Whether all segments are claimed is checked
+ * at the check interval, once the application is ready. The number of indexed ids is published as
+ * {@code shoppingcart.projection.index.ids}.
+ */
+@Profile("query")
+@Component
+public class ShoppingCartIdIndex {
+
+    private static final Logger logger = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+
+    private static final String PROCESSOR_NAME = "shoppingcart-summary";
+    private static final String CHANGES = ShoppingCartIdIndex.class.getName() + ".changes";
+
+    private final EventProcessingConfiguration eventProcessingConfiguration;
+    private final JdbcTemplate jdbcTemplate;
+    private final ShoppingCartQueryCache queryCache;
+    private final Duration checkInterval;
+    private final int maxCounters;
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final ScheduledExecutorService executor;
+    private final Map<String, PrefixCount> counters = new ConcurrentHashMap<>();
+    private Node root = new Node();
+    private volatile boolean current;
+
+    public ShoppingCartIdIndex(EventProcessingConfiguration eventProcessingConfiguration,
+                               JdbcTemplate jdbcTemplate,
+                               ShoppingCartQueryCache queryCache,
+                               MeterRegistry meterRegistry,
+                               @Value("${shoppingcart.id-index.check-interval:1s}") Duration checkInterval,
+                               @Value("${shoppingcart.id-index.max-counters:1000}") int maxCounters) {
+        this.eventProcessingConfiguration = eventProcessingConfiguration;
+        this.jdbcTemplate = jdbcTemplate;
+        this.queryCache = queryCache;
+        this.checkInterval = checkInterval;
+        this.maxCounters = maxCounters;
+        Gauge.builder("shoppingcart.projection.index.ids", this, index -> index.count("").getCount())
+             .baseUnit("ids")
+             .register(meterRegistry);
+        this.executor = Executors.newSingleThreadScheduledExecutor(new AxonThreadFactory("idIndex"));
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void start() {
+        executor.scheduleWithFixedDelay(this::check, 0, checkInterval.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Whether the index holds the ids of all summaries, and can be used to answer queries.
+     */
+    public boolean isCurrent() {
+        return current;
+    }
+
+    /**
+     * Has the index rebuilt from the summary table at the next check, e.g. when the summary table has been replaced.
+     * Until then, the index isn't current.
+     */
+    public void reload() {
+        current = false;
+        counters.clear();
+    }
+
+    /**
+     * Adds the id of a cart started at the given time, once the current unit of work commits.
+     */
+    public void add(String id, Instant timestamp) {
+        changes().add(new Change(id, timestamp.toEpochMilli(), true));
+    }
+
+    /**
+     * Removes the id of a cart canceled at the given time, once the current unit of work commits.
+     */
+    public void remove(String id, Instant timestamp) {
+        changes().add(new Change(id, timestamp.toEpochMilli(), false));
+    }
+
+    /**
+     * The number of ids starting with the given prefix, and the time of the last event which changed it.
+     */
+    public PrefixCount count(String prefix) {
+        PrefixCount count = counters.get(prefix);
+        if (count != null) {
+            return count;
+        }
+        /* Materialized under the read lock, so no change can slip in between reading the trie and counting along. */
+        lock.readLock().lock();
+        try {
+            Node node = root;
+            for (int i = 0; i < prefix.length() && node != null; i++) {
+                Node child = node.children.get(prefix.charAt(i));
+                if (child == null) {
+                    count = new PrefixCount(0, node.lastEvent);
+                }
+                node = child;
+            }
+            if (node != null) {
+                count = new PrefixCount(node.count, node.lastEvent);
+            }
+            if (counters.size() >= maxCounters) {
+                counters.clear();
+            }
+            counters.putIfAbsent(prefix, count);
+            return count;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * The ids starting with the given prefix, in order, skipping the first offset ones, up to limit ids. Given an id
+     * to start after, the offset counts from there.
+     */
+    public List<String> page(String prefix, String afterId, int offset, int limit) {
+        List<String> ids = new ArrayList<>();
+        lock.readLock().lock();
+        try {
+            Node node = find(prefix);
+            if (node != null && limit > 0) {
+                int skip = afterId == null ? offset : rank(node, prefix, afterId) + offset;
+                collect(node, new StringBuilder(prefix), new int[]{skip}, limit, ids);
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return ids;
+    }
+
+    /*
+     * Rebuilt from the summary table while holding the write lock, so changes committed in the meantime are applied
+     * afterwards. As applying a change is idempotent, changes which were already read from the table do no harm. The
+     * events which led to the ids in the table are unknown, so counts have last changed when the index was rebuilt, until
+     * a later event changes them.
+     */
+    private void check() {
+        try {
+            if (!claimsAllSegments()) {
+                current = false;
+            } else if (!current) {
+                write(() -> {
+                    root = new Node();
+                    long loadedAt = System.currentTimeMillis();
+                    root.lastEvent = loadedAt;
+                    counters.clear();
+                    jdbcTemplate.query("SELECT id FROM shopping_cart_summary",
+                                       (RowCallbackHandler) row -> insert(row.getString("id"), loadedAt));
+                });
+                current = true;
+                logger.info("Rebuilt the cart id index from the summary table, holding {} ids", count("").getCount());
+            }
+        } catch (Exception e) {
+            current = false;
+            logger.warn("Unable to rebuild the cart id index", e);
+        }
+    }
+
+    /*
+     * Segments are claimed with a mask: a segment with mask m holds 1 / (m + 1) of the carts.
+     */
+    private boolean claimsAllSegments() {
+        return eventProcessingConfiguration.eventProcessor(PROCESSOR_NAME, StreamingEventProcessor.class)
+                                           .map(processor -> processor.processingStatus()
+                                                                      .values()
+                                                                      .stream()
+                                                                      .map(EventTrackerStatus::getSegment)
+                                                                      .mapToDouble(segment -> 1.0 / (segment.getMask() + 1))
+                                                                      .sum() == 1.0)
+                                           .orElse(false);
+    }
+
+    /*
+     * The changes of a unit of work are applied in the order they were made, by a single callback, as callbacks after
+     * commit run in reverse order: a cart started and canceled in the same batch would otherwise be removed before it
+     * was added. The cached results are only invalidated once the index has changed, so no query caches a result read
+     * from the index as it was.
+     */
+    private List<Change> changes() {
+        UnitOfWork<?> unitOfWork = CurrentUnitOfWork.get();
+        return unitOfWork.getOrComputeResource(CHANGES, key -> {
+            List<Change> changes = new ArrayList<>();
+            unitOfWork.afterCommit(u -> apply(changes));
+            return changes;
+        });
+    }
+
+    private void apply(List<Change> changes) {
+        write(() -> changes.forEach(change -> {
+            if (change.added) {
+                insert(change.id, change.timestamp);
+            } else {
+                delete(change.id, change.timestamp);
+            }
+        }));
+        changes.forEach(change -> queryCache.invalidatePrefixesOf(change.id));
+    }
+
+    private void write(Runnable change) {
+        lock.writeLock().lock();
+        try {
+            change.run();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private Node find(String prefix) {
+        Node node = root;
+        for (int i = 0; i < prefix.length() && node != null; i++) {
+            node = node.children.get(prefix.charAt(i));
+        }
+        return node;
+    }
+
+    private void insert(String id, long timestamp) {
+        Node node = root;
+        List<Node> path = new ArrayList<>();
+        path.add(node);
+        for (int i = 0; i < id.length(); i++) {
+            node = node.children.computeIfAbsent(id.charAt(i), c -> new Node());
+            path.add(node);
+        }
+        if (!node.id) {
+            node.id = true;
+            count(id, path, 1, timestamp);
+        }
+    }
+
+    /*
+     * The counts along the id decrease towards it, so removing the first node whose count drops to zero removes all
+     * nodes below it, which hold no ids either.
+     */
+    private void delete(String id, long timestamp) {
+        Node node = root;
+        List<Node> path = new ArrayList<>();
+        path.add(node);
+        for (int i = 0; i < id.length() && node != null; i++) {
+            node = node.children.get(id.charAt(i));
+            path.add(node);
+        }
+        if (node != null && node.id) {
+            node.id = false;
+            count(id, path, -1, timestamp);
+            for (int i = 1; i < path.size(); i++) {
+                if (path.get(i).count == 0) {
+                    path.get(i - 1).children.remove(id.charAt(i - 1));
+                    break;
+                }
+            }
+        }
+    }
+
+    private void count(String id, List<Node> path, int delta, long timestamp) {
+        for (int i = 0; i < path.size(); i++) {
+            Node node = path.get(i);
+            node.count += delta;
+            node.lastEvent = Math.max(node.lastEvent, timestamp);
+            if (!counters.isEmpty()) {
+                counters.computeIfPresent(id.substring(0, i),
+                                          (prefix, count) -> new PrefixCount(node.count, node.lastEvent));
+            }
+        }
+    }
+
+    /*
+     * The number of ids below the node of the given prefix up to and including the given id, found by walking down
+     * along the id and counting the subtrees sorting before it.
+     */
+    private static int rank(Node node, String prefix, String id) {
+        if (!id.startsWith(prefix)) {
+            return id.compareTo(prefix) < 0 ? 0 : node.count;
+        }
+        int rank = 0;
+        for (int i = prefix.length(); node != null; i++) {
+            if (node.id) {
+                rank++;
+            }
+            if (i == id.length()) {
+                break;
+            }
+            for (Node child : node.children.headMap(id.charAt(i)).values()) {
+                rank += child.count;
+            }
+            node = node.children.get(id.charAt(i));
+        }
+        return rank;
+    }
+
+    /*
+     * Whole subtrees are skipped as long as the offset is larger than the number of ids they hold.
+     */
+    private static void collect(Node node, StringBuilder id, int[] skip, int limit, List<String> ids) {
+        if (node.id) {
+            if (skip[0] > 0) {
+                skip[0]--;
+            } else {
+                ids.add(id.toString());
+            }
+        }
+        for (Map.Entry<Character, Node> child : node.children.entrySet()) {
+            if (ids.size() >= limit) {
+                return;
+            }
+            if (skip[0] >= child.getValue().count) {
+                skip[0] -= child.getValue().count;
+                continue;
+            }
+            id.append(child.getKey());
+            collect(child.getValue(), id, skip, limit, ids);
+            id.setLength(id.length() - 1);
+        }
+    }
+
+    @PreDestroy
+    public void shutDown() {
+        executor.shutdownNow();
+    }
+
+    private static class Change {
+
+        private final String id;
+        private final long timestamp;
+        private final boolean added;
+
+        private Change(String id, long timestamp, boolean added) {
+            this.id = id;
+            this.timestamp = timestamp;
+            this.added = added;
+        }
+    }
+
+    private static class Node {
+
+        private final TreeMap<Character, Node> children = new TreeMap<>();
+        private boolean id;
+        private int count;
+        private long lastEvent;
+    }
+
+    public static class PrefixCount {
+
+        private final int count;
+        private final long lastEvent;
+
+        private PrefixCount(int count, long lastEvent) {
+            this.count = count;
+            this.lastEvent = lastEvent;
+        }
+
+        public int getCount() {
+            return count;
+        }
+
+        /**
+         * The time of the last event which changed the count, in milliseconds since the epoch.
+         */
+        public long getLastEvent() {
+            return lastEvent;
+        }
+    }
+}
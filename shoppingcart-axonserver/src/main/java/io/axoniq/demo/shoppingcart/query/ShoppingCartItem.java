@@ -0,0 +1,48 @@
+package io.axoniq.demo.shoppingcart.query;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.io.Serializable;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.IdClass;
+import javax.persistence.NamedQueries;
+import javax.persistence.NamedQuery;
+
+/**
+ * An article in a shopping cart, one row per article, so adding or removing an article inserts or deletes a single
+ * row, however many articles the cart holds. The sequence number of the event which added the article keeps the
+ * articles of a cart in the order they were added in.
+ */
+@Entity
+@IdClass(ShoppingCartItem.Key.class)
+@NamedQueries({
+        @NamedQuery(
+                name = "ShoppingCartItem.fetch",
+                query = "SELECT i FROM ShoppingCartItem i WHERE i.cartId IN :cartIds ORDER BY i.cartId, i.sequenceNumber"
+        )
+})
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class ShoppingCartItem {
+
+    @Id
+    private String cartId;
+    @Id
+    private String article;
+    private long sequenceNumber;
+
+    @Data
+    @NoArgsConstructor
+    @AllArgsConstructor
+    public static class Key implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private String cartId;
+        private String article;
+    }
+}
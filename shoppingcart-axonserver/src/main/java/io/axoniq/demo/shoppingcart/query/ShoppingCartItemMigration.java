@@ -0,0 +1,100 @@
+package io.axoniq.demo.shoppingcart.query;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.context.annotation.Profile;
+import org.springframework.jdbc.core.ConnectionCallback;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.lang.invoke.MethodHandles;
+import java.sql.ResultSet;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.annotation.PostConstruct;
+import javax.persistence.EntityManagerFactory;
+
+/**
+ * Moves the items of the shopping cart summaries out of the comma separated {@code items} column the summary table
+ * used to have, into the shopping cart item table, and counts them. Runs once, on start up of a database which still
+ * has the column, before the event processors are started. The column is dropped afterwards.
+ */
+@Profile("query")
+@Component
+public class ShoppingCartItemMigration {
+
+    private static final Logger logger = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+
+    private static final int BATCH_SIZE = 1000;
+
+    private final JdbcTemplate jdbcTemplate;
+    private final TransactionTemplate transactionTemplate;
+
+    /*
+     * The EntityManagerFactory isn't used, but makes sure the item table has been created before migrating.
+     */
+    public ShoppingCartItemMigration(@SuppressWarnings("unused") EntityManagerFactory entityManagerFactory,
+                                     JdbcTemplate jdbcTemplate,
+                                     PlatformTransactionManager transactionManager) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+    }
+
+    @PostConstruct
+    public void migrate() {
+        if (!hasItemsColumn()) {
+            return;
+        }
+        int carts = transactionTemplate.execute(status -> {
+            List<Object[]> items = new ArrayList<>();
+            List<Object[]> itemCounts = new ArrayList<>();
+            AtomicInteger migrated = new AtomicInteger();
+            jdbcTemplate.query("SELECT id, items FROM shopping_cart_summary", (ResultSet row) -> {
+                String cartId = row.getString("id");
+                String csv = row.getString("items");
+                Set<String> articles = new LinkedHashSet<>();
+                for (String article : csv == null ? new String[0] : csv.split(",")) {
+                    if (!article.trim().isEmpty()) {
+                        articles.add(article.trim());
+                    }
+                }
+                int sequenceNumber = 0;
+                for (String article : articles) {
+                    items.add(new Object[]{cartId, article, sequenceNumber++});
+                }
+                itemCounts.add(new Object[]{articles.size(), cartId});
+                migrated.incrementAndGet();
+                if (items.size() >= BATCH_SIZE || itemCounts.size() >= BATCH_SIZE) {
+                    write(items, itemCounts);
+                }
+            });
+            write(items, itemCounts);
+            jdbcTemplate.execute("ALTER TABLE shopping_cart_summary DROP COLUMN items");
+            return migrated.get();
+        });
+        logger.info("Migrated the items of {} shopping carts to the shopping cart item table", carts);
+    }
+
+    private boolean hasItemsColumn() {
+        return Boolean.TRUE.equals(jdbcTemplate.execute((ConnectionCallback<Boolean>) connection -> {
+            try (ResultSet columns = connection.getMetaData()
+                                               .getColumns(null, null, "SHOPPING_CART_SUMMARY", "ITEMS")) {
+                return columns.next();
+            }
+        }));
+    }
+
+    private void write(List<Object[]> items, List<Object[]> itemCounts) {
+        jdbcTemplate.batchUpdate(
+                "INSERT INTO shopping_cart_item (cart_id, article, sequence_number) VALUES (?, ?, ?)", items
+        );
+        jdbcTemplate.batchUpdate("UPDATE shopping_cart_summary SET item_count = ? WHERE id = ?", itemCounts);
+        items.clear();
+        itemCounts.clear();
+    }
+}
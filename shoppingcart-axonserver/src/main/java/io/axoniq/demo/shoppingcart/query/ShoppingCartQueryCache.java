@@ -0,0 +1,244 @@
+package io.axoniq.demo.shoppingcart.query;
+
+import io.axoniq.demo.shoppingcart.api.CountShoppingCartSummariesQuery;
+import io.axoniq.demo.shoppingcart.api.CountShoppingCartSummariesResponse;
+import io.axoniq.demo.shoppingcart.api.FetchShoppingCartSummariesQuery;
+import io.axoniq.demo.shoppingcart.api.ShoppingCartSummary;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.axonframework.messaging.unitofwork.CurrentUnitOfWork;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Profile;
+import org.springframework.stereotype.Component;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+
+/**
+ * Caches the results of the fetch and count queries for shopping cart summaries, so identical queries of many GUIs
+ * don't all go to the database. Fetch results are cached by their query, and count results by their filter. The cache
+ * holds up to the configured number of results, evicting the least recently used ones.
+ * <p>
+ * Results are invalidated once the changes of the projection have been committed: a started or canceled cart
+ * invalidates the results of all queries filtering on a prefix of its id once the id index has changed, as their count
+ * and pages shift, while adding or removing an article only invalidates the fetch results holding the cart. A result is
+ * only cached if nothing invalidated it while it was being read, so a result read before a change committed is never
+ * served after it. Fetched summaries are copied into and out of the cache, as the GUI changes the summaries it gets.
+ * <p>
+ * Lookups are counted as {@code shoppingcart.query.cache}, tagged with the {@code query}: fetch or count, and the
+ * {@code result}: hit or miss, and the hit ratio per query is published as {@code shoppingcart.query.cache.hit.ratio}.
+ */
+@Profile("query")
+@Component
+public class ShoppingCartQueryCache {
+
+    private final int size;
+
+    /* Guarded by this cache. */
+    private final LinkedHashMap<Object, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<String, Set<Entry>> entriesByPrefix = new HashMap<>();
+    private final Map<String, Set<Entry>> entriesByCartId = new HashMap<>();
+    private final Lookups fetchLookups;
+    private final Lookups countLookups;
+
+    public ShoppingCartQueryCache(MeterRegistry meterRegistry,
+                                  @Value("${shoppingcart.query-cache.size:1000}") int size) {
+        this.size = size;
+        this.fetchLookups = new Lookups("fetch", meterRegistry);
+        this.countLookups = new Lookups("count", meterRegistry);
+    }
+
+    /**
+     * Returns the cached result of the given query, or the result of the given handler, which is cached.
+     */
+    public List<ShoppingCartSummary> fetch(FetchShoppingCartSummariesQuery query,
+                                           Supplier<List<ShoppingCartSummary>> handler) {
+        Entry entry = lookup(query, query.getFilter().getIdStartsWith(), fetchLookups);
+        if (entry.result != null) {
+            return copy(entry.result);
+        }
+        List<ShoppingCartSummary> summaries = handler.get();
+        Set<String> cartIds = summaries.stream().map(ShoppingCartSummary::getId).collect(Collectors.toSet());
+        store(entry, cartIds, copy(summaries));
+        return summaries;
+    }
+
+    /**
+     * Returns the cached result of a query with the same filter as the given one, or the result of the given handler,
+     * which is cached.
+     */
+    public CountShoppingCartSummariesResponse count(CountShoppingCartSummariesQuery query,
+                                                    Supplier<CountShoppingCartSummariesResponse> handler) {
+        Entry entry = lookup(query.getFilter(), query.getFilter().getIdStartsWith(), countLookups);
+        if (entry.result != null) {
+            return (CountShoppingCartSummariesResponse) entry.result;
+        }
+        CountShoppingCartSummariesResponse count = handler.get();
+        store(entry, Collections.emptySet(), count);
+        return count;
+    }
+
+    /**
+     * Invalidates the results of all queries filtering on a prefix of the id of a started or canceled cart, once the id
+     * index has changed.
+     */
+    public void invalidatePrefixesOf(String cartId) {
+        invalidate(cartId, true);
+    }
+
+    /**
+     * Invalidates the fetch results holding a changed cart, once the current unit of work commits.
+     */
+    public void invalidateResultsWith(String cartId) {
+        CurrentUnitOfWork.get().afterCommit(u -> invalidate(cartId, false));
+    }
+
+    /**
+     * Drops all cached results, e.g. when the summary table is rebuilt.
+     */
+    public synchronized void clear() {
+        entries.clear();
+        entriesByPrefix.clear();
+        entriesByCartId.clear();
+    }
+
+    /*
+     * A miss leaves an empty entry behind, indexed by its prefix, which is only filled with the result if no change
+     * invalidated it while the result was being read.
+     */
+    private synchronized Entry lookup(Object key, String prefix, Lookups lookups) {
+        Entry entry = entries.get(key);
+        if (entry != null && entry.result != null) {
+            lookups.hits.increment();
+            return entry;
+        }
+        lookups.misses.increment();
+        if (entry != null) {
+            unindex(entry);
+        }
+        entry = new Entry(key, prefix);
+        entries.put(key, entry);
+        entriesByPrefix.computeIfAbsent(prefix, p -> new HashSet<>()).add(entry);
+        evict();
+        return entry;
+    }
+
+    private synchronized void store(Entry entry, Set<String> cartIds, Object result) {
+        if (entries.get(entry.key) != entry) {
+            return;
+        }
+        entry.result = result;
+        entry.cartIds = cartIds;
+        cartIds.forEach(cartId -> entriesByCartId.computeIfAbsent(cartId, id -> new HashSet<>()).add(entry));
+    }
+
+    /*
+     * Entries still being read don't know which carts they hold yet, so a changed cart invalidates those filtering on a
+     * prefix of its id as well.
+     */
+    private synchronized void invalidate(String cartId, boolean prefixes) {
+        for (int i = 0; i <= cartId.length(); i++) {
+            Set<Entry> invalidated = entriesByPrefix.get(cartId.substring(0, i));
+            if (invalidated != null) {
+                remove(invalidated.stream()
+                                  .filter(entry -> prefixes || entry.result == null)
+                                  .collect(Collectors.toList()));
+            }
+        }
+        if (!prefixes) {
+            Set<Entry> invalidated = entriesByCartId.get(cartId);
+            if (invalidated != null) {
+                remove(List.copyOf(invalidated));
+            }
+        }
+    }
+
+    private void remove(Collection<Entry> invalidated) {
+        for (Entry entry : invalidated) {
+            entries.remove(entry.key, entry);
+            unindex(entry);
+        }
+    }
+
+    private void evict() {
+        Iterator<Entry> iterator = entries.values().iterator();
+        while (entries.size() > size && iterator.hasNext()) {
+            Entry entry = iterator.next();
+            iterator.remove();
+            unindex(entry);
+        }
+    }
+
+    private void unindex(Entry entry) {
+        removeFrom(entriesByPrefix, entry.prefix, entry);
+        entry.cartIds.forEach(cartId -> removeFrom(entriesByCartId, cartId, entry));
+    }
+
+    private static void removeFrom(Map<String, Set<Entry>> index, String key, Entry entry) {
+        Set<Entry> indexed = index.get(key);
+        if (indexed != null && indexed.remove(entry) && indexed.isEmpty()) {
+            index.remove(key);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<ShoppingCartSummary> copy(Object summaries) {
+        return ((List<ShoppingCartSummary>) summaries).stream()
+                                                      .map(summary -> new ShoppingCartSummary(
+                                                              summary.getId(), summary.getCustomer(),
+                                                              summary.getItems(), summary.getItemCount()
+                                                      ))
+                                                      .collect(Collectors.toList());
+    }
+
+    /*
+     * Compared by identity, so a new entry for the same key isn't mistaken for an older one.
+     */
+    private static class Entry {
+
+        private final Object key;
+        private final String prefix;
+        private Object result;
+        private Set<String> cartIds = Collections.emptySet();
+
+        private Entry(Object key, String prefix) {
+            this.key = key;
+            this.prefix = prefix;
+        }
+    }
+
+    private static class Lookups {
+
+        private final Counter hits;
+        private final Counter misses;
+
+        private Lookups(String query, MeterRegistry meterRegistry) {
+            this.hits = Counter.builder("shoppingcart.query.cache")
+                               .tag("query", query)
+                               .tag("result", "hit")
+                               .register(meterRegistry);
+            this.misses = Counter.builder("shoppingcart.query.cache")
+                                 .tag("query", query)
+                                 .tag("result", "miss")
+                                 .register(meterRegistry);
+            Gauge.builder("shoppingcart.query.cache.hit.ratio", this, Lookups::hitRatio)
+                 .tag("query", query)
+                 .register(meterRegistry);
+        }
+
+        private double hitRatio() {
+            double lookups = hits.count() + misses.count();
+            return lookups == 0 ? 0 : hits.count() / lookups;
+        }
+    }
+}
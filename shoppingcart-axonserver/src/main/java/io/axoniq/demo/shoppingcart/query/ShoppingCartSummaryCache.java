@@ -0,0 +1,320 @@
+package io.axoniq.demo.shoppingcart.query;
+
+import io.axoniq.demo.shoppingcart.api.ShoppingCartSummary;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.axonframework.common.AxonThreadFactory;
+import org.axonframework.config.EventProcessingConfiguration;
+import org.axonframework.eventhandling.EventTrackerStatus;
+import org.axonframework.eventhandling.Segment;
+import org.axonframework.eventhandling.StreamingEventProcessor;
+import org.axonframework.messaging.unitofwork.CurrentUnitOfWork;
+import org.axonframework.messaging.unitofwork.UnitOfWork;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.annotation.Profile;
+import org.springframework.context.event.EventListener;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import javax.annotation.PreDestroy;
+import javax.persistence.EntityManager;
+
+/**
+ * A write-behind cache of the shopping cart summaries, with a cache per segment of the "shoppingcart-summary"
+ * processor. Events are applied to the cached summaries in memory, so the summaries of active carts aren't read from
+ * the database over and over again. Changed summaries are written back in bulk, in JDBC batches, when the batch of
+ * events they were changed by commits, in the same transaction as the token of its segment, or earlier, in that same
+ * transaction, once the number of changed summaries reaches the flush size. The table never lags behind the token, so
+ * a restart resumes from a consistent state.
+ * <p>
+ * The cache of a segment only lives as long as this instance keeps the segment claimed, so no other instance can have
+ * changed its summaries in the meantime. It is dropped when a batch rolls back, and when the segment is released,
+ * split or merged, which is checked at the start of every batch and, once the application is ready, at the claim check
+ * interval. Each segment cache holds up to the configured number of summaries, evicting the least recently used ones.
+ * Lookups are counted as {@code shoppingcart.projection.cache}, tagged with the {@code result}: hit or miss, and the
+ * number of summaries written per flush is published as {@code shoppingcart.projection.cache.flush}.
+ */
+@Profile("query")
+@Component
+public class ShoppingCartSummaryCache {
+
+    private static final String PROCESSOR_NAME = "shoppingcart-summary";
+    private static final String SEGMENT_CACHE = ShoppingCartSummaryCache.class.getName() + ".segment";
+
+    private final EventProcessingConfiguration eventProcessingConfiguration;
+    private final EntityManager entityManager;
+    private final JdbcTemplate jdbcTemplate;
+    private final int size;
+    private final int flushSize;
+    private final Duration claimCheckInterval;
+
+    private final Map<Segment, SegmentCache> segmentCaches = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService executor;
+    private final Counter hits;
+    private final Counter misses;
+    private final DistributionSummary flushes;
+
+    public ShoppingCartSummaryCache(EventProcessingConfiguration eventProcessingConfiguration,
+                                    EntityManager entityManager,
+                                    JdbcTemplate jdbcTemplate,
+                                    MeterRegistry meterRegistry,
+                                    @Value("${shoppingcart.summary-cache.size:10000}") int size,
+                                    @Value("${shoppingcart.summary-cache.flush-size:500}") int flushSize,
+                                    @Value("${shoppingcart.summary-cache.claim-check-interval:1s}") Duration claimCheckInterval) {
+        if (flushSize > size) {
+            throw new IllegalArgumentException(
+                    "The flush size of the summary cache (" + flushSize + ") may not exceed its size (" + size + ")"
+            );
+        }
+        this.eventProcessingConfiguration = eventProcessingConfiguration;
+        this.entityManager = entityManager;
+        this.jdbcTemplate = jdbcTemplate;
+        this.size = size;
+        this.flushSize = flushSize;
+        this.claimCheckInterval = claimCheckInterval;
+        this.hits = Counter.builder("shoppingcart.projection.cache")
+                           .tag("result", "hit")
+                           .register(meterRegistry);
+        this.misses = Counter.builder("shoppingcart.projection.cache")
+                             .tag("result", "miss")
+                             .register(meterRegistry);
+        this.flushes = DistributionSummary.builder("shoppingcart.projection.cache.flush")
+                                          .baseUnit("summaries")
+                                          .register(meterRegistry);
+        this.executor = Executors.newSingleThreadScheduledExecutor(new AxonThreadFactory("summaryCache"));
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void start() {
+        executor.scheduleWithFixedDelay(this::dropReleasedSegments, claimCheckInterval.toMillis(),
+                                        claimCheckInterval.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Returns the summary of the given cart, read from the database if it isn't cached yet, or {@code null} if there
+     * is none. Changes made to it must be reported with {@link #changed(ShoppingCartSummary)}.
+     */
+    public ShoppingCartSummary get(String id) {
+        return segmentCache(id).get(id);
+    }
+
+    /**
+     * Adds the summary of a newly started cart, to be inserted.
+     */
+    public void add(ShoppingCartSummary summary) {
+        segmentCache(summary.getId()).put(summary, State.NEW);
+    }
+
+    /**
+     * Marks the given summary as changed, to be updated.
+     */
+    public void changed(ShoppingCartSummary summary) {
+        segmentCache(summary.getId()).changed(summary);
+    }
+
+    /**
+     * Removes the given summary, to be deleted.
+     */
+    public void remove(ShoppingCartSummary summary) {
+        segmentCache(summary.getId()).remove(summary);
+    }
+
+    /**
+     * Drops all cached summaries, e.g. when the summary table is rebuilt.
+     */
+    public void clear() {
+        segmentCaches.clear();
+    }
+
+    /*
+     * The cache of the segment the current batch of events is handled in. The first time it's asked for in a batch, it
+     * is looked up by the claimed segment matching the cart, as the processor sequences the events by cart. Events
+     * handled outside of a streaming processor are cached for the duration of their batch only.
+     */
+    private SegmentCache segmentCache(String cartId) {
+        UnitOfWork<?> unitOfWork = CurrentUnitOfWork.get();
+        return unitOfWork.getOrComputeResource(SEGMENT_CACHE, key -> {
+            Set<Segment> claimed = claimedSegments();
+            segmentCaches.keySet().retainAll(claimed);
+            SegmentCache segmentCache = claimed.stream()
+                                               .filter(segment -> segment.matches(cartId))
+                                               .findFirst()
+                                               .map(segment -> segmentCaches.computeIfAbsent(segment, s -> new SegmentCache()))
+                                               .orElseGet(SegmentCache::new);
+            unitOfWork.onPrepareCommit(u -> segmentCache.flush());
+            unitOfWork.onRollback(u -> segmentCaches.values().remove(segmentCache));
+            return segmentCache;
+        });
+    }
+
+    private Set<Segment> claimedSegments() {
+        return eventProcessingConfiguration.eventProcessor(PROCESSOR_NAME, StreamingEventProcessor.class)
+                                           .map(processor -> processor.processingStatus()
+                                                                      .values()
+                                                                      .stream()
+                                                                      .map(EventTrackerStatus::getSegment)
+                                                                      .collect(Collectors.toSet()))
+                                           .orElse(Collections.emptySet());
+    }
+
+    private void dropReleasedSegments() {
+        segmentCaches.keySet().retainAll(claimedSegments());
+    }
+
+    @PreDestroy
+    public void shutDown() {
+        executor.shutdownNow();
+    }
+
+    private enum State {
+        CLEAN, NEW, CHANGED, REMOVED
+    }
+
+    private static class Entry {
+
+        private final ShoppingCartSummary summary;
+        private State state;
+
+        private Entry(ShoppingCartSummary summary, State state) {
+            this.summary = summary;
+            this.state = state;
+        }
+    }
+
+    /*
+     * Used by one batch at a time, as a segment is only handled by one thread at a time.
+     */
+    private class SegmentCache {
+
+        private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+        private int pending;
+
+        private ShoppingCartSummary get(String id) {
+            Entry entry = entries.get(id);
+            if (entry != null) {
+                hits.increment();
+                return entry.state == State.REMOVED ? null : entry.summary;
+            }
+            misses.increment();
+            ShoppingCartSummary summary = entityManager.find(ShoppingCartSummary.class, id);
+            if (summary == null) {
+                return null;
+            }
+            /* Detached, so it's only written back by the flush, not by the entity manager as well. */
+            entityManager.detach(summary);
+            put(summary, State.CLEAN);
+            return summary;
+        }
+
+        private void put(ShoppingCartSummary summary, State state) {
+            entries.put(summary.getId(), new Entry(summary, state));
+            if (state != State.CLEAN) {
+                pending();
+            }
+            evict();
+        }
+
+        /*
+         * A summary is only evicted once it's no longer the most recently used, so it's still cached when changed or
+         * removed right after it was asked for. One that was evicted anyway was clean, and is cached again.
+         */
+        private void changed(ShoppingCartSummary summary) {
+            Entry entry = entries.get(summary.getId());
+            if (entry == null) {
+                put(summary, State.CHANGED);
+            } else if (entry.state == State.CLEAN) {
+                entry.state = State.CHANGED;
+                pending();
+            }
+        }
+
+        private void remove(ShoppingCartSummary summary) {
+            Entry entry = entries.get(summary.getId());
+            if (entry == null) {
+                put(summary, State.REMOVED);
+            } else if (entry.state == State.NEW) {
+                /* Never written, so there's nothing to delete. */
+                entries.remove(summary.getId());
+                pending--;
+            } else if (entry.state != State.REMOVED) {
+                if (entry.state == State.CLEAN) {
+                    pending();
+                }
+                entry.state = State.REMOVED;
+            }
+        }
+
+        private void pending() {
+            if (++pending >= flushSize) {
+                flush();
+            }
+        }
+
+        /*
+         * Evicts the least recently used summaries beyond the size of the cache. Summaries waiting to be written are
+         * kept, so the cache may temporarily hold more, up to the flush size, as is the most recently used one, which
+         * its caller is about to change.
+         */
+        private void evict() {
+            int candidates = entries.size() - 1;
+            Iterator<Entry> iterator = entries.values().iterator();
+            while (entries.size() > size && candidates-- > 0) {
+                if (iterator.next().state == State.CLEAN) {
+                    iterator.remove();
+                }
+            }
+        }
+
+        private void flush() {
+            if (pending == 0) {
+                return;
+            }
+            List<Object[]> inserts = new ArrayList<>();
+            List<Object[]> updates = new ArrayList<>();
+            List<Object[]> deletes = new ArrayList<>();
+            Iterator<Entry> iterator = entries.values().iterator();
+            while (iterator.hasNext()) {
+                Entry entry = iterator.next();
+                ShoppingCartSummary summary = entry.summary;
+                switch (entry.state) {
+                    case NEW:
+                        inserts.add(new Object[]{summary.getId(), summary.getCustomer(), summary.getItemCount()});
+                        break;
+                    case CHANGED:
+                        updates.add(new Object[]{summary.getItemCount(), summary.getId()});
+                        break;
+                    case REMOVED:
+                        deletes.add(new Object[]{summary.getId()});
+                        iterator.remove();
+                        break;
+                    default:
+                        continue;
+                }
+                entry.state = State.CLEAN;
+            }
+            jdbcTemplate.batchUpdate(
+                    "INSERT INTO shopping_cart_summary (id, customer, item_count) VALUES (?, ?, ?)", inserts
+            );
+            jdbcTemplate.batchUpdate("UPDATE shopping_cart_summary SET item_count = ? WHERE id = ?", updates);
+            jdbcTemplate.batchUpdate("DELETE FROM shopping_cart_summary WHERE id = ?", deletes);
+            flushes.record(pending);
+            pending = 0;
+            evict();
+        }
+    }
+}
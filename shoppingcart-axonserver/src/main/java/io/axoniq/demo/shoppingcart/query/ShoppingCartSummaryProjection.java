@@ -1,19 +1,31 @@
 package io.axoniq.demo.shoppingcart.query;
 
-import com.google.common.base.Joiner;
-import com.google.common.base.Splitter;
-import com.google.common.collect.Lists;
 import io.axoniq.demo.shoppingcart.api.*;
+import io.axoniq.demo.shoppingcart.subscription.PrefixIndexedQueryUpdateEmitter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
 import org.axonframework.config.ProcessingGroup;
 import org.axonframework.eventhandling.EventHandler;
+import org.axonframework.eventhandling.SequenceNumber;
+import org.axonframework.eventhandling.Timestamp;
+import org.axonframework.messaging.unitofwork.CurrentUnitOfWork;
+import org.axonframework.messaging.unitofwork.UnitOfWork;
 import org.axonframework.queryhandling.QueryHandler;
-import org.axonframework.queryhandling.QueryUpdateEmitter;
 import org.springframework.context.annotation.Profile;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowCallbackHandler;
 import org.springframework.stereotype.Service;
 
 import java.time.Instant;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.StringJoiner;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
 import javax.persistence.EntityManager;
 import javax.persistence.TypedQuery;
 
@@ -22,13 +34,51 @@ import javax.persistence.TypedQuery;
 @ProcessingGroup("shoppingcart-summary")
 public class ShoppingCartSummaryProjection {
 
+    private static final String CANCELED_CARTS = ShoppingCartSummaryProjection.class.getName() + ".canceledCarts";
+    private static final String[] CART_SIZES = {"0-10", "11-100", "101-1000", "1001+"};
+
     private final EntityManager entityManager;
-    private final QueryUpdateEmitter queryUpdateEmitter;
+    private final JdbcTemplate jdbcTemplate;
+    private final ShoppingCartSummaryCache summaryCache;
+    private final ShoppingCartIdIndex idIndex;
+    private final ShoppingCartSummaryRebuild rebuild;
+    private final ArchivedShoppingCartIds archivedIds;
+    private final ShoppingCartQueryCache queryCache;
+    private final PrefixIndexedQueryUpdateEmitter queryUpdateEmitter;
+    private final Timer[] itemAddedTimers;
+    private final Timer[] itemRemovedTimers;
 
     public ShoppingCartSummaryProjection(EntityManager entityManager,
-                                         @SuppressWarnings("SpringJavaInjectionPointsAutowiringInspection") QueryUpdateEmitter queryUpdateEmitter) {
+                                         JdbcTemplate jdbcTemplate,
+                                         ShoppingCartSummaryCache summaryCache,
+                                         ShoppingCartIdIndex idIndex,
+                                         ShoppingCartSummaryRebuild rebuild,
+                                         ArchivedShoppingCartIds archivedIds,
+                                         ShoppingCartQueryCache queryCache,
+                                         PrefixIndexedQueryUpdateEmitter queryUpdateEmitter,
+                                         MeterRegistry meterRegistry) {
         this.entityManager = entityManager;
+        this.jdbcTemplate = jdbcTemplate;
+        this.summaryCache = summaryCache;
+        this.idIndex = idIndex;
+        this.rebuild = rebuild;
+        this.archivedIds = archivedIds;
+        this.queryCache = queryCache;
         this.queryUpdateEmitter = queryUpdateEmitter;
+        this.itemAddedTimers = itemTimers(meterRegistry, "added");
+        this.itemRemovedTimers = itemTimers(meterRegistry, "removed");
+    }
+
+    private static Timer[] itemTimers(MeterRegistry meterRegistry, String change) {
+        Timer[] timers = new Timer[CART_SIZES.length];
+        for (int i = 0; i < CART_SIZES.length; i++) {
+            timers[i] = Timer.builder("shoppingcart.projection.items")
+                             .description("Time taken to add an item to or remove an item from the read model")
+                             .tag("change", change)
+                             .tag("cart.size", CART_SIZES[i])
+                             .register(meterRegistry);
+        }
+        return timers;
     }
 
     /*
@@ -40,80 +90,244 @@ public class ShoppingCartSummaryProjection {
      * - for which is true that the id of the gift card having been issued starts with the idStartWith string
      *   in the query's filter
      * - send a message that the count of queries matching this query has been changed.
+     *
+     * Archived carts have been canceled, so everything that happened to them ends up in the archive: when their events
+     * are handled again, they are skipped instead of building up a summary just to archive it again. While the
+     * summaries are rebuilt, the shadow tables are written by ShoppingCartSummaryRebuildProjection, in a processor of
+     * its own, so this one carries on as usual.
      */
     @EventHandler
-    public void on(ShoppingCartStartedEvent event) {
-        entityManager.persist(new ShoppingCartSummary(event.getId(), event.getCustomer(), ""));
+    public void on(ShoppingCartStartedEvent event, @Timestamp Instant timestamp) {
+        if (archivedIds.isArchived(event.getId())) {
+            return;
+        }
+        summaryCache.add(new ShoppingCartSummary(event.getId(), event.getCustomer(), "", 0));
+        idIndex.add(event.getId(), timestamp);
 
-        queryUpdateEmitter.emit(CountShoppingCartSummariesQuery.class,
-                                query -> event.getId().startsWith(query.getFilter().getIdStartsWith()),
-                                new CountChangedUpdate());
+        queryUpdateEmitter.emit(CountShoppingCartSummariesQuery.class, event.getId(), new CountChangedUpdate());
     }
 
     /*
-     * Update our read model by updating the existing card. This is done so that upcoming regular
-     * (non-subscription) queries get correct data.
+     * Update our read model by inserting the added item, and counting it in the existing card. This is done so that
+     * upcoming regular (non-subscription) queries get correct data.
      *
      * Serve the subscribed queries by emitting an update. This reads as follows:
      * - to all current subscriptions of type FetchCardSummariesQuery
      * - for which is true that the id of the gift card having been redeemed starts with the idStartWith string
      *   in the query's filter
-     * - send a message containing the new state of this gift card summary
+     * - send a message describing the change made to this gift card summary
      */
     @EventHandler
-    public void on(ArticleAddedEvent event) {
-        ShoppingCartSummary summary = entityManager.find(ShoppingCartSummary.class, event.getId());
-
-        List<String> items = new ArrayList<>();
-        if (!summary.getItems().equals("")) {
-            items = Splitter.on(",").trimResults().splitToList(summary.getItems());
+    public void on(ArticleAddedEvent event, @SequenceNumber long sequenceNumber) {
+        if (archivedIds.isArchived(event.getId())) {
+            return;
         }
-        items = Lists.newArrayList(items);
-        items.add(event.getArticle());
-        summary.setItems(Joiner.on(",").join(items));
+        long start = System.nanoTime();
+        ShoppingCartSummary summary = summaryCache.get(event.getId());
+        entityManager.persist(new ShoppingCartItem(event.getId(), event.getArticle(), sequenceNumber));
+        summary.setItemCount(summary.getItemCount() + 1);
+        summaryCache.changed(summary);
+        queryCache.invalidateResultsWith(summary.getId());
+        recordItemUpdate(itemAddedTimers, summary.getItemCount(), start);
 
-        queryUpdateEmitter.emit(FetchShoppingCartSummariesQuery.class,
-                                query -> event.getId().startsWith(query.getFilter().getIdStartsWith()),
-                                summary);
+        emitToWatchingFetchQueries(new ShoppingCartSummaryChangedUpdate(
+                summary.getId(), Collections.singleton(event.getArticle()), Collections.emptySet(),
+                summary.getItemCount(), null
+        ));
     }
 
     /*
-     * Update our read model by updating the existing card. This is done so that upcoming regular
-     * (non-subscription) queries get correct data.
+     * Update our read model by deleting the removed item, and uncounting it in the existing card. This is done so that
+     * upcoming regular (non-subscription) queries get correct data.
      *
      * Serve the subscribed queries by emitting an update. This reads as follows:
      * - to all current subscriptions of type FetchCardSummariesQuery
      * - for which is true that the id of the gift card having been redeemed starts with the idStartWith string
      *   in the query's filter
-     * - send a message containing the new state of this gift card summary
+     * - send a message describing the change made to this gift card summary
      */
     @EventHandler
     public void on(ArticleRemovedEvent event) {
-        ShoppingCartSummary summary = entityManager.find(ShoppingCartSummary.class, event.getId());
+        if (archivedIds.isArchived(event.getId())) {
+            return;
+        }
+        long start = System.nanoTime();
+        ShoppingCartSummary summary = summaryCache.get(event.getId());
+        /* Removed like this rather than by a delete query, which would flush the changes of the batch right away. */
+        ShoppingCartItem item = entityManager.find(ShoppingCartItem.class,
+                                                   new ShoppingCartItem.Key(event.getId(), event.getArticle()));
+        if (item != null) {
+            entityManager.remove(item);
+            summary.setItemCount(summary.getItemCount() - 1);
+            summaryCache.changed(summary);
+            queryCache.invalidateResultsWith(summary.getId());
+        }
+        recordItemUpdate(itemRemovedTimers, summary.getItemCount(), start);
+
+        if (item != null) {
+            emitToWatchingFetchQueries(new ShoppingCartSummaryChangedUpdate(
+                    summary.getId(), Collections.emptySet(), Collections.singleton(event.getArticle()),
+                    summary.getItemCount(), null
+            ));
+        }
+    }
+
+    /*
+     * Watching fetch queries are sent the change rather than the whole summary, so the items of the cart aren't
+     * loaded, nor sent over and over again. Changes to the same cart are merged into one update per batch, and per
+     * coalesce window of the emitter.
+     */
+    private void emitToWatchingFetchQueries(ShoppingCartSummaryChangedUpdate update) {
+        queryUpdateEmitter.emit(FetchShoppingCartSummariesQuery.class, update.getId(), update,
+                                ShoppingCartSummaryChangedUpdate::followedBy);
+    }
+
+    /*
+     * Published as the "shoppingcart.projection.items" timer, by the size of the cart after the update, to show that
+     * adding or removing an item takes as long for large carts as for small ones. The timers are registered up front,
+     * one per change and size.
+     */
+    private static void recordItemUpdate(Timer[] timers, int cartSize, long start) {
+        int size = cartSize <= 10 ? 0 : cartSize <= 100 ? 1 : cartSize <= 1000 ? 2 : 3;
+        timers[size].record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+    }
+
+    /*
+     * Move the canceled cart from our read model to the archive, and tell the subscribed count queries that the count
+     * has changed. A replayed cancellation of an archived cart finds no summary, and leaves the archive as it is.
+     */
+    @EventHandler
+    public void on(ShoppingCartCanceledEvent event, @Timestamp Instant timestamp) {
+        ShoppingCartSummary summary = summaryCache.get(event.getId());
+        if (summary == null) {
+            return;
+        }
+        canceledCarts().put(summary.getId(), new ArchivedShoppingCart(summary.getId(), summary.getCustomer(), null,
+                                                                      timestamp));
+        summaryCache.remove(summary);
+        archivedIds.archived(summary.getId());
+        idIndex.remove(summary.getId(), timestamp);
 
-        List<String> items = Splitter.on(",").trimResults().splitToList(summary.getItems());
-        items = Lists.newArrayList(items);
-        items.remove(event.getArticle());
-        summary.setItems(Joiner.on(",").join(items));
+        queryUpdateEmitter.emit(CountShoppingCartSummariesQuery.class, event.getId(), new CountChangedUpdate());
+    }
+
+    /*
+     * The carts canceled in the current batch, archived along with their items once the batch is about to commit. The
+     * items are read and deleted by JDBC, in bulk, rather than by queries through the entity manager, which would flush
+     * the pending changes of the batch every time a cart is canceled. The entity manager is flushed once instead, so
+     * items added in the batch are archived and deleted as well.
+     */
+    private Map<String, ArchivedShoppingCart> canceledCarts() {
+        UnitOfWork<?> unitOfWork = CurrentUnitOfWork.get();
+        return unitOfWork.getOrComputeResource(CANCELED_CARTS, key -> {
+            Map<String, ArchivedShoppingCart> canceledCarts = new LinkedHashMap<>();
+            unitOfWork.onPrepareCommit(u -> archive(canceledCarts));
+            return canceledCarts;
+        });
+    }
 
-        queryUpdateEmitter.emit(FetchShoppingCartSummariesQuery.class,
-                query -> event.getId().startsWith(query.getFilter().getIdStartsWith()),
-                summary);
+    private void archive(Map<String, ArchivedShoppingCart> canceledCarts) {
+        entityManager.flush();
+        Map<String, StringJoiner> items = new HashMap<>();
+        List<Object[]> cartIds = new ArrayList<>();
+        canceledCarts.keySet().forEach(cartId -> {
+            items.put(cartId, new StringJoiner(","));
+            cartIds.add(new Object[]{cartId});
+        });
+        jdbcTemplate.query(
+                "SELECT cart_id, article FROM shopping_cart_item WHERE cart_id IN ("
+                        + String.join(", ", Collections.nCopies(canceledCarts.size(), "?"))
+                        + ") ORDER BY cart_id, sequence_number",
+                (RowCallbackHandler) row -> items.get(row.getString("cart_id")).add(row.getString("article")),
+                canceledCarts.keySet().toArray()
+        );
+        List<Object[]> archivedCarts = new ArrayList<>();
+        canceledCarts.values().forEach(cart -> archivedCarts.add(new Object[]{
+                cart.getId(), cart.getCustomer(), items.get(cart.getId()).toString(),
+                java.sql.Timestamp.from(cart.getCanceledAt())
+        }));
+        jdbcTemplate.batchUpdate(
+                "INSERT INTO archived_shopping_cart (id, customer, items, canceled_at) VALUES (?, ?, ?, ?)",
+                archivedCarts
+        );
+        jdbcTemplate.batchUpdate("DELETE FROM shopping_cart_item WHERE cart_id = ?", cartIds);
+        canceledCarts.clear();
     }
 
+    /*
+     * The ids of the requested page are taken from the id index while it's current, so only the summaries on the page
+     * are read, by their ids. Otherwise, given the id of the summary before the page, the database seeks to it through
+     * the primary key, rather than reading and discarding all summaries before the page. Queries wait while rebuilt
+     * summaries are swapped in. Results are cached until a change to the summaries invalidates them.
+     */
     @SuppressWarnings("unused")
     @QueryHandler
     public List<ShoppingCartSummary> handle(FetchShoppingCartSummariesQuery query) {
-        TypedQuery<ShoppingCartSummary> jpaQuery = entityManager.createNamedQuery("CardSummary.fetch", ShoppingCartSummary.class);
+        return rebuild.query(() -> queryCache.fetch(query, () -> fetch(query)));
+    }
+
+    private List<ShoppingCartSummary> fetch(FetchShoppingCartSummariesQuery query) {
+        if (idIndex.isCurrent()) {
+            List<String> ids = idIndex.page(query.getFilter().getIdStartsWith(), query.getAfterId(), query.getOffset(),
+                                            query.getLimit());
+            List<ShoppingCartSummary> summaries =
+                    ids.isEmpty() ? new ArrayList<>()
+                                  : entityManager.createNamedQuery("CardSummary.fetchByIds", ShoppingCartSummary.class)
+                                                 .setParameter("ids", ids)
+                                                 .getResultList();
+            fillItems(summaries);
+            return summaries;
+        }
+        TypedQuery<ShoppingCartSummary> jpaQuery;
+        if (query.getAfterId() == null) {
+            jpaQuery = entityManager.createNamedQuery("CardSummary.fetch", ShoppingCartSummary.class);
+        } else {
+            jpaQuery = entityManager.createNamedQuery("CardSummary.fetchAfter", ShoppingCartSummary.class);
+            jpaQuery.setParameter("afterId", query.getAfterId());
+        }
         jpaQuery.setParameter("idStartsWith", query.getFilter().getIdStartsWith());
         jpaQuery.setFirstResult(query.getOffset());
         jpaQuery.setMaxResults(query.getLimit());
-        return jpaQuery.getResultList();
+        List<ShoppingCartSummary> summaries = jpaQuery.getResultList();
+        fillItems(summaries);
+        return summaries;
+    }
+
+    /*
+     * Fills in the items of the given summaries, comma separated, with a single query for all of them.
+     */
+    private void fillItems(List<ShoppingCartSummary> summaries) {
+        if (summaries.isEmpty()) {
+            return;
+        }
+        Map<String, String> itemsPerCart =
+                entityManager.createNamedQuery("ShoppingCartItem.fetch", ShoppingCartItem.class)
+                             .setParameter("cartIds", summaries.stream()
+                                                               .map(ShoppingCartSummary::getId)
+                                                               .collect(Collectors.toList()))
+                             .getResultList()
+                             .stream()
+                             .collect(Collectors.groupingBy(ShoppingCartItem::getCartId,
+                                                            Collectors.mapping(ShoppingCartItem::getArticle,
+                                                                               Collectors.joining(","))));
+        summaries.forEach(summary -> summary.setItems(itemsPerCart.getOrDefault(summary.getId(), "")));
     }
 
+    /*
+     * Answered from the materialized counters of the id index while it's current, with the time of the last event
+     * which changed the count, so status polls and grid size requests don't touch the database.
+     */
     @SuppressWarnings("unused")
     @QueryHandler
     public CountShoppingCartSummariesResponse handle(CountShoppingCartSummariesQuery query) {
+        return rebuild.query(() -> queryCache.count(query, () -> count(query)));
+    }
+
+    private CountShoppingCartSummariesResponse count(CountShoppingCartSummariesQuery query) {
+        if (idIndex.isCurrent()) {
+            ShoppingCartIdIndex.PrefixCount count = idIndex.count(query.getFilter().getIdStartsWith());
+            return new CountShoppingCartSummariesResponse(count.getCount(), count.getLastEvent());
+        }
         TypedQuery<Long> jpaQuery = entityManager.createNamedQuery("CardSummary.count", Long.class);
         jpaQuery.setParameter("idStartsWith", query.getFilter().getIdStartsWith());
         return new CountShoppingCartSummariesResponse(jpaQuery.getSingleResult().intValue(), Instant.now().toEpochMilli());
@@ -0,0 +1,495 @@
+package io.axoniq.demo.shoppingcart.query;
+
+import io.axoniq.demo.shoppingcart.api.CountChangedUpdate;
+import io.axoniq.demo.shoppingcart.api.CountShoppingCartSummariesQuery;
+import org.axonframework.common.AxonThreadFactory;
+import org.axonframework.config.EventProcessingConfiguration;
+import org.axonframework.eventhandling.EventTrackerStatus;
+import org.axonframework.eventhandling.StreamingEventProcessor;
+import org.axonframework.messaging.unitofwork.CurrentUnitOfWork;
+import org.axonframework.messaging.unitofwork.UnitOfWork;
+import org.axonframework.queryhandling.QueryUpdateEmitter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.annotation.Profile;
+import org.springframework.context.event.EventListener;
+import org.springframework.jdbc.core.ConnectionCallback;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.lang.invoke.MethodHandles;
+import java.sql.ResultSet;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Supplier;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+/**
+ * Rebuilds the shopping cart summaries from scratch, while the current ones are kept up to date. A rebuild resets the
+ * "shoppingcart-summary-rebuild" processor, which replays all events into shadow tables of the summaries and their
+ * items, see {@link ShoppingCartSummaryRebuildProjection}, while the "shoppingcart-summary" processor carries on
+ * maintaining the current tables, answering queries and updating subscriptions as usual. The changes of each batch of
+ * replayed events are written with a few bulk statements, in the same transaction as the tokens. The segments of the
+ * rebuild processor are replayed in parallel, and split further when they lag behind, by a {@link SegmentBalancer}.
+ * The rebuild processor only runs while rebuilding, see {@link ShoppingCartSummaryRebuildProcessor}.
+ * <p>
+ * Once this instance has claimed all segments of both processors, and the rebuild processor has caught up, the shadow
+ * tables are swapped in and the rebuild processor hands over its tokens: both processors are shut down, and while
+ * batches of events and queries wait, the summary processor gets the tokens of the rebuild processor, the current
+ * tables are dropped and the shadow tables take their names. The summary processor then carries on from where the
+ * rebuild got, in the tables the rebuild wrote. The summary cache and the query cache are cleared, the id index is
+ * rebuilt, and subscribed count queries are told the count has changed, so grids fetch their rows again. Whether the
+ * rebuild has caught up is checked at the check interval, once the application is ready.
+ * <p>
+ * A rebuild is in progress for as long as a shadow table exists, so a restart carries on with it, and a swap which
+ * was interrupted is finished. The archive of canceled carts is kept up to date by the summary processor, and the
+ * events of archived carts are skipped by both processors. Carts archived while the rebuild was running are dropped
+ * from the shadow tables before they are swapped in, see {@link ArchivedShoppingCartIds}.
+ */
+@Profile("query")
+@Component
+public class ShoppingCartSummaryRebuild {
+
+    private static final Logger logger = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+
+    private static final String PROCESSOR_NAME = "shoppingcart-summary";
+    static final String REBUILD_PROCESSOR_NAME = "shoppingcart-summary-rebuild";
+    private static final String SHADOW_BATCH = ShoppingCartSummaryRebuild.class.getName() + ".batch";
+    private static final String SUMMARY_TABLE = "shopping_cart_summary";
+    private static final String ITEM_TABLE = "shopping_cart_item";
+    private static final String SHADOW_SUMMARY_TABLE = "shopping_cart_summary_rebuild";
+    private static final String SHADOW_ITEM_TABLE = "shopping_cart_item_rebuild";
+
+    private final EventProcessingConfiguration eventProcessingConfiguration;
+    private final JdbcTemplate jdbcTemplate;
+    private final TransactionTemplate transactionTemplate;
+    private final ShoppingCartSummaryCache summaryCache;
+    private final ShoppingCartIdIndex idIndex;
+    private final ShoppingCartQueryCache queryCache;
+    private final ArchivedShoppingCartIds archivedIds;
+    private final QueryUpdateEmitter queryUpdateEmitter;
+    private final Duration checkInterval;
+
+    /* Held by queries and by batches writing to the shadow tables, and exclusively by the swap. */
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final ScheduledExecutorService executor;
+    private volatile boolean rebuilding;
+    private volatile boolean swapping;
+    private volatile Instant startedAt;
+
+    public ShoppingCartSummaryRebuild(EventProcessingConfiguration eventProcessingConfiguration,
+                                      JdbcTemplate jdbcTemplate,
+                                      PlatformTransactionManager transactionManager,
+                                      ShoppingCartSummaryCache summaryCache,
+                                      ShoppingCartIdIndex idIndex,
+                                      ShoppingCartQueryCache queryCache,
+                                      ArchivedShoppingCartIds archivedIds,
+                                      QueryUpdateEmitter queryUpdateEmitter,
+                                      @Value("${shoppingcart.rebuild.check-interval:1s}") Duration checkInterval) {
+        this.eventProcessingConfiguration = eventProcessingConfiguration;
+        this.jdbcTemplate = jdbcTemplate;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.summaryCache = summaryCache;
+        this.idIndex = idIndex;
+        this.queryCache = queryCache;
+        this.archivedIds = archivedIds;
+        this.queryUpdateEmitter = queryUpdateEmitter;
+        this.checkInterval = checkInterval;
+        this.executor = Executors.newSingleThreadScheduledExecutor(new AxonThreadFactory("summaryRebuild"));
+    }
+
+    /*
+     * Carries on with a rebuild which was in progress when the application stopped, before the processors start. When
+     * only the shadow item table is left, the tokens have been handed over already, and the swap is finished right
+     * away.
+     */
+    @PostConstruct
+    public void recover() {
+        if (tableExists(SHADOW_SUMMARY_TABLE) || tableExists(SHADOW_ITEM_TABLE)) {
+            rebuilding = true;
+            swapping = !tableExists(SHADOW_SUMMARY_TABLE);
+            logger.info("Carrying on with the rebuild of the shopping cart summaries");
+        }
+    }
+
+    /*
+     * The rebuild processor isn't started along with the others, but only here, when carrying on with a rebuild.
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void start() {
+        if (rebuilding && !swapping) {
+            rebuildProcessor().startRebuilding();
+        }
+        executor.scheduleWithFixedDelay(this::check, checkInterval.toMillis(), checkInterval.toMillis(),
+                                        TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Whether the summaries are being rebuilt.
+     */
+    public boolean isRebuilding() {
+        return rebuilding;
+    }
+
+    /**
+     * When the current rebuild was started, if it was started by this instance.
+     */
+    public Optional<Instant> getStartedAt() {
+        return rebuilding ? Optional.ofNullable(startedAt) : Optional.empty();
+    }
+
+    /**
+     * Starts rebuilding the summaries, by resetting the "shoppingcart-summary-rebuild" processor and starting it. Its
+     * tokens can only be reset while no other instance has claimed any of its segments.
+     */
+    public synchronized void rebuild() {
+        if (rebuilding) {
+            throw new IllegalStateException("The shopping cart summaries are being rebuilt already");
+        }
+        ShoppingCartSummaryRebuildProcessor processor = rebuildProcessor();
+        processor.shutDown();
+        try {
+            createShadowTables();
+            rebuilding = true;
+            startedAt = Instant.now();
+            processor.resetTokens();
+            processor.startRebuilding();
+            logger.info("Started rebuilding the shopping cart summaries");
+        } catch (RuntimeException e) {
+            rebuilding = false;
+            processor.shutDown();
+            dropShadowTables();
+            throw e;
+        }
+    }
+
+    /**
+     * Runs the given query on the summary tables, after waiting for a swap in progress to finish.
+     */
+    public <T> T query(Supplier<T> query) {
+        lock.readLock().lock();
+        try {
+            return query.get();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Adds the summary of a started cart, unless it has been archived.
+     */
+    public void started(String id, String customer) {
+        if (!archivedIds.isArchived(id)) {
+            shadowBatch().ifPresent(batch -> batch.started(id, customer));
+        }
+    }
+
+    /**
+     * Adds an article to a cart, unless it has been archived.
+     */
+    public void added(String id, String article, long sequenceNumber) {
+        if (!archivedIds.isArchived(id)) {
+            shadowBatch().ifPresent(batch -> batch.added(id, article, sequenceNumber));
+        }
+    }
+
+    /**
+     * Removes an article from a cart, unless it has been archived.
+     */
+    public void removed(String id, String article) {
+        if (!archivedIds.isArchived(id)) {
+            shadowBatch().ifPresent(batch -> batch.removed(id, article));
+        }
+    }
+
+    /**
+     * Removes a canceled cart, whether or not it has been archived, as the summary processor may have archived it
+     * after the rebuild wrote its summary. It is archived by the summary processor.
+     */
+    public void canceled(String id) {
+        shadowBatch().ifPresent(batch -> batch.canceled(id));
+    }
+
+    /*
+     * The batch holds the read lock from its first event until it's cleaned up, so the tables aren't swapped while
+     * it writes to the shadow tables.
+     */
+    private Optional<ShadowBatch> shadowBatch() {
+        UnitOfWork<?> unitOfWork = CurrentUnitOfWork.get();
+        return unitOfWork.getOrComputeResource(SHADOW_BATCH, key -> {
+            lock.readLock().lock();
+            if (!rebuilding) {
+                lock.readLock().unlock();
+                return Optional.empty();
+            }
+            ShadowBatch batch = new ShadowBatch();
+            unitOfWork.onPrepareCommit(u -> batch.flush());
+            unitOfWork.onCleanup(u -> lock.readLock().unlock());
+            return Optional.of(batch);
+        });
+    }
+
+    private void check() {
+        try {
+            if (rebuilding && (swapping || hasCaughtUp())) {
+                swap();
+            }
+        } catch (Exception e) {
+            logger.warn("Unable to swap in the rebuilt shopping cart summaries", e);
+        }
+    }
+
+    private boolean hasCaughtUp() {
+        Optional<StreamingEventProcessor> rebuildProcessor =
+                eventProcessingConfiguration.eventProcessor(REBUILD_PROCESSOR_NAME, StreamingEventProcessor.class);
+        Optional<StreamingEventProcessor> summaryProcessor =
+                eventProcessingConfiguration.eventProcessor(PROCESSOR_NAME, StreamingEventProcessor.class);
+        if (rebuildProcessor.isEmpty() || summaryProcessor.isEmpty()) {
+            return false;
+        }
+        Collection<EventTrackerStatus> statuses = rebuildProcessor.get().processingStatus().values();
+        return claimsAllSegments(statuses)
+                && claimsAllSegments(summaryProcessor.get().processingStatus().values())
+                && statuses.stream().allMatch(ShoppingCartSummaryRebuild::hasReplayed);
+    }
+
+    /*
+     * Segments are claimed with a mask: a segment with mask m holds 1 / (m + 1) of the carts.
+     */
+    private static boolean claimsAllSegments(Collection<EventTrackerStatus> statuses) {
+        return statuses.stream().mapToDouble(status -> 1.0 / (status.getSegment().getMask() + 1)).sum() == 1.0;
+    }
+
+    /*
+     * A segment only stops replaying once it handles an event after the position it was reset at, so a segment which
+     * has caught up with the last event at that position is done replaying as well.
+     */
+    private static boolean hasReplayed(EventTrackerStatus status) {
+        return status.isCaughtUp()
+                && (!status.isReplaying()
+                || status.getCurrentPosition().orElse(0) >= status.getResetPosition().orElse(0));
+    }
+
+    /*
+     * Both processors are shut down first, and stay shut down if the swap fails, so the next check retries it. Every
+     * step can be taken again: the tokens of the rebuild processor don't change while it's shut down, and each table is
+     * swapped on its own, if it hasn't been swapped yet. The id index is told to rebuild before the lock is released,
+     * so no query is answered from the old ids.
+     */
+    private void swap() {
+        swapping = true;
+        StreamingEventProcessor summaryProcessor = processor(PROCESSOR_NAME);
+        rebuildProcessor().shutDown();
+        summaryProcessor.shutDown();
+        lock.writeLock().lock();
+        try {
+            if (tableExists(SHADOW_SUMMARY_TABLE)) {
+                dropArchivedCarts();
+                handOverTokens();
+            }
+            swap(SHADOW_SUMMARY_TABLE, SUMMARY_TABLE);
+            swap(SHADOW_ITEM_TABLE, ITEM_TABLE);
+            summaryCache.clear();
+            queryCache.clear();
+            idIndex.reload();
+            rebuilding = false;
+            swapping = false;
+        } finally {
+            lock.writeLock().unlock();
+        }
+        summaryProcessor.start();
+        logger.info("Swapped in the rebuilt shopping cart summaries{}",
+                    startedAt == null ? "" : ", after " + Duration.between(startedAt, Instant.now()));
+        queryUpdateEmitter.emit(CountShoppingCartSummariesQuery.class, query -> true, new CountChangedUpdate());
+    }
+
+    /*
+     * Carts archived by the summary processor while the rebuild was running may have been written to the shadow tables
+     * before the rebuild got to skip their events.
+     */
+    private void dropArchivedCarts() {
+        jdbcTemplate.update("DELETE FROM " + SHADOW_ITEM_TABLE
+                                    + " WHERE cart_id IN (SELECT id FROM archived_shopping_cart)");
+        jdbcTemplate.update("DELETE FROM " + SHADOW_SUMMARY_TABLE
+                                    + " WHERE id IN (SELECT id FROM archived_shopping_cart)");
+    }
+
+    /*
+     * Replaces the tokens of the summary processor by those of the rebuild processor, segment by segment, unless
+     * another node has claimed any of them since both processors were shut down here.
+     */
+    private void handOverTokens() {
+        transactionTemplate.executeWithoutResult(status -> {
+            List<String> owners = jdbcTemplate.queryForList(
+                    "SELECT owner FROM token_entry WHERE processor_name IN (?, ?) FOR UPDATE", String.class,
+                    PROCESSOR_NAME, REBUILD_PROCESSOR_NAME
+            );
+            if (owners.stream().anyMatch(Objects::nonNull)) {
+                throw new IllegalStateException("The tokens have been claimed by another node");
+            }
+            jdbcTemplate.update("DELETE FROM token_entry WHERE processor_name = ?", PROCESSOR_NAME);
+            jdbcTemplate.update("INSERT INTO token_entry (processor_name, segment, token, token_type, timestamp) "
+                                        + "SELECT ?, segment, token, token_type, timestamp FROM token_entry "
+                                        + "WHERE processor_name = ?",
+                                PROCESSOR_NAME, REBUILD_PROCESSOR_NAME);
+        });
+    }
+
+    private void swap(String shadowTable, String table) {
+        if (tableExists(shadowTable)) {
+            jdbcTemplate.execute("DROP TABLE IF EXISTS " + table);
+            jdbcTemplate.execute("ALTER TABLE " + shadowTable + " RENAME TO " + table);
+        }
+    }
+
+    /*
+     * The same as the tables the entities are mapped to.
+     */
+    private void createShadowTables() {
+        dropShadowTables();
+        jdbcTemplate.execute("CREATE TABLE " + SHADOW_SUMMARY_TABLE + " (id VARCHAR(255) NOT NULL, "
+                                     + "customer VARCHAR(255), item_count INTEGER DEFAULT 0 NOT NULL, PRIMARY KEY (id))");
+        jdbcTemplate.execute("CREATE TABLE " + SHADOW_ITEM_TABLE + " (article VARCHAR(255) NOT NULL, "
+                                     + "cart_id VARCHAR(255) NOT NULL, sequence_number BIGINT NOT NULL, "
+                                     + "PRIMARY KEY (article, cart_id))");
+    }
+
+    private void dropShadowTables() {
+        jdbcTemplate.execute("DROP TABLE IF EXISTS " + SHADOW_SUMMARY_TABLE);
+        jdbcTemplate.execute("DROP TABLE IF EXISTS " + SHADOW_ITEM_TABLE);
+    }
+
+    private boolean tableExists(String table) {
+        return Boolean.TRUE.equals(jdbcTemplate.execute((ConnectionCallback<Boolean>) connection -> {
+            try (ResultSet tables = connection.getMetaData().getTables(null, null, table.toUpperCase(), null)) {
+                return tables.next();
+            }
+        }));
+    }
+
+    private StreamingEventProcessor processor(String name) {
+        return eventProcessingConfiguration.eventProcessor(name, StreamingEventProcessor.class)
+                                           .orElseThrow(() -> new IllegalStateException(
+                                                   "There is no streaming processor named " + name
+                                           ));
+    }
+
+    private ShoppingCartSummaryRebuildProcessor rebuildProcessor() {
+        return eventProcessingConfiguration.eventProcessor(REBUILD_PROCESSOR_NAME,
+                                                           ShoppingCartSummaryRebuildProcessor.class)
+                                           .orElseThrow(() -> new IllegalStateException(
+                                                   "There is no rebuild processor named " + REBUILD_PROCESSOR_NAME
+                                           ));
+    }
+
+    @PreDestroy
+    public void shutDown() {
+        executor.shutdownNow();
+    }
+
+    /*
+     * The net changes of one batch of events, written when it's about to commit: canceled carts and items which were
+     * removed first, then new summaries and items, and at last the changed item counts of the other summaries. Items
+     * added and removed again within the batch aren't written at all, nor are carts started and canceled within it.
+     */
+    private class ShadowBatch {
+
+        private final Map<String, String> startedCarts = new LinkedHashMap<>();
+        private final Map<List<String>, Long> addedItems = new LinkedHashMap<>();
+        private final Set<List<String>> removedItems = new LinkedHashSet<>();
+        private final Set<String> canceledCarts = new LinkedHashSet<>();
+
+        private void started(String id, String customer) {
+            startedCarts.put(id, customer);
+        }
+
+        private void added(String id, String article, long sequenceNumber) {
+            addedItems.put(List.of(id, article), sequenceNumber);
+        }
+
+        private void removed(String id, String article) {
+            List<String> item = List.of(id, article);
+            if (addedItems.remove(item) == null) {
+                removedItems.add(item);
+            }
+        }
+
+        private void canceled(String id) {
+            startedCarts.remove(id);
+            addedItems.keySet().removeIf(item -> item.get(0).equals(id));
+            removedItems.removeIf(item -> item.get(0).equals(id));
+            canceledCarts.add(id);
+        }
+
+        private void flush() {
+            if (!canceledCarts.isEmpty()) {
+                List<Object[]> ids = new ArrayList<>();
+                canceledCarts.forEach(id -> ids.add(new Object[]{id}));
+                jdbcTemplate.batchUpdate("DELETE FROM " + SHADOW_ITEM_TABLE + " WHERE cart_id = ?", ids);
+                jdbcTemplate.batchUpdate("DELETE FROM " + SHADOW_SUMMARY_TABLE + " WHERE id = ?", ids);
+            }
+            Map<String, Integer> itemCounts = new HashMap<>();
+            if (!removedItems.isEmpty()) {
+                List<Object[]> deletes = new ArrayList<>();
+                removedItems.forEach(item -> deletes.add(new Object[]{item.get(0), item.get(1)}));
+                int[] deleted = jdbcTemplate.batchUpdate(
+                        "DELETE FROM " + SHADOW_ITEM_TABLE + " WHERE cart_id = ? AND article = ?", deletes
+                );
+                for (int i = 0; i < deleted.length; i++) {
+                    itemCounts.merge((String) deletes.get(i)[0], -Math.max(deleted[i], 0), Integer::sum);
+                }
+            }
+            List<Object[]> itemInserts = new ArrayList<>();
+            addedItems.forEach((item, sequenceNumber) -> {
+                itemInserts.add(new Object[]{item.get(0), item.get(1), sequenceNumber});
+                itemCounts.merge(item.get(0), 1, Integer::sum);
+            });
+            List<Object[]> summaryInserts = new ArrayList<>();
+            startedCarts.forEach((id, customer) -> summaryInserts.add(
+                    new Object[]{id, customer, Optional.ofNullable(itemCounts.remove(id)).orElse(0)}
+            ));
+            List<Object[]> itemCountUpdates = new ArrayList<>();
+            itemCounts.forEach((id, delta) -> {
+                if (delta != 0) {
+                    itemCountUpdates.add(new Object[]{delta, id});
+                }
+            });
+            jdbcTemplate.batchUpdate(
+                    "INSERT INTO " + SHADOW_SUMMARY_TABLE + " (id, customer, item_count) VALUES (?, ?, ?)",
+                    summaryInserts
+            );
+            jdbcTemplate.batchUpdate(
+                    "INSERT INTO " + SHADOW_ITEM_TABLE + " (cart_id, article, sequence_number) VALUES (?, ?, ?)",
+                    itemInserts
+            );
+            jdbcTemplate.batchUpdate(
+                    "UPDATE " + SHADOW_SUMMARY_TABLE + " SET item_count = item_count + ? WHERE id = ?",
+                    itemCountUpdates
+            );
+            startedCarts.clear();
+            addedItems.clear();
+            removedItems.clear();
+            canceledCarts.clear();
+        }
+    }
+}
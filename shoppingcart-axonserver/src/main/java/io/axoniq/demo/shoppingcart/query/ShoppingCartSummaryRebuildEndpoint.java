@@ -0,0 +1,42 @@
+package io.axoniq.demo.shoppingcart.query;
+
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.boot.actuate.endpoint.annotation.WriteOperation;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Shows whether the shopping cart summaries are being rebuilt, and starts rebuilding them. While rebuilding, queries are
+ * answered from the current summaries, which are kept up to date until the rebuilt ones are swapped in:
+ * <pre>
+ * curl -X POST http://localhost:8083/actuator/summaryrebuild
+ * </pre>
+ */
+@Endpoint(id = "summaryrebuild")
+public class ShoppingCartSummaryRebuildEndpoint {
+
+    private final ShoppingCartSummaryRebuild rebuild;
+
+    public ShoppingCartSummaryRebuildEndpoint(ShoppingCartSummaryRebuild rebuild) {
+        this.rebuild = rebuild;
+    }
+
+    @ReadOperation
+    public Map<String, Object> rebuild() {
+        Map<String, Object> rebuild = new LinkedHashMap<>();
+        rebuild.put("rebuilding", this.rebuild.isRebuilding());
+        this.rebuild.getStartedAt().ifPresent(startedAt -> rebuild.put("startedAt", startedAt.toString()));
+        return rebuild;
+    }
+
+    /**
+     * Starts rebuilding the summaries, unless they are being rebuilt already.
+     */
+    @WriteOperation
+    public Map<String, Object> start() {
+        rebuild.rebuild();
+        return rebuild();
+    }
+}
@@ -0,0 +1,30 @@
+package io.axoniq.demo.shoppingcart.query;
+
+import org.axonframework.eventhandling.pooled.PooledStreamingEventProcessor;
+
+/**
+ * The "shoppingcart-summary-rebuild" processor, a {@link PooledStreamingEventProcessor} which only runs while the
+ * summaries are rebuilt. It is not started along with the other processors, so a node that isn't rebuilding never
+ * claims its segments, reads events for it or writes its tokens. The {@link ShoppingCartSummaryRebuild} starts it when
+ * a rebuild starts, or carries on after a restart, and shuts it down again once the rebuilt summaries are swapped in.
+ */
+public class ShoppingCartSummaryRebuildProcessor extends PooledStreamingEventProcessor {
+
+    public ShoppingCartSummaryRebuildProcessor(PooledStreamingEventProcessor.Builder builder) {
+        super(builder);
+    }
+
+    /**
+     * Ignored, as this is called when the application starts.
+     */
+    @Override
+    public void start() {
+    }
+
+    /**
+     * Starts processing, from the tokens of the processor.
+     */
+    void startRebuilding() {
+        super.start();
+    }
+}
@@ -0,0 +1,48 @@
+package io.axoniq.demo.shoppingcart.query;
+
+import io.axoniq.demo.shoppingcart.api.ArticleAddedEvent;
+import io.axoniq.demo.shoppingcart.api.ArticleRemovedEvent;
+import io.axoniq.demo.shoppingcart.api.ShoppingCartCanceledEvent;
+import io.axoniq.demo.shoppingcart.api.ShoppingCartStartedEvent;
+import org.axonframework.config.ProcessingGroup;
+import org.axonframework.eventhandling.EventHandler;
+import org.axonframework.eventhandling.SequenceNumber;
+import org.springframework.context.annotation.Profile;
+import org.springframework.stereotype.Service;
+
+/**
+ * Replays the events into the shadow tables of a {@link ShoppingCartSummaryRebuild}, in a processor of its own, so the
+ * summaries are rebuilt while the {@link ShoppingCartSummaryProjection} keeps the current ones up to date. Nothing is
+ * emitted to subscriptions, and the events are left alone while no rebuild is in progress.
+ */
+@Profile("query")
+@Service
+@ProcessingGroup(ShoppingCartSummaryRebuild.REBUILD_PROCESSOR_NAME)
+public class ShoppingCartSummaryRebuildProjection {
+
+    private final ShoppingCartSummaryRebuild rebuild;
+
+    public ShoppingCartSummaryRebuildProjection(ShoppingCartSummaryRebuild rebuild) {
+        this.rebuild = rebuild;
+    }
+
+    @EventHandler
+    public void on(ShoppingCartStartedEvent event) {
+        rebuild.started(event.getId(), event.getCustomer());
+    }
+
+    @EventHandler
+    public void on(ArticleAddedEvent event, @SequenceNumber long sequenceNumber) {
+        rebuild.added(event.getId(), event.getArticle(), sequenceNumber);
+    }
+
+    @EventHandler
+    public void on(ArticleRemovedEvent event) {
+        rebuild.removed(event.getId(), event.getArticle());
+    }
+
+    @EventHandler
+    public void on(ShoppingCartCanceledEvent event) {
+        rebuild.canceled(event.getId());
+    }
+}
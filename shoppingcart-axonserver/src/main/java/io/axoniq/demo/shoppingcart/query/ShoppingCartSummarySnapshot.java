@@ -0,0 +1,384 @@
+package io.axoniq.demo.shoppingcart.query;
+
+import org.axonframework.config.EventProcessingConfiguration;
+import org.axonframework.eventhandling.EventTrackerStatus;
+import org.axonframework.eventhandling.StreamingEventProcessor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Profile;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowCallbackHandler;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.invoke.MethodHandles;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import javax.annotation.PostConstruct;
+import javax.persistence.EntityManagerFactory;
+
+/**
+ * Exports the shopping cart summaries, together with the tokens of the "shoppingcart-summary" processor, to a snapshot
+ * file, and imports such a file on start up of a fresh query node, so it only has to handle the events after the
+ * snapshot rather than replaying all of them. A snapshot holds the tokens, the summaries, their items and the archived
+ * carts, as a gzipped stream of tagged records, which is written and read row by row, so neither side holds the read
+ * model in memory.
+ * <p>
+ * Snapshots are only exported by a node which has claimed all segments of the processor. The processor is shut down
+ * while exporting, and the tokens are locked while the snapshot is written, so no other node changes the summaries
+ * meanwhile and the summaries and the tokens match. The lock is released before the processor is started again, so
+ * other nodes may claim some of the segments in between, which only affects who handles the events afterwards. Queries
+ * keep being answered in the meantime. Snapshots are written into the configured export directory only, by file name.
+ * A snapshot is imported from the configured file before the processor starts, and only into a database which has no
+ * summaries and no tokens of the processor yet: on later start ups, the file is ignored.
+ */
+@Profile("query")
+@Component
+public class ShoppingCartSummarySnapshot {
+
+    private static final Logger logger = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+
+    private static final String PROCESSOR_NAME = "shoppingcart-summary";
+    private static final String FORMAT = "shoppingcart-summary-snapshot";
+    private static final int VERSION = 1;
+    private static final int BATCH_SIZE = 1000;
+
+    private static final byte END = 0;
+    private static final byte TOKEN = 1;
+    private static final byte SUMMARY = 2;
+    private static final byte ITEM = 3;
+    private static final byte ARCHIVED_CART = 4;
+
+    private final EventProcessingConfiguration eventProcessingConfiguration;
+    private final JdbcTemplate jdbcTemplate;
+    private final TransactionTemplate transactionTemplate;
+    private final ShoppingCartSummaryRebuild rebuild;
+    private final ArchivedShoppingCartIds archivedIds;
+    private final Path exportDirectory;
+    private final String importFile;
+
+    /*
+     * The EntityManagerFactory isn't used, but makes sure the tables have been created before importing.
+     */
+    public ShoppingCartSummarySnapshot(@SuppressWarnings("unused") EntityManagerFactory entityManagerFactory,
+                                       EventProcessingConfiguration eventProcessingConfiguration,
+                                       JdbcTemplate jdbcTemplate,
+                                       PlatformTransactionManager transactionManager,
+                                       ShoppingCartSummaryRebuild rebuild,
+                                       ArchivedShoppingCartIds archivedIds,
+                                       @Value("${shoppingcart.snapshot.export-directory:./snapshots}") String exportDirectory,
+                                       @Value("${shoppingcart.snapshot.import:}") String importFile) {
+        this.eventProcessingConfiguration = eventProcessingConfiguration;
+        this.jdbcTemplate = jdbcTemplate;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.rebuild = rebuild;
+        this.archivedIds = archivedIds;
+        this.exportDirectory = Paths.get(exportDirectory);
+        this.importFile = importFile;
+    }
+
+    /**
+     * Writes a snapshot to the file with the given name in the export directory, replacing it once the snapshot is
+     * complete, and returns the number of records written, by type.
+     */
+    public synchronized Map<String, Long> export(String fileName) {
+        if (fileName == null || fileName.isEmpty() || fileName.contains("/") || fileName.contains("\\")
+                || fileName.contains("..")) {
+            throw new IllegalArgumentException("Not a plain file name: " + fileName);
+        }
+        if (rebuild.isRebuilding()) {
+            throw new IllegalStateException("The shopping cart summaries are being rebuilt");
+        }
+        StreamingEventProcessor processor =
+                eventProcessingConfiguration.eventProcessor(PROCESSOR_NAME, StreamingEventProcessor.class)
+                                            .orElseThrow(() -> new IllegalStateException(
+                                                    "There is no streaming processor named " + PROCESSOR_NAME
+                                            ));
+        if (!claimsAllSegments(processor)) {
+            throw new IllegalStateException("Snapshots can only be exported by a node which claims all segments");
+        }
+        Path file = exportDirectory.resolve(fileName);
+        try {
+            Files.createDirectories(exportDirectory);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to create the export directory " + exportDirectory, e);
+        }
+        Path tempFile = file.resolveSibling(file.getFileName() + ".tmp");
+        long start = System.currentTimeMillis();
+        processor.shutDown();
+        try {
+            Map<String, Long> counts;
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                    new GZIPOutputStream(Files.newOutputStream(tempFile))))) {
+                counts = transactionTemplate.execute(status -> write(out));
+            }
+            Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING);
+            logger.info("Exported a snapshot of the shopping cart summaries to {} in {}ms: {}",
+                        file, System.currentTimeMillis() - start, counts);
+            return counts;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to export a snapshot to " + file, e);
+        } finally {
+            processor.start();
+        }
+    }
+
+    /*
+     * The header, followed by the records of the tokens, the summaries, their items and the archived carts, and an end
+     * marker, so a truncated file is noticed on import.
+     */
+    private Map<String, Long> write(DataOutputStream out) {
+        Map<String, Long> counts = new LinkedHashMap<>();
+        List<String> owners = jdbcTemplate.queryForList(
+                "SELECT owner FROM token_entry WHERE processor_name = ? FOR UPDATE", String.class, PROCESSOR_NAME
+        );
+        if (owners.stream().anyMatch(Objects::nonNull)) {
+            throw new IllegalStateException("Segments have been claimed by another node since the processor shut down");
+        }
+        try {
+            out.writeUTF(FORMAT);
+            out.writeInt(VERSION);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        counts.put("tokens", write(out, TOKEN,
+                                   "SELECT segment, token, token_type, timestamp FROM token_entry "
+                                   + "WHERE processor_name = ?",
+                                   row -> {
+                                       out.writeInt(row.getInt("segment"));
+                                       writeBytes(out, row.getBytes("token"));
+                                       writeString(out, row.getString("token_type"));
+                                       writeString(out, row.getString("timestamp"));
+                                   },
+                                   PROCESSOR_NAME));
+        counts.put("summaries", write(out, SUMMARY, "SELECT id, customer, item_count FROM shopping_cart_summary",
+                                      row -> {
+                                          writeString(out, row.getString("id"));
+                                          writeString(out, row.getString("customer"));
+                                          out.writeInt(row.getInt("item_count"));
+                                      }));
+        counts.put("items", write(out, ITEM, "SELECT cart_id, article, sequence_number FROM shopping_cart_item",
+                                  row -> {
+                                      writeString(out, row.getString("cart_id"));
+                                      writeString(out, row.getString("article"));
+                                      out.writeLong(row.getLong("sequence_number"));
+                                  }));
+        counts.put("archivedCarts", write(out, ARCHIVED_CART,
+                                          "SELECT id, customer, items, canceled_at FROM archived_shopping_cart",
+                                          row -> {
+                                              writeString(out, row.getString("id"));
+                                              writeString(out, row.getString("customer"));
+                                              writeString(out, row.getString("items"));
+                                              Timestamp canceledAt = row.getTimestamp("canceled_at");
+                                              out.writeBoolean(canceledAt != null);
+                                              if (canceledAt != null) {
+                                                  out.writeLong(canceledAt.getTime());
+                                                  out.writeInt(canceledAt.getNanos());
+                                              }
+                                          }));
+        try {
+            out.writeByte(END);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return counts;
+    }
+
+    /*
+     * Segments are claimed with a mask: a segment with mask m holds 1 / (m + 1) of the carts.
+     */
+    private static boolean claimsAllSegments(StreamingEventProcessor processor) {
+        return processor.processingStatus()
+                        .values()
+                        .stream()
+                        .map(EventTrackerStatus::getSegment)
+                        .mapToDouble(segment -> 1.0 / (segment.getMask() + 1))
+                        .sum() == 1.0;
+    }
+
+    private long write(DataOutputStream out, byte type, String sql, RowWriter rowWriter, Object... args) {
+        long[] count = {0};
+        jdbcTemplate.query(sql, (RowCallbackHandler) row -> {
+            try {
+                out.writeByte(type);
+                rowWriter.write(row);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            count[0]++;
+        }, args);
+        return count[0];
+    }
+
+    /*
+     * Runs before the event processors are started, as the imported tokens are where the processor should start.
+     */
+    @PostConstruct
+    public void importOnStartUp() {
+        if (importFile.isEmpty()) {
+            return;
+        }
+        Path file = Paths.get(importFile);
+        if (!isFresh()) {
+            logger.info("Not importing the snapshot in {}, as there are shopping cart summaries or tokens already",
+                        file);
+            return;
+        }
+        long start = System.currentTimeMillis();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new GZIPInputStream(Files.newInputStream(file))))) {
+            Map<String, Long> counts = transactionTemplate.execute(status -> read(in));
+            archivedIds.reload();
+            logger.info("Imported a snapshot of the shopping cart summaries from {} in {}ms: {}",
+                        file, System.currentTimeMillis() - start, counts);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to import the snapshot in " + file, e);
+        }
+    }
+
+    private boolean isFresh() {
+        Integer summaries = jdbcTemplate.queryForObject("SELECT COUNT(*) FROM shopping_cart_summary", Integer.class);
+        Integer tokens = jdbcTemplate.queryForObject(
+                "SELECT COUNT(*) FROM token_entry WHERE processor_name = ?", Integer.class, PROCESSOR_NAME
+        );
+        return summaries != null && summaries == 0 && tokens != null && tokens == 0;
+    }
+
+    private Map<String, Long> read(DataInputStream in) {
+        Map<String, Long> counts = new LinkedHashMap<>();
+        Batch tokens = new Batch("tokens", "INSERT INTO token_entry "
+                + "(processor_name, segment, token, token_type, timestamp) VALUES (?, ?, ?, ?, ?)");
+        Batch summaries = new Batch("summaries",
+                                    "INSERT INTO shopping_cart_summary (id, customer, item_count) VALUES (?, ?, ?)");
+        Batch items = new Batch("items",
+                                "INSERT INTO shopping_cart_item (cart_id, article, sequence_number) VALUES (?, ?, ?)");
+        Batch archivedCarts = new Batch("archivedCarts", "INSERT INTO archived_shopping_cart "
+                + "(id, customer, items, canceled_at) VALUES (?, ?, ?, ?)");
+        try {
+            if (!FORMAT.equals(in.readUTF()) || in.readInt() != VERSION) {
+                throw new IllegalArgumentException(
+                        "Not a snapshot of the shopping cart summaries, or of another version");
+            }
+            for (byte type = in.readByte(); type != END; type = in.readByte()) {
+                switch (type) {
+                    case TOKEN:
+                        tokens.add(PROCESSOR_NAME, in.readInt(), readBytes(in), readString(in), readString(in));
+                        break;
+                    case SUMMARY:
+                        summaries.add(readString(in), readString(in), in.readInt());
+                        break;
+                    case ITEM:
+                        items.add(readString(in), readString(in), in.readLong());
+                        break;
+                    case ARCHIVED_CART:
+                        archivedCarts.add(readString(in), readString(in), readString(in), readTimestamp(in));
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown record type " + type + " in snapshot");
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        for (Batch batch : List.of(tokens, summaries, items, archivedCarts)) {
+            batch.flush();
+            counts.put(batch.name, batch.count);
+        }
+        return counts;
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        writeBytes(out, value == null ? null : value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = readBytes(in);
+        return bytes == null ? null : new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /*
+     * Prefixed by their length, or -1 for null.
+     */
+    private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+        if (bytes == null) {
+            out.writeInt(-1);
+        } else {
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    private static Timestamp readTimestamp(DataInputStream in) throws IOException {
+        if (!in.readBoolean()) {
+            return null;
+        }
+        Timestamp timestamp = new Timestamp(in.readLong());
+        timestamp.setNanos(in.readInt());
+        return timestamp;
+    }
+
+    private interface RowWriter {
+
+        void write(ResultSet row) throws IOException, SQLException;
+    }
+
+    /*
+     * Rows of one table, inserted in JDBC batches of the batch size.
+     */
+    private class Batch {
+
+        private final String name;
+        private final String sql;
+        private final List<Object[]> rows = new ArrayList<>();
+        private long count;
+
+        private Batch(String name, String sql) {
+            this.name = name;
+            this.sql = sql;
+        }
+
+        private void add(Object... row) {
+            rows.add(row);
+            count++;
+            if (rows.size() >= BATCH_SIZE) {
+                flush();
+            }
+        }
+
+        private void flush() {
+            jdbcTemplate.batchUpdate(sql, rows);
+            rows.clear();
+        }
+    }
+}
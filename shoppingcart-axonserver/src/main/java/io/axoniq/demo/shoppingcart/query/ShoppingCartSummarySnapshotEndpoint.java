@@ -0,0 +1,36 @@
+package io.axoniq.demo.shoppingcart.query;
+
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.WriteOperation;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Exports a snapshot of the shopping cart summaries to a file in the export directory of this node, to be imported by
+ * a new query node through {@code shoppingcart.snapshot.import}:
+ * <pre>
+ * curl -X POST -H 'Content-Type: application/json' -d '{"name":"summaries.snapshot"}' \
+ *      http://localhost:8083/actuator/summarysnapshot
+ * </pre>
+ */
+@Endpoint(id = "summarysnapshot")
+public class ShoppingCartSummarySnapshotEndpoint {
+
+    private final ShoppingCartSummarySnapshot snapshot;
+
+    public ShoppingCartSummarySnapshotEndpoint(ShoppingCartSummarySnapshot snapshot) {
+        this.snapshot = snapshot;
+    }
+
+    /**
+     * Exports a snapshot to the file with the given name, which may not contain a path.
+     */
+    @WriteOperation
+    public Map<String, Object> export(String name) {
+        Map<String, Object> export = new LinkedHashMap<>();
+        export.put("name", name);
+        export.putAll(snapshot.export(name));
+        return export;
+    }
+}
@@ -0,0 +1,108 @@
+package io.axoniq.demo.shoppingcart.serialization;
+
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.axonframework.serialization.Converter;
+import org.axonframework.serialization.SerializedObject;
+import org.axonframework.serialization.SerializedType;
+import org.axonframework.serialization.Serializer;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures a {@link Serializer}: the time taken to serialize and deserialize, as the
+ * {@code shoppingcart.serializer.serialize} and {@code shoppingcart.serializer.deserialize} timers, and the number of
+ * bytes objects are serialized to, as {@code shoppingcart.serializer.bytes}. All are tagged with the {@code role} of
+ * the serializer (events, messages or snapshots) and its {@code format}, so formats can be compared side by side.
+ */
+public class MeteredSerializer implements Serializer {
+
+    private final Serializer delegate;
+    private final Timer serializeTimer;
+    private final Timer deserializeTimer;
+    private final DistributionSummary bytes;
+
+    public MeteredSerializer(Serializer delegate, String role, String format, MeterRegistry meterRegistry) {
+        this.delegate = delegate;
+        this.serializeTimer = Timer.builder("shoppingcart.serializer.serialize")
+                                   .tag("role", role)
+                                   .tag("format", format)
+                                   .register(meterRegistry);
+        this.deserializeTimer = Timer.builder("shoppingcart.serializer.deserialize")
+                                     .tag("role", role)
+                                     .tag("format", format)
+                                     .register(meterRegistry);
+        this.bytes = DistributionSummary.builder("shoppingcart.serializer.bytes")
+                                        .baseUnit("bytes")
+                                        .tag("role", role)
+                                        .tag("format", format)
+                                        .register(meterRegistry);
+    }
+
+    @Override
+    public <T> SerializedObject<T> serialize(Object object, Class<T> expectedRepresentation) {
+        long start = System.nanoTime();
+        SerializedObject<T> serialized = delegate.serialize(object, expectedRepresentation);
+        serializeTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        Object data = serialized.getData();
+        if (data instanceof byte[]) {
+            bytes.record(((byte[]) data).length);
+        } else if (data instanceof String) {
+            bytes.record(utf8Length((String) data));
+        }
+        return serialized;
+    }
+
+    /*
+     * The number of bytes the string takes in UTF-8, as it's written, counted without encoding it.
+     */
+    private static int utf8Length(String string) {
+        int length = 0;
+        for (int i = 0; i < string.length(); i++) {
+            char c = string.charAt(i);
+            if (c < 0x80) {
+                length++;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < string.length()
+                    && Character.isLowSurrogate(string.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    @Override
+    public <S, T> T deserialize(SerializedObject<S> serializedObject) {
+        long start = System.nanoTime();
+        try {
+            return delegate.deserialize(serializedObject);
+        } finally {
+            deserializeTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    @Override
+    public <T> boolean canSerializeTo(Class<T> expectedRepresentation) {
+        return delegate.canSerializeTo(expectedRepresentation);
+    }
+
+    @Override
+    public Class classForType(SerializedType type) {
+        return delegate.classForType(type);
+    }
+
+    @Override
+    public SerializedType typeForClass(Class type) {
+        return delegate.typeForClass(type);
+    }
+
+    @Override
+    public Converter getConverter() {
+        return delegate.getConverter();
+    }
+}
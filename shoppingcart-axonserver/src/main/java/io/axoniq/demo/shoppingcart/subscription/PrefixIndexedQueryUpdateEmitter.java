@@ -0,0 +1,619 @@
+package io.axoniq.demo.shoppingcart.subscription;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.axonframework.common.AxonConfigurationException;
+import org.axonframework.common.AxonThreadFactory;
+import org.axonframework.common.Registration;
+import org.axonframework.messaging.MessageDispatchInterceptor;
+import org.axonframework.messaging.unitofwork.CurrentUnitOfWork;
+import org.axonframework.messaging.unitofwork.UnitOfWork;
+import org.axonframework.monitoring.MessageMonitor;
+import org.axonframework.monitoring.NoOpMessageMonitor;
+import org.axonframework.queryhandling.GenericSubscriptionQueryUpdateMessage;
+import org.axonframework.queryhandling.QueryUpdateEmitter;
+import org.axonframework.queryhandling.SubscriptionQueryBackpressure;
+import org.axonframework.queryhandling.SubscriptionQueryMessage;
+import org.axonframework.queryhandling.SubscriptionQueryUpdateMessage;
+import org.axonframework.queryhandling.UpdateHandlerRegistration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import reactor.core.publisher.EmitterProcessor;
+import reactor.core.publisher.FluxSink;
+import reactor.core.publisher.Sinks;
+
+import java.lang.invoke.MethodHandles;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BinaryOperator;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+
+/**
+ * A query update emitter which indexes subscription queries by the prefix they filter on, so an update keyed by an id
+ * is emitted to the subscriptions whose prefix it starts with, without testing a filter against every subscription.
+ * The subscriptions of each indexed query type are kept in a trie of their prefixes: the matching subscriptions are
+ * found by walking down along the key, taking as long as the key is, regardless of the number of subscriptions.
+ * <p>
+ * Updates emitted with a predicate, and subscriptions of query types which aren't indexed, work like they do with the
+ * {@link org.axonframework.queryhandling.SimpleQueryUpdateEmitter}: the predicate is tested against all subscriptions.
+ * Like there, updates emitted while a unit of work is in progress are sent once it commits.
+ * <p>
+ * Updates keyed by an id are coalesced: the updates for the same id and query type emitted in a unit of work, e.g. a
+ * batch of events, are sent as one, once it commits, and only if there are subscriptions to send it to. Given a
+ * coalesce window, updates are held back for up to that long after their unit of work committed, and updates for the
+ * same id within the window are coalesced as well. By default, a later update replaces the earlier one, so each
+ * subscriber gets only the latest state; updates describing a change are merged by the function they're emitted with
+ * instead. Sent and coalesced updates are counted as {@code shoppingcart.query.updates}, tagged with the
+ * {@code result}: emitted or suppressed.
+ * <p>
+ * The time taken to find the subscriptions an update goes to and send it is published as the
+ * {@code shoppingcart.query.updates.emit} timer, tagged by the {@code lookup}: prefix or scan, and by the number of
+ * active {@code subscriptions}, so both lookups can be compared as the number of subscriptions grows. The number of
+ * active subscriptions is published as {@code shoppingcart.query.subscriptions}.
+ */
+public class PrefixIndexedQueryUpdateEmitter implements QueryUpdateEmitter {
+
+    private static final Logger logger = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+
+    private static final String QUERY_UPDATE_TASKS = "/update-tasks";
+    private static final String KEYED_UPDATES = "/keyed-updates";
+    private static final String[] SUBSCRIPTION_COUNTS = {"0-10", "11-100", "101-1000", "1001+"};
+
+    private final MessageMonitor<? super SubscriptionQueryUpdateMessage<?>> updateMessageMonitor;
+    private final Map<Class<?>, Function<Object, String>> prefixes;
+    private final Duration coalesceWindow;
+
+    private final Map<String, UpdateHandler> updateHandlers = new ConcurrentHashMap<>();
+    private final Map<Class<?>, Node> indexes = new ConcurrentHashMap<>();
+    private final List<MessageDispatchInterceptor<? super SubscriptionQueryUpdateMessage<?>>> dispatchInterceptors =
+            new CopyOnWriteArrayList<>();
+    private final Map<UpdateKey, KeyedUpdate> pending = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService executor;
+    private final Counter emitted;
+    private final Counter suppressed;
+    private final Timer[] prefixEmitTimers;
+    private final Timer[] scanEmitTimers;
+
+    protected PrefixIndexedQueryUpdateEmitter(Builder builder) {
+        builder.validate();
+        this.updateMessageMonitor = builder.updateMessageMonitor;
+        this.prefixes = new HashMap<>(builder.prefixes);
+        this.coalesceWindow = builder.coalesceWindow;
+        MeterRegistry meterRegistry = builder.meterRegistry;
+        prefixes.keySet().forEach(queryType -> indexes.put(queryType, new Node()));
+        Gauge.builder("shoppingcart.query.subscriptions", updateHandlers, Map::size)
+             .baseUnit("subscriptions")
+             .register(meterRegistry);
+        this.emitted = Counter.builder("shoppingcart.query.updates")
+                              .baseUnit("updates")
+                              .tag("result", "emitted")
+                              .register(meterRegistry);
+        this.suppressed = Counter.builder("shoppingcart.query.updates")
+                                 .baseUnit("updates")
+                                 .tag("result", "suppressed")
+                                 .register(meterRegistry);
+        this.prefixEmitTimers = emitTimers(meterRegistry, "prefix");
+        this.scanEmitTimers = emitTimers(meterRegistry, "scan");
+        this.executor = Executors.newSingleThreadScheduledExecutor(new AxonThreadFactory("queryUpdates"));
+        if (!coalesceWindow.isZero()) {
+            executor.scheduleWithFixedDelay(this::flush, coalesceWindow.toMillis(), coalesceWindow.toMillis(),
+                                            TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private static Timer[] emitTimers(MeterRegistry meterRegistry, String lookup) {
+        Timer[] timers = new Timer[SUBSCRIPTION_COUNTS.length];
+        for (int i = 0; i < SUBSCRIPTION_COUNTS.length; i++) {
+            timers[i] = Timer.builder("shoppingcart.query.updates.emit")
+                             .description("Time taken to find the subscriptions an update goes to, and send it to them")
+                             .tag("lookup", lookup)
+                             .tag("subscriptions", SUBSCRIPTION_COUNTS[i])
+                             .register(meterRegistry);
+        }
+        return timers;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * Emits the given update to the subscriptions of the given query type whose prefix the given key starts with,
+     * unless a later update for the same key replaces it. The query type must have been indexed by its prefix.
+     */
+    public <Q, U> void emit(Class<Q> queryType, String key, U update) {
+        emit(queryType, key, update, (earlier, later) -> later);
+    }
+
+    /**
+     * Emits the given update to the subscriptions of the given query type whose prefix the given key starts with.
+     * When updates for the same key are coalesced, the given function merges the earlier update with the later one,
+     * e.g. for updates describing a change rather than the resulting state. The query type must have been indexed by
+     * its prefix.
+     */
+    @SuppressWarnings("unchecked")
+    public <Q, U> void emit(Class<Q> queryType, String key, U update, BinaryOperator<U> merge) {
+        if (update == null) {
+            return;
+        }
+        UpdateKey updateKey = new UpdateKey(index(queryType), key);
+        KeyedUpdate keyedUpdate = new KeyedUpdate(update, (BinaryOperator<Object>) merge);
+        if (!inStartedPhaseOfUnitOfWork()) {
+            publish(updateKey, keyedUpdate);
+            return;
+        }
+        UnitOfWork<?> unitOfWork = CurrentUnitOfWork.get();
+        Map<UpdateKey, KeyedUpdate> updates = unitOfWork.getOrComputeResource(this + KEYED_UPDATES, resourceKey -> {
+            Map<UpdateKey, KeyedUpdate> keyedUpdates = new LinkedHashMap<>();
+            unitOfWork.afterCommit(u -> keyedUpdates.forEach(this::publish));
+            return keyedUpdates;
+        });
+        /* Only counted as suppressed when there are subscriptions it would have been sent to. */
+        if (updates.merge(updateKey, keyedUpdate, KeyedUpdate::followedBy) != keyedUpdate
+                && updateKey.index.hasMatching(key)) {
+            suppressed.increment();
+        }
+    }
+
+    /*
+     * Sent right away without a coalesce window, or else held back until the next flush, merged with the update for
+     * the same key held back before.
+     */
+    private void publish(UpdateKey updateKey, KeyedUpdate update) {
+        if (!updateKey.index.hasMatching(updateKey.key)) {
+            return;
+        }
+        if (coalesceWindow.isZero()) {
+            send(updateKey, update);
+        } else if (pending.merge(updateKey, update, KeyedUpdate::followedBy) != update) {
+            suppressed.increment();
+        }
+    }
+
+    private void send(UpdateKey updateKey, KeyedUpdate update) {
+        long start = System.nanoTime();
+        SubscriptionQueryUpdateMessage<?> message =
+                intercept(GenericSubscriptionQueryUpdateMessage.asUpdateMessage(update.payload));
+        for (UpdateHandler updateHandler : updateKey.index.matching(updateKey.key)) {
+            doEmit(updateHandler, message);
+        }
+        emitted.increment();
+        recordEmit(prefixEmitTimers, start);
+    }
+
+    /*
+     * Each held back update is removed before it's sent, so an update for the same key coming in meanwhile is held
+     * back until the next flush.
+     */
+    private void flush() {
+        try {
+            for (UpdateKey updateKey : pending.keySet()) {
+                KeyedUpdate update = pending.remove(updateKey);
+                if (update != null) {
+                    send(updateKey, update);
+                }
+            }
+        } catch (Exception e) {
+            logger.warn("Unable to send the held back query updates", e);
+        }
+    }
+
+    /**
+     * Sends the updates which are held back, and stops.
+     */
+    public void shutDown() {
+        executor.shutdownNow();
+        flush();
+    }
+
+    private Node index(Class<?> queryType) {
+        Node index = indexes.get(queryType);
+        if (index == null) {
+            throw new IllegalArgumentException("Queries of type " + queryType.getName() + " aren't indexed by prefix");
+        }
+        return index;
+    }
+
+    @Override
+    public <U> void emit(Predicate<SubscriptionQueryMessage<?, ?, U>> filter, SubscriptionQueryUpdateMessage<U> update) {
+        SubscriptionQueryUpdateMessage<U> message = intercept(update);
+        runOnAfterCommitOrNow(() -> {
+            long start = System.nanoTime();
+            for (UpdateHandler updateHandler : matching(filter)) {
+                doEmit(updateHandler, message);
+            }
+            recordEmit(scanEmitTimers, start);
+        });
+    }
+
+    @Override
+    public void complete(Predicate<SubscriptionQueryMessage<?, ?, ?>> filter) {
+        runOnAfterCommitOrNow(() -> matching(filter).forEach(updateHandler -> {
+            try {
+                updateHandler.sink.complete();
+            } catch (Exception e) {
+                emitError(updateHandler, e);
+            }
+        }));
+    }
+
+    @Override
+    public void completeExceptionally(Predicate<SubscriptionQueryMessage<?, ?, ?>> filter, Throwable cause) {
+        runOnAfterCommitOrNow(() -> matching(filter).forEach(updateHandler -> emitError(updateHandler, cause)));
+    }
+
+    @Override
+    public boolean queryUpdateHandlerRegistered(SubscriptionQueryMessage<?, ?, ?> query) {
+        return updateHandlers.containsKey(query.getIdentifier());
+    }
+
+    @SuppressWarnings("deprecation")
+    @Override
+    public <U> UpdateHandlerRegistration<U> registerUpdateHandler(SubscriptionQueryMessage<?, ?, ?> query,
+                                                                  SubscriptionQueryBackpressure backpressure,
+                                                                  int updateBufferSize) {
+        EmitterProcessor<SubscriptionQueryUpdateMessage<U>> processor = EmitterProcessor.create(updateBufferSize);
+        FluxSink<SubscriptionQueryUpdateMessage<U>> fluxSink = processor.sink(backpressure.getOverflowStrategy());
+        UpdateHandler updateHandler = register(query, new Sink() {
+            @SuppressWarnings("unchecked")
+            @Override
+            public void next(SubscriptionQueryUpdateMessage<?> update) {
+                fluxSink.next((SubscriptionQueryUpdateMessage<U>) update);
+            }
+
+            @Override
+            public void complete() {
+                fluxSink.complete();
+            }
+
+            @Override
+            public void error(Throwable cause) {
+                fluxSink.error(cause);
+            }
+        });
+        fluxSink.onDispose(() -> unregister(updateHandler));
+        return new UpdateHandlerRegistration<>(() -> unregister(updateHandler),
+                                               processor.replay(updateBufferSize).autoConnect(),
+                                               fluxSink::complete);
+    }
+
+    @Override
+    public <U> UpdateHandlerRegistration<U> registerUpdateHandler(SubscriptionQueryMessage<?, ?, ?> query,
+                                                                  int updateBufferSize) {
+        Sinks.Many<SubscriptionQueryUpdateMessage<U>> sink = Sinks.many().replay().limit(updateBufferSize);
+        UpdateHandler updateHandler = register(query, new Sink() {
+            @SuppressWarnings("unchecked")
+            @Override
+            public void next(SubscriptionQueryUpdateMessage<?> update) {
+                Sinks.EmitResult result;
+                do {
+                    result = sink.tryEmitNext((SubscriptionQueryUpdateMessage<U>) update);
+                } while (result == Sinks.EmitResult.FAIL_NON_SERIALIZED);
+                result.orThrow();
+            }
+
+            @Override
+            public void complete() {
+                Sinks.EmitResult result;
+                do {
+                    result = sink.tryEmitComplete();
+                } while (result == Sinks.EmitResult.FAIL_NON_SERIALIZED);
+                result.orThrow();
+            }
+
+            @Override
+            public void error(Throwable cause) {
+                Sinks.EmitResult result;
+                do {
+                    result = sink.tryEmitError(cause);
+                } while (result == Sinks.EmitResult.FAIL_NON_SERIALIZED);
+                result.orThrow();
+            }
+        });
+        return new UpdateHandlerRegistration<>(() -> unregister(updateHandler),
+                                               sink.asFlux()
+                                                   .doOnCancel(() -> unregister(updateHandler))
+                                                   .doOnTerminate(() -> unregister(updateHandler)),
+                                               updateHandler.sink::complete);
+    }
+
+    @Override
+    public Registration registerDispatchInterceptor(
+            MessageDispatchInterceptor<? super SubscriptionQueryUpdateMessage<?>> interceptor
+    ) {
+        dispatchInterceptors.add(interceptor);
+        return () -> dispatchInterceptors.remove(interceptor);
+    }
+
+    @Override
+    public Set<SubscriptionQueryMessage<?, ?, ?>> activeSubscriptions() {
+        return updateHandlers.values()
+                             .stream()
+                             .map(updateHandler -> updateHandler.query)
+                             .collect(Collectors.toSet());
+    }
+
+    /*
+     * Subscriptions of indexed query types are added to the node of their prefix, in the index of their type.
+     */
+    private UpdateHandler register(SubscriptionQueryMessage<?, ?, ?> query, Sink sink) {
+        Function<Object, String> prefix = prefixes.get(query.getPayloadType());
+        UpdateHandler updateHandler = new UpdateHandler(query, sink,
+                                                        prefix == null ? null : prefix.apply(query.getPayload()));
+        updateHandlers.put(query.getIdentifier(), updateHandler);
+        if (updateHandler.prefix != null) {
+            indexes.get(query.getPayloadType()).add(updateHandler.prefix, updateHandler);
+        }
+        return updateHandler;
+    }
+
+    /*
+     * Called once the subscription is canceled, completed or fails, which may happen more than once.
+     */
+    private boolean unregister(UpdateHandler updateHandler) {
+        boolean removed = updateHandlers.remove(updateHandler.query.getIdentifier(), updateHandler);
+        if (removed && updateHandler.prefix != null) {
+            indexes.get(updateHandler.query.getPayloadType()).remove(updateHandler.prefix, updateHandler);
+        }
+        return removed;
+    }
+
+    @SuppressWarnings("unchecked")
+    private <U> List<UpdateHandler> matching(Predicate<? super SubscriptionQueryMessage<?, ?, U>> filter) {
+        return updateHandlers.values()
+                             .stream()
+                             .filter(updateHandler -> filter.test((SubscriptionQueryMessage<?, ?, U>) updateHandler.query))
+                             .collect(Collectors.toList());
+    }
+
+    @SuppressWarnings("unchecked")
+    private <U> SubscriptionQueryUpdateMessage<U> intercept(SubscriptionQueryUpdateMessage<U> update) {
+        SubscriptionQueryUpdateMessage<U> intercepted = update;
+        for (MessageDispatchInterceptor<? super SubscriptionQueryUpdateMessage<?>> interceptor : dispatchInterceptors) {
+            intercepted = (SubscriptionQueryUpdateMessage<U>) interceptor.handle(intercepted);
+        }
+        return intercepted;
+    }
+
+    /*
+     * A subscription which can't take the update is canceled, like the SimpleQueryUpdateEmitter does.
+     */
+    private void doEmit(UpdateHandler updateHandler, SubscriptionQueryUpdateMessage<?> update) {
+        MessageMonitor.MonitorCallback monitorCallback = updateMessageMonitor.onMessageIngested(update);
+        try {
+            updateHandler.sink.next(update);
+            monitorCallback.reportSuccess();
+        } catch (Exception e) {
+            logger.info("An error occurred while trying to emit an update to a query '{}'. "
+                                + "The subscription will be cancelled. Exception summary: {}",
+                        updateHandler.query.getQueryName(), e.toString());
+            monitorCallback.reportFailure(e);
+            unregister(updateHandler);
+            emitError(updateHandler, e);
+        }
+    }
+
+    private void emitError(UpdateHandler updateHandler, Throwable cause) {
+        try {
+            updateHandler.sink.error(cause);
+        } catch (Exception e) {
+            logger.error("An error happened while trying to inform update handler about the error. Query: {}",
+                         updateHandler.query);
+        }
+    }
+
+    private void runOnAfterCommitOrNow(Runnable queryUpdateTask) {
+        if (inStartedPhaseOfUnitOfWork()) {
+            UnitOfWork<?> unitOfWork = CurrentUnitOfWork.get();
+            unitOfWork.getOrComputeResource(this + QUERY_UPDATE_TASKS, key -> {
+                List<Runnable> queryUpdateTasks = new ArrayList<>();
+                unitOfWork.afterCommit(u -> queryUpdateTasks.forEach(Runnable::run));
+                return queryUpdateTasks;
+            }).add(queryUpdateTask);
+        } else {
+            queryUpdateTask.run();
+        }
+    }
+
+    private boolean inStartedPhaseOfUnitOfWork() {
+        return CurrentUnitOfWork.isStarted() && CurrentUnitOfWork.get().phase() == UnitOfWork.Phase.STARTED;
+    }
+
+    private void recordEmit(Timer[] timers, long start) {
+        int subscriptions = updateHandlers.size();
+        int count = subscriptions <= 10 ? 0 : subscriptions <= 100 ? 1 : subscriptions <= 1000 ? 2 : 3;
+        timers[count].record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+    }
+
+    private interface Sink {
+
+        void next(SubscriptionQueryUpdateMessage<?> update);
+
+        void complete();
+
+        void error(Throwable cause);
+    }
+
+    private static class UpdateHandler {
+
+        private final SubscriptionQueryMessage<?, ?, ?> query;
+        private final Sink sink;
+        private final String prefix;
+
+        private UpdateHandler(SubscriptionQueryMessage<?, ?, ?> query, Sink sink, String prefix) {
+            this.query = query;
+            this.sink = sink;
+            this.prefix = prefix;
+        }
+    }
+
+    private static class KeyedUpdate {
+
+        private final Object payload;
+        private final BinaryOperator<Object> merge;
+
+        private KeyedUpdate(Object payload, BinaryOperator<Object> merge) {
+            this.payload = payload;
+            this.merge = merge;
+        }
+
+        private KeyedUpdate followedBy(KeyedUpdate later) {
+            return new KeyedUpdate(later.merge.apply(payload, later.payload), later.merge);
+        }
+    }
+
+    private static class UpdateKey {
+
+        private final Node index;
+        private final String key;
+
+        private UpdateKey(Node index, String key) {
+            this.index = index;
+            this.key = key;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+            UpdateKey other = (UpdateKey) o;
+            return index == other.index && key.equals(other.key);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(index, key);
+        }
+    }
+
+    /*
+     * A node of the trie of prefixes, holding the subscriptions for the prefix leading up to it. Nodes are kept once
+     * their subscriptions are gone, as prefixes are short and grids tend to be reopened with the same ones.
+     */
+    private static class Node {
+
+        private final Map<Character, Node> children = new ConcurrentHashMap<>();
+        private final Set<UpdateHandler> updateHandlers = ConcurrentHashMap.newKeySet();
+
+        private void add(String prefix, UpdateHandler updateHandler) {
+            Node node = this;
+            for (int i = 0; i < prefix.length(); i++) {
+                node = node.children.computeIfAbsent(prefix.charAt(i), c -> new Node());
+            }
+            node.updateHandlers.add(updateHandler);
+        }
+
+        private void remove(String prefix, UpdateHandler updateHandler) {
+            Node node = this;
+            for (int i = 0; i < prefix.length() && node != null; i++) {
+                node = node.children.get(prefix.charAt(i));
+            }
+            if (node != null) {
+                node.updateHandlers.remove(updateHandler);
+            }
+        }
+
+        private boolean hasMatching(String key) {
+            Node node = this;
+            for (int i = 0; node != null; i++) {
+                if (!node.updateHandlers.isEmpty()) {
+                    return true;
+                }
+                node = i < key.length() ? node.children.get(key.charAt(i)) : null;
+            }
+            return false;
+        }
+
+        /*
+         * The subscriptions of all prefixes of the given key, from the empty prefix up to the key itself.
+         */
+        private List<UpdateHandler> matching(String key) {
+            List<UpdateHandler> matching = new ArrayList<>(updateHandlers);
+            Node node = this;
+            for (int i = 0; i < key.length(); i++) {
+                node = node.children.get(key.charAt(i));
+                if (node == null) {
+                    break;
+                }
+                matching.addAll(node.updateHandlers);
+            }
+            return matching;
+        }
+    }
+
+    /**
+     * Builder for a {@link PrefixIndexedQueryUpdateEmitter}. Query types are indexed by the prefix given by the
+     * function they're indexed with.
+     */
+    public static class Builder {
+
+        private MessageMonitor<? super SubscriptionQueryUpdateMessage<?>> updateMessageMonitor =
+                NoOpMessageMonitor.INSTANCE;
+        private final Map<Class<?>, Function<Object, String>> prefixes = new HashMap<>();
+        private MeterRegistry meterRegistry = new SimpleMeterRegistry();
+        private Duration coalesceWindow = Duration.ZERO;
+
+        public Builder updateMessageMonitor(MessageMonitor<? super SubscriptionQueryUpdateMessage<?>> updateMessageMonitor) {
+            this.updateMessageMonitor = updateMessageMonitor;
+            return this;
+        }
+
+        /**
+         * Indexes the subscriptions of the given query type by the prefix the given function takes from the query.
+         */
+        public <Q> Builder indexBy(Class<Q> queryType, Function<? super Q, String> prefix) {
+            this.prefixes.put(queryType, query -> prefix.apply(queryType.cast(query)));
+            return this;
+        }
+
+        public Builder meterRegistry(MeterRegistry meterRegistry) {
+            this.meterRegistry = meterRegistry;
+            return this;
+        }
+
+        /**
+         * How long to hold back updates keyed by an id after their unit of work committed, so later updates for the
+         * same id are coalesced with them, defaults to zero: updates are then only coalesced within their unit of work.
+         */
+        public Builder coalesceWindow(Duration coalesceWindow) {
+            this.coalesceWindow = coalesceWindow;
+            return this;
+        }
+
+        protected void validate() throws AxonConfigurationException {
+            if (updateMessageMonitor == null) {
+                throw new AxonConfigurationException("The MessageMonitor may not be null");
+            }
+            if (meterRegistry == null) {
+                throw new AxonConfigurationException("The MeterRegistry may not be null");
+            }
+            if (coalesceWindow == null || coalesceWindow.isNegative()) {
+                throw new AxonConfigurationException("The coalesce window may not be negative");
+            }
+        }
+
+        public PrefixIndexedQueryUpdateEmitter build() {
+            return new PrefixIndexedQueryUpdateEmitter(this);
+        }
+    }
+}
@@ -0,0 +1,180 @@
+package io.axoniq.demo.shoppingcart.tracing;
+
+import com.lmax.disruptor.EventHandler;
+import com.lmax.disruptor.InsufficientCapacityException;
+import com.lmax.disruptor.RingBuffer;
+import com.lmax.disruptor.SleepingWaitStrategy;
+import com.lmax.disruptor.dsl.Disruptor;
+import com.lmax.disruptor.dsl.ProducerType;
+import org.axonframework.common.AxonThreadFactory;
+import org.axonframework.messaging.Message;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.invoke.MethodHandles;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Collects trace records of messages on a ring buffer, and writes them to the log on a background thread.
+ * <p>
+ * Threads handling messages never block on tracing: claiming a slot on the ring buffer is lock free, and when the
+ * buffer is full the record is dropped (and counted) rather than waited for. Which messages are traced is decided by
+ * a sampling rate per message type, falling back to a default rate. The decision is derived from the message
+ * identifier, so a message is either traced both when it is dispatched and when it is handled, or not at all.
+ * Tracing can be switched off and rates can be changed at runtime.
+ * <p>
+ * Only the type and identifier of a message are recorded, not its payload: a payload may still have to be
+ * deserialized, which would put that cost on the writing thread, and keeping a reference to it in the buffer would keep
+ * it from being collected. The identifier can be used to look up the message itself, e.g. in the event store.
+ */
+public class MessageTracer {
+
+    private static final Logger logger = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+
+    private final Disruptor<TraceRecord> disruptor;
+    private final RingBuffer<TraceRecord> ringBuffer;
+    private final Map<String, Double> samplingRates = new ConcurrentHashMap<>();
+    private final LongAdder traced = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private volatile boolean enabled;
+    private volatile double defaultSamplingRate;
+
+    public MessageTracer(int bufferSize, boolean enabled, double defaultSamplingRate,
+                         Map<String, Double> samplingRates) {
+        this.enabled = enabled;
+        this.defaultSamplingRate = defaultSamplingRate;
+        this.samplingRates.putAll(samplingRates);
+        this.disruptor = new Disruptor<>(TraceRecord::new, bufferSize, new AxonThreadFactory("MessageTracer"),
+                                         ProducerType.MULTI, new SleepingWaitStrategy());
+        this.disruptor.handleEventsWith(new TraceRecordWriter());
+        this.ringBuffer = disruptor.start();
+    }
+
+    /**
+     * Records the given stage of the given message, if tracing is enabled and the message is sampled.
+     *
+     * @param stage          {@code dispatch} or {@code handle}
+     * @param message        the message being traced
+     * @param durationMicros the time it took to handle the message, or {@code -1} when not applicable
+     * @param failure        the exception the message was handled with, if any
+     */
+    public void trace(String stage, Message<?> message, long durationMicros, Throwable failure) {
+        if (!enabled) {
+            return;
+        }
+        String messageType = message.getPayloadType().getSimpleName();
+        if (!isSampled(messageType, message)) {
+            return;
+        }
+        long sequence;
+        try {
+            sequence = ringBuffer.tryNext();
+        } catch (InsufficientCapacityException e) {
+            dropped.increment();
+            return;
+        }
+        try {
+            ringBuffer.get(sequence).set(System.currentTimeMillis(), stage, messageType, message.getIdentifier(),
+                                         durationMicros, failure);
+        } finally {
+            ringBuffer.publish(sequence);
+        }
+        traced.increment();
+    }
+
+    private boolean isSampled(String messageType, Message<?> message) {
+        double rate = samplingRate(messageType);
+        if (rate >= 1.0) {
+            return true;
+        } else if (rate <= 0.0) {
+            return false;
+        }
+        return (message.getIdentifier().hashCode() & Integer.MAX_VALUE) < rate * Integer.MAX_VALUE;
+    }
+
+    public double samplingRate(String messageType) {
+        return samplingRates.getOrDefault(messageType, defaultSamplingRate);
+    }
+
+    public void setSamplingRate(String messageType, double rate) {
+        samplingRates.put(messageType, rate);
+    }
+
+    public Map<String, Double> getSamplingRates() {
+        return samplingRates;
+    }
+
+    public double getDefaultSamplingRate() {
+        return defaultSamplingRate;
+    }
+
+    public void setDefaultSamplingRate(double defaultSamplingRate) {
+        this.defaultSamplingRate = defaultSamplingRate;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public long getTraced() {
+        return traced.sum();
+    }
+
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    public void shutDown() {
+        disruptor.shutdown();
+    }
+
+    private static class TraceRecord {
+
+        private long timestamp;
+        private String stage;
+        private String messageType;
+        private String messageId;
+        private long durationMicros;
+        private Throwable failure;
+
+        private void set(long timestamp, String stage, String messageType, String messageId, long durationMicros,
+                         Throwable failure) {
+            this.timestamp = timestamp;
+            this.stage = stage;
+            this.messageType = messageType;
+            this.messageId = messageId;
+            this.durationMicros = durationMicros;
+            this.failure = failure;
+        }
+
+        private void clear() {
+            this.failure = null;
+        }
+    }
+
+    private static class TraceRecordWriter implements EventHandler<TraceRecord> {
+
+        @Override
+        public void onEvent(TraceRecord record, long sequence, boolean endOfBatch) {
+            try {
+                if (record.failure == null) {
+                    logger.info("timestamp={} stage={} type={} id={} durationMicros={}",
+                                record.timestamp, record.stage, record.messageType, record.messageId,
+                                record.durationMicros);
+                } else {
+                    logger.info("timestamp={} stage={} type={} id={} durationMicros={} failure={}",
+                                record.timestamp, record.stage, record.messageType, record.messageId,
+                                record.durationMicros, record.failure.toString());
+                }
+            } finally {
+                record.clear();
+            }
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package io.axoniq.demo.shoppingcart.tracing;
+
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.boot.actuate.endpoint.annotation.WriteOperation;
+import org.springframework.lang.Nullable;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Shows and changes the message tracing settings at runtime, e.g. to trace all {@code AddArticleCommand}s:
+ * <pre>
+ * curl -X POST -H 'Content-Type: application/json' -d '{"messageType":"AddArticleCommand","samplingRate":1.0}' \
+ *      http://localhost:8080/actuator/tracing
+ * </pre>
+ */
+@Endpoint(id = "tracing")
+public class TracingEndpoint {
+
+    private final MessageTracer tracer;
+
+    public TracingEndpoint(MessageTracer tracer) {
+        this.tracer = tracer;
+    }
+
+    @ReadOperation
+    public Map<String, Object> tracing() {
+        Map<String, Object> tracing = new LinkedHashMap<>();
+        tracing.put("enabled", tracer.isEnabled());
+        tracing.put("defaultSamplingRate", tracer.getDefaultSamplingRate());
+        tracing.put("samplingRates", new TreeMap<>(tracer.getSamplingRates()));
+        tracing.put("traced", tracer.getTraced());
+        tracing.put("dropped", tracer.getDropped());
+        return tracing;
+    }
+
+    /**
+     * Switches tracing on or off, and/or changes a sampling rate: the rate of the given message type (the simple
+     * name of its payload class), or the default rate if no message type is given.
+     */
+    @WriteOperation
+    public Map<String, Object> configure(@Nullable Boolean enabled,
+                                         @Nullable String messageType,
+                                         @Nullable Double samplingRate) {
+        if (enabled != null) {
+            tracer.setEnabled(enabled);
+        }
+        if (samplingRate != null) {
+            if (messageType == null) {
+                tracer.setDefaultSamplingRate(samplingRate);
+            } else {
+                tracer.setSamplingRate(messageType, samplingRate);
+            }
+        }
+        return tracing();
+    }
+}
@@ -0,0 +1,49 @@
+package io.axoniq.demo.shoppingcart.tracing;
+
+import org.axonframework.messaging.InterceptorChain;
+import org.axonframework.messaging.Message;
+import org.axonframework.messaging.MessageDispatchInterceptor;
+import org.axonframework.messaging.MessageHandlerInterceptor;
+import org.axonframework.messaging.unitofwork.UnitOfWork;
+
+import java.util.List;
+import java.util.function.BiFunction;
+
+/**
+ * Traces messages when they are dispatched, and when they are handled along with how long handling took and whether
+ * it failed. Tracing itself is done asynchronously by the {@link MessageTracer}.
+ */
+public class TracingInterceptor<T extends Message<?>>
+        implements MessageDispatchInterceptor<T>, MessageHandlerInterceptor<T> {
+
+    private static final String DISPATCH = "dispatch";
+    private static final String HANDLE = "handle";
+
+    private final MessageTracer tracer;
+
+    public TracingInterceptor(MessageTracer tracer) {
+        this.tracer = tracer;
+    }
+
+    @Override
+    public BiFunction<Integer, T, T> handle(List<? extends T> messages) {
+        return (index, message) -> {
+            tracer.trace(DISPATCH, message, -1, null);
+            return message;
+        };
+    }
+
+    @Override
+    public Object handle(UnitOfWork<? extends T> unitOfWork, InterceptorChain interceptorChain) throws Exception {
+        T message = unitOfWork.getMessage();
+        long start = System.nanoTime();
+        try {
+            Object result = interceptorChain.proceed();
+            tracer.trace(HANDLE, message, (System.nanoTime() - start) / 1_000, null);
+            return result;
+        } catch (Exception e) {
+            tracer.trace(HANDLE, message, (System.nanoTime() - start) / 1_000, e);
+            throw e;
+        }
+    }
+}
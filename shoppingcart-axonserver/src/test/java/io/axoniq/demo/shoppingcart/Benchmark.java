@@ -0,0 +1,68 @@
+package io.axoniq.demo.shoppingcart;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+
+/**
+ * Times operations for the benchmark tests. These are plain timed tests rather than JMH benchmarks, and only run when
+ * asked for, as they take a while and their numbers depend on the machine:
+ * <pre>
+ * mvn test -Dbenchmarks=true -Dtest='*BenchmarkTest'
+ * </pre>
+ * Every measurement is preceded by warm-up rounds of the same operation, so the code under test has been compiled by
+ * the time it's measured. Results are printed, one line per measurement.
+ */
+public final class Benchmark {
+
+    private Benchmark() {
+    }
+
+    /**
+     * Runs the given operation the given number of times after warming up, and returns the median time it took, in
+     * nanoseconds.
+     */
+    public static long medianNanos(int warmups, int iterations, Runnable operation) {
+        for (int i = 0; i < warmups; i++) {
+            operation.run();
+        }
+        long[] nanos = new long[iterations];
+        for (int i = 0; i < iterations; i++) {
+            long start = System.nanoTime();
+            operation.run();
+            nanos[i] = System.nanoTime() - start;
+        }
+        Arrays.sort(nanos);
+        return nanos[iterations / 2];
+    }
+
+    /**
+     * Runs the given operation after warming up, and returns how many of the given number of operations it performs
+     * per second.
+     */
+    public static double perSecond(int warmups, long operations, Runnable operation) {
+        for (int i = 0; i < warmups; i++) {
+            operation.run();
+        }
+        long start = System.nanoTime();
+        operation.run();
+        return operations * 1e9 / (System.nanoTime() - start);
+    }
+
+    /**
+     * Runs the given operation after warming up, and returns the number of bytes it allocated on the heap.
+     */
+    public static long allocatedBytes(int warmups, Runnable operation) {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+        for (int i = 0; i < warmups; i++) {
+            operation.run();
+        }
+        long before = threads.getThreadAllocatedBytes(thread);
+        operation.run();
+        return threads.getThreadAllocatedBytes(thread) - before;
+    }
+
+    public static void report(String format, Object... args) {
+        System.out.printf("[benchmark] " + format + "%n", args);
+    }
+}
@@ -0,0 +1,83 @@
+package io.axoniq.demo.shoppingcart;
+
+import io.axoniq.demo.shoppingcart.api.ArticleAddedEvent;
+import io.axoniq.demo.shoppingcart.api.ArticleRemovedEvent;
+import io.axoniq.demo.shoppingcart.api.FetchShoppingCartSummariesQuery;
+import io.axoniq.demo.shoppingcart.api.ShoppingCartCanceledEvent;
+import io.axoniq.demo.shoppingcart.api.ShoppingCartStartedEvent;
+import io.axoniq.demo.shoppingcart.api.ShoppingCartSummaryChangedUpdate;
+import io.axoniq.demo.shoppingcart.api.ShoppingCartSummaryFilter;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.axonframework.serialization.AnnotationRevisionResolver;
+import org.axonframework.serialization.SerializedObject;
+import org.axonframework.serialization.Serializer;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/*
+ * Serializes the events of a cart, a fetch query and a subscription update with each of the formats, as configured by
+ * SerializerConfig, reporting the bytes per event and per message, and the number of messages serialized and read back
+ * per second.
+ */
+@EnabledIfSystemProperty(named = "benchmarks", matches = "true")
+class SerializerBenchmarkTest {
+
+    private static final String[] FORMATS = {"xstream", "json", "cbor", "smile"};
+    private static final List<Object> EVENTS = List.of(
+            new ShoppingCartStartedEvent("3f2a6c1e-5b7d-4e0a-9c8f-1d2e3f4a5b6c", "customer-42"),
+            new ArticleAddedEvent("3f2a6c1e-5b7d-4e0a-9c8f-1d2e3f4a5b6c", "article-1234", 19.95),
+            new ArticleRemovedEvent("3f2a6c1e-5b7d-4e0a-9c8f-1d2e3f4a5b6c", "article-1234"),
+            new ShoppingCartCanceledEvent("3f2a6c1e-5b7d-4e0a-9c8f-1d2e3f4a5b6c")
+    );
+    private static final List<Object> MESSAGES = List.of(
+            new FetchShoppingCartSummariesQuery(0, 50, new ShoppingCartSummaryFilter("3f2a"), null),
+            new ShoppingCartSummaryChangedUpdate("3f2a6c1e-5b7d-4e0a-9c8f-1d2e3f4a5b6c",
+                                                 new HashSet<>(Set.of("article-1234")), new HashSet<>(), 3, null)
+    );
+    private static final int ROUNDS = 10_000;
+
+    @Test
+    void measuresBytesAndThroughputPerFormat() {
+        SerializerConfig serializerConfig = new SerializerConfig();
+        serializerConfig.setBeanClassLoader(getClass().getClassLoader());
+        for (String format : FORMATS) {
+            Serializer eventSerializer = serializerConfig.eventSerializer(
+                    new AnnotationRevisionResolver(), new SimpleMeterRegistry(), format
+            );
+            Serializer messageSerializer = serializerConfig.messageSerializer(
+                    new AnnotationRevisionResolver(), new SimpleMeterRegistry(), format
+            );
+            double eventBytes = EVENTS.stream().mapToInt(event -> roundTrip(eventSerializer, event)).average()
+                                      .orElse(0);
+            double messageBytes = MESSAGES.stream().mapToInt(message -> roundTrip(messageSerializer, message))
+                                          .average().orElse(0);
+            double eventsPerSecond = Benchmark.perSecond(2, (long) ROUNDS * EVENTS.size(), () -> {
+                for (int i = 0; i < ROUNDS; i++) {
+                    EVENTS.forEach(event -> roundTrip(eventSerializer, event));
+                }
+            });
+            double messagesPerSecond = Benchmark.perSecond(2, (long) ROUNDS * MESSAGES.size(), () -> {
+                for (int i = 0; i < ROUNDS; i++) {
+                    MESSAGES.forEach(message -> roundTrip(messageSerializer, message));
+                }
+            });
+            Benchmark.report("%-7s: %6.1f bytes/event, %9.0f events/s; %6.1f bytes/message, %9.0f messages/s",
+                             format, eventBytes, eventsPerSecond, messageBytes, messagesPerSecond);
+        }
+    }
+
+    /*
+     * Serializes the given object and reads it back, returning the number of bytes it was serialized to.
+     */
+    private static int roundTrip(Serializer serializer, Object object) {
+        SerializedObject<byte[]> serialized = serializer.serialize(object, byte[].class);
+        assertEquals(object, serializer.deserialize(serialized));
+        return serialized.getData().length;
+    }
+}
@@ -0,0 +1,167 @@
+package io.axoniq.demo.shoppingcart.command;
+
+import io.axoniq.demo.shoppingcart.Benchmark;
+import io.axoniq.demo.shoppingcart.api.AddArticleCommand;
+import io.axoniq.demo.shoppingcart.api.StartShoppingCartCommand;
+import io.axoniq.demo.shoppingcart.eventstore.MappedEventStorageEngine;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.axonframework.commandhandling.CommandBus;
+import org.axonframework.commandhandling.CommandCallback;
+import org.axonframework.commandhandling.GenericCommandMessage;
+import org.axonframework.commandhandling.SimpleCommandBus;
+import org.axonframework.disruptor.commandhandling.DisruptorCommandBus;
+import org.axonframework.eventsourcing.EventSourcingRepository;
+import org.axonframework.eventsourcing.GenericAggregateFactory;
+import org.axonframework.eventsourcing.eventstore.EmbeddedEventStore;
+import org.axonframework.messaging.annotation.ClasspathParameterResolverFactory;
+import org.axonframework.messaging.annotation.FixedValueParameterResolver;
+import org.axonframework.messaging.annotation.MultiParameterResolverFactory;
+import org.axonframework.messaging.annotation.ParameterResolverFactory;
+import org.axonframework.modelling.command.AggregateAnnotationCommandHandler;
+import org.axonframework.modelling.command.Repository;
+import org.axonframework.modelling.command.inspection.AggregateModel;
+import org.axonframework.modelling.command.inspection.AnnotatedAggregateMetaModelFactory;
+import org.axonframework.serialization.xml.XStreamSerializer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/*
+ * Sends the same load of article commands through the default command bus and through a disruptor command bus, both
+ * storing their events in the embedded event store: a few producer threads add articles to a thousand carts, each
+ * cart getting its commands from one producer. Each bus gets a warm-up round on carts of its own first. Expiry is
+ * turned off, so no deadlines are scheduled.
+ */
+@EnabledIfSystemProperty(named = "benchmarks", matches = "true")
+class ShoppingCartCommandBusBenchmarkTest {
+
+    private static final int CARTS = 1_000;
+    private static final int ARTICLES = 20;
+    private static final int PRODUCERS = 4;
+
+    @TempDir
+    Path directory;
+
+    private MappedEventStorageEngine storageEngine;
+    private EmbeddedEventStore eventStore;
+    private ParameterResolverFactory parameterResolverFactory;
+    private AggregateModel<ShoppingCartAggregate> model;
+
+    @BeforeEach
+    void setUp() {
+        storageEngine = MappedEventStorageEngine.builder()
+                                                .directory(directory)
+                                                .eventSerializer(XStreamSerializer.defaultSerializer())
+                                                .snapshotSerializer(XStreamSerializer.defaultSerializer())
+                                                .meterRegistry(new SimpleMeterRegistry())
+                                                .build();
+        eventStore = EmbeddedEventStore.builder().storageEngine(storageEngine).build();
+        ShoppingCartExpiry expiry = new ShoppingCartExpiry(null, Duration.ZERO);
+        parameterResolverFactory = MultiParameterResolverFactory.ordered(
+                ClasspathParameterResolverFactory.forClass(ShoppingCartAggregate.class),
+                (executable, parameters, index) -> parameters[index].getType() == ShoppingCartExpiry.class
+                        ? new FixedValueParameterResolver<>(expiry) : null
+        );
+        model = AnnotatedAggregateMetaModelFactory.inspectAggregate(ShoppingCartAggregate.class,
+                                                                    parameterResolverFactory);
+    }
+
+    @AfterEach
+    void tearDown() {
+        eventStore.shutDown();
+        storageEngine.close();
+    }
+
+    @Test
+    void measuresThroughputOfTheSimpleAndTheDisruptorCommandBus() throws InterruptedException {
+        SimpleCommandBus simpleCommandBus = SimpleCommandBus.builder().build();
+        subscribe(simpleCommandBus, EventSourcingRepository.builder(ShoppingCartAggregate.class)
+                                                           .aggregateModel(model)
+                                                           .eventStore(eventStore)
+                                                           .build());
+        run(simpleCommandBus, "simple-warmup");
+        Benchmark.report("simple command bus: %8.0f commands/s", run(simpleCommandBus, "simple"));
+
+        DisruptorCommandBus disruptorCommandBus = DisruptorCommandBus.builder().build();
+        try {
+            subscribe(disruptorCommandBus, disruptorCommandBus.createRepository(
+                    eventStore, new GenericAggregateFactory<>(model), parameterResolverFactory
+            ));
+            run(disruptorCommandBus, "disruptor-warmup");
+            Benchmark.report("disruptor command bus: %8.0f commands/s", run(disruptorCommandBus, "disruptor"));
+        } finally {
+            disruptorCommandBus.stop();
+        }
+    }
+
+    private void subscribe(CommandBus commandBus, Repository<ShoppingCartAggregate> repository) {
+        AggregateAnnotationCommandHandler.<ShoppingCartAggregate>builder()
+                                         .aggregateType(ShoppingCartAggregate.class)
+                                         .aggregateModel(model)
+                                         .repository(repository)
+                                         .build()
+                                         .subscribe(commandBus);
+    }
+
+    /*
+     * Starts the carts, then returns the number of article commands handled per second.
+     */
+    private double run(CommandBus commandBus, String cartPrefix) throws InterruptedException {
+        send(commandBus, CARTS, (cart, article) -> new StartShoppingCartCommand(cartPrefix + cart, "customer"));
+        long start = System.nanoTime();
+        send(commandBus, CARTS * ARTICLES,
+             (cart, article) -> new AddArticleCommand(cartPrefix + cart, "article-" + article));
+        return CARTS * ARTICLES * 1e9 / (System.nanoTime() - start);
+    }
+
+    /*
+     * Sends the given number of commands from the producer threads, and waits until all of them have been handled.
+     */
+    private static void send(CommandBus commandBus, int commands, CommandFactory commandFactory)
+            throws InterruptedException {
+        CountDownLatch handled = new CountDownLatch(commands);
+        AtomicInteger failures = new AtomicInteger();
+        CommandCallback<Object, Object> callback = (command, result) -> {
+            if (result.isExceptional()) {
+                failures.incrementAndGet();
+            }
+            handled.countDown();
+        };
+        ExecutorService producers = Executors.newFixedThreadPool(PRODUCERS);
+        try {
+            for (int producer = 0; producer < PRODUCERS; producer++) {
+                int first = producer;
+                producers.execute(() -> {
+                    for (int i = first; i < commands; i += PRODUCERS) {
+                        commandBus.dispatch(GenericCommandMessage.asCommandMessage(
+                                commandFactory.create(i % CARTS, i / CARTS)
+                        ), callback);
+                    }
+                });
+            }
+            assertTrue(handled.await(5, TimeUnit.MINUTES), "expected all commands to be handled");
+        } finally {
+            producers.shutdownNow();
+        }
+        assertEquals(0, failures.get());
+    }
+
+    @FunctionalInterface
+    private interface CommandFactory {
+
+        Object create(int cart, int article);
+    }
+}
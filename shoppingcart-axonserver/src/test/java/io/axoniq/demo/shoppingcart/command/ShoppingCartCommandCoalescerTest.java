@@ -0,0 +1,217 @@
+package io.axoniq.demo.shoppingcart.command;
+
+import io.axoniq.demo.shoppingcart.api.AddArticleCommand;
+import io.axoniq.demo.shoppingcart.api.ApplyShoppingCartCommandsCommand;
+import io.axoniq.demo.shoppingcart.api.RemoveArticleCommand;
+import io.axoniq.demo.shoppingcart.api.ShoppingCartCommandsResult;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.axonframework.commandhandling.CommandMessage;
+import org.axonframework.commandhandling.CommandResultMessage;
+import org.axonframework.commandhandling.SimpleCommandBus;
+import org.axonframework.commandhandling.callbacks.FutureCallback;
+import org.axonframework.messaging.MessageHandler;
+import org.axonframework.modelling.command.AggregateNotFoundException;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import static org.axonframework.commandhandling.GenericCommandMessage.asCommandMessage;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/*
+ * The first command, adding the article "first", is held in its handler until released, so the commands dispatched
+ * meanwhile queue up behind it, and are handled as a group by the handler of ApplyShoppingCartCommandsCommand.
+ */
+class ShoppingCartCommandCoalescerTest {
+
+    private final CountDownLatch firstReleased = new CountDownLatch(1);
+    private final CountDownLatch firstHandling = new CountDownLatch(1);
+    private final List<List<Object>> groups = Collections.synchronizedList(new ArrayList<>());
+    private final ExecutorService dispatchers = Executors.newCachedThreadPool();
+    private MeterRegistry meterRegistry;
+    private SimpleCommandBus commandBus;
+    private Function<List<Object>, Object> groupHandler;
+
+    @BeforeEach
+    void setUp() {
+        meterRegistry = new SimpleMeterRegistry();
+        commandBus = SimpleCommandBus.builder().build();
+        groupHandler = commands -> {
+            List<String> errors = new ArrayList<>();
+            for (Object command : commands) {
+                boolean rejected = command instanceof AddArticleCommand
+                        && ((AddArticleCommand) command).getArticle().startsWith("rejected");
+                errors.add(rejected ? "article is already in the cart" : null);
+            }
+            return new ShoppingCartCommandsResult(errors);
+        };
+        MessageHandler<CommandMessage<?>> handler = command -> {
+            Object payload = command.getPayload();
+            if (payload instanceof ApplyShoppingCartCommandsCommand) {
+                List<Object> commands = ((ApplyShoppingCartCommandsCommand) payload).getCommands();
+                groups.add(commands);
+                return groupHandler.apply(commands);
+            } else if (payload instanceof AddArticleCommand
+                    && ((AddArticleCommand) payload).getArticle().equals("first")) {
+                firstHandling.countDown();
+                assertTrue(firstReleased.await(10, TimeUnit.SECONDS));
+            }
+            return null;
+        };
+        commandBus.subscribe(AddArticleCommand.class.getName(), handler);
+        commandBus.subscribe(RemoveArticleCommand.class.getName(), handler);
+        commandBus.subscribe(ApplyShoppingCartCommandsCommand.class.getName(), handler);
+    }
+
+    @AfterEach
+    void tearDown() {
+        firstReleased.countDown();
+        dispatchers.shutdownNow();
+    }
+
+    @Test
+    void handlesALoneCommandAsItIs() throws Exception {
+        coalesceFor(Duration.ofSeconds(10));
+        firstReleased.countDown();
+
+        assertFalse(result(dispatch(new AddArticleCommand("cart", "first"))).isExceptional());
+        assertTrue(groups.isEmpty());
+    }
+
+    @Test
+    void answersEachCommandOfAGroupWithItsOwnOutcome() throws Exception {
+        coalesceFor(Duration.ofSeconds(10));
+        FutureCallback<Object, Object> first = dispatchFirst();
+        FutureCallback<Object, Object> added = dispatchQueued(new AddArticleCommand("cart", "apple"), 1);
+        FutureCallback<Object, Object> rejected = dispatchQueued(new AddArticleCommand("cart", "rejected"), 2);
+        FutureCallback<Object, Object> removed = dispatchQueued(new RemoveArticleCommand("cart", "pear"), 3);
+        FutureCallback<Object, Object> applied = dispatchQueued(new ApplyShoppingCartCommandsCommand(
+                "cart", Arrays.asList(new AddArticleCommand("cart", "rejected too"),
+                                      new AddArticleCommand("cart", "kiwi"))
+        ), 4);
+
+        firstReleased.countDown();
+
+        assertFalse(result(first).isExceptional());
+        assertFalse(result(added).isExceptional());
+        assertNull(result(added).getPayload());
+        assertTrue(result(rejected).exceptionResult() instanceof IllegalArgumentException);
+        assertEquals("article is already in the cart", result(rejected).exceptionResult().getMessage());
+        assertFalse(result(removed).isExceptional());
+        assertEquals(new ShoppingCartCommandsResult(Arrays.asList("article is already in the cart", null)),
+                     result(applied).getPayload());
+        assertEquals(1, groups.size());
+        assertEquals(5, groups.get(0).size());
+        assertEquals(4, meterRegistry.get("shoppingcart.coalescing.factor").summary().max());
+    }
+
+    @Test
+    void failsEveryCommandOfAGroupRolledBack() throws Exception {
+        RuntimeException failure = new IllegalStateException("event store unavailable");
+        groupHandler = commands -> {
+            throw failure;
+        };
+        coalesceFor(Duration.ofSeconds(10));
+        FutureCallback<Object, Object> first = dispatchFirst();
+        FutureCallback<Object, Object> added = dispatchQueued(new AddArticleCommand("cart", "apple"), 1);
+        FutureCallback<Object, Object> removed = dispatchQueued(new RemoveArticleCommand("cart", "pear"), 2);
+
+        firstReleased.countDown();
+
+        assertFalse(result(first).isExceptional());
+        assertSame(failure, result(added).exceptionResult());
+        assertSame(failure, result(removed).exceptionResult());
+    }
+
+    @Test
+    void failsCommandsGroupedOnACartNeverStartedAsTheyWouldOnTheirOwn() throws Exception {
+        groupHandler = commands -> {
+            throw new IllegalArgumentException("shopping cart cart has not been started");
+        };
+        coalesceFor(Duration.ofSeconds(10));
+        FutureCallback<Object, Object> first = dispatchFirst();
+        FutureCallback<Object, Object> added = dispatchQueued(new AddArticleCommand("cart", "apple"), 1);
+        FutureCallback<Object, Object> removed = dispatchQueued(new RemoveArticleCommand("cart", "pear"), 2);
+        FutureCallback<Object, Object> applied = dispatchQueued(new ApplyShoppingCartCommandsCommand(
+                "cart", Collections.singletonList(new AddArticleCommand("cart", "kiwi"))
+        ), 3);
+
+        firstReleased.countDown();
+
+        assertFalse(result(first).isExceptional());
+        assertTrue(result(added).exceptionResult() instanceof AggregateNotFoundException);
+        assertTrue(result(removed).exceptionResult() instanceof AggregateNotFoundException);
+        assertTrue(result(applied).exceptionResult() instanceof IllegalArgumentException);
+        assertEquals("shopping cart cart has not been started", result(applied).exceptionResult().getMessage());
+    }
+
+    @Test
+    void handlesACommandOnItsOwnOnceItWaitedTooLong() throws Exception {
+        coalesceFor(Duration.ofMillis(100));
+        FutureCallback<Object, Object> first = dispatchFirst();
+
+        FutureCallback<Object, Object> added = dispatch(new AddArticleCommand("cart", "apple"));
+
+        assertFalse(result(added).isExceptional());
+        assertFalse(first.isDone());
+        assertEquals(1, meterRegistry.get("shoppingcart.coalescing.timeouts").counter().count());
+        assertEquals(0, queueDepth());
+
+        firstReleased.countDown();
+        assertFalse(result(first).isExceptional());
+        assertTrue(groups.isEmpty());
+    }
+
+    private void coalesceFor(Duration maxWait) {
+        commandBus.registerHandlerInterceptor(new ShoppingCartCommandCoalescer(meterRegistry, 100, maxWait));
+    }
+
+    private FutureCallback<Object, Object> dispatchFirst() throws InterruptedException {
+        FutureCallback<Object, Object> first = dispatch(new AddArticleCommand("cart", "first"));
+        assertTrue(firstHandling.await(10, TimeUnit.SECONDS));
+        return first;
+    }
+
+    /*
+     * Dispatches the command, and waits for it to be queued as the given number of waiting commands.
+     */
+    private FutureCallback<Object, Object> dispatchQueued(Object command, int queued) throws InterruptedException {
+        FutureCallback<Object, Object> callback = dispatch(command);
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (queueDepth() < queued) {
+            assertTrue(System.nanoTime() < deadline, "the command wasn't queued");
+            Thread.sleep(1);
+        }
+        return callback;
+    }
+
+    private FutureCallback<Object, Object> dispatch(Object command) {
+        FutureCallback<Object, Object> callback = new FutureCallback<>();
+        dispatchers.execute(() -> commandBus.dispatch(asCommandMessage(command), callback));
+        return callback;
+    }
+
+    private static CommandResultMessage<?> result(FutureCallback<Object, Object> callback) {
+        return callback.getResult(10, TimeUnit.SECONDS);
+    }
+
+    private double queueDepth() {
+        return meterRegistry.get("shoppingcart.coalescing.queue.depth").gauge().value();
+    }
+}
@@ -0,0 +1,98 @@
+package io.axoniq.demo.shoppingcart.command;
+
+import io.axoniq.demo.shoppingcart.Benchmark;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/*
+ * Compares the compact items of a cart with the map of item objects with boxed prices they replaced, by the bytes
+ * allocated and the time taken to fill a thousand carts, and by the estimated footprint of a cart. Every cart gets
+ * article names of its own, like carts sourced from deserialized events do.
+ */
+@EnabledIfSystemProperty(named = "benchmarks", matches = "true")
+class ShoppingCartItemsBenchmarkTest {
+
+    private static final int[] CART_SIZES = {1, 4, 16, 64, 256};
+    private static final int CARTS = 1_000;
+
+    @Test
+    void measuresAllocationAndFootprintOfCompactAndMapItems() {
+        for (int size : CART_SIZES) {
+            long compactBytes = Benchmark.allocatedBytes(5, () -> fillCompact(size));
+            long mapBytes = Benchmark.allocatedBytes(5, () -> fillMap(size));
+            long compactNanos = Benchmark.medianNanos(5, 20, () -> fillCompact(size));
+            long mapNanos = Benchmark.medianNanos(5, 20, () -> fillMap(size));
+            ShoppingCartItems items = fillCompact(size)[0];
+            assertEquals(size, items.size());
+
+            Benchmark.report("%3d articles: allocates %7.1f bytes/article compact, %7.1f bytes/article as map; "
+                                     + "fills in %6.1f ns/article compact, %6.1f ns/article as map; "
+                                     + "takes %6d bytes/cart compact, %6d bytes/cart as map",
+                             size, (double) compactBytes / (CARTS * size), (double) mapBytes / (CARTS * size),
+                             (double) compactNanos / (CARTS * size), (double) mapNanos / (CARTS * size),
+                             items.footprint(), items.mapFootprint());
+        }
+    }
+
+    private static ShoppingCartItems[] fillCompact(int size) {
+        ShoppingCartItems[] carts = new ShoppingCartItems[CARTS];
+        for (int cart = 0; cart < CARTS; cart++) {
+            carts[cart] = new ShoppingCartItems();
+            for (int article = 0; article < size; article++) {
+                carts[cart].add(articleName(article), 1.0);
+            }
+        }
+        return carts;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, MapItem>[] fillMap(int size) {
+        Map<String, MapItem>[] carts = new Map[CARTS];
+        for (int cart = 0; cart < CARTS; cart++) {
+            carts[cart] = new HashMap<>();
+            for (int article = 0; article < size; article++) {
+                carts[cart].put(articleName(article), MapItem.builder().price(1.0).build());
+            }
+        }
+        return carts;
+    }
+
+    private static String articleName(int article) {
+        return "article-" + article;
+    }
+
+    /*
+     * The item object the map held, built like its Lombok builder did.
+     */
+    private static class MapItem {
+
+        private final Double price;
+
+        private MapItem(Double price) {
+            this.price = price;
+        }
+
+        static Builder builder() {
+            return new Builder();
+        }
+
+        static class Builder {
+
+            private Double price;
+
+            Builder price(Double price) {
+                this.price = price;
+                return this;
+            }
+
+            MapItem build() {
+                return new MapItem(price);
+            }
+        }
+    }
+}
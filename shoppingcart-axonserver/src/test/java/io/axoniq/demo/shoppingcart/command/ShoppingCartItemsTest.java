@@ -0,0 +1,93 @@
+package io.axoniq.demo.shoppingcart.command;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ShoppingCartItemsTest {
+
+    @Test
+    void emptyCartHoldsNothing() {
+        ShoppingCartItems items = new ShoppingCartItems();
+
+        assertEquals(0, items.size());
+        assertFalse(items.contains("apple"));
+        assertFalse(items.remove("apple"));
+        assertEquals(new HashMap<>(), contents(items));
+    }
+
+    @Test
+    void addingAnArticleTwiceKeepsTheFirstPrice() {
+        ShoppingCartItems items = new ShoppingCartItems();
+
+        items.add("apple", 1.0);
+        items.add("apple", 2.0);
+
+        assertEquals(1, items.size());
+        assertEquals(Map.of("apple", 1.0), contents(items));
+    }
+
+    @Test
+    void growsBeyondItsInitialCapacity() {
+        ShoppingCartItems items = new ShoppingCartItems();
+        Map<String, Double> expected = new HashMap<>();
+
+        for (int i = 0; i < 100; i++) {
+            items.add("article" + i, i);
+            expected.put("article" + i, (double) i);
+        }
+
+        assertEquals(100, items.size());
+        assertEquals(expected, contents(items));
+    }
+
+    /*
+     * "Aa" and "BB" have the same hash code, so they share a probe sequence: removing the first must shift the second
+     * back, or it would no longer be found.
+     */
+    @Test
+    void removingAnArticleKeepsCollidingArticlesFindable() {
+        ShoppingCartItems items = new ShoppingCartItems();
+        items.add("Aa", 1.0);
+        items.add("BB", 2.0);
+
+        assertTrue(items.remove("Aa"));
+
+        assertFalse(items.contains("Aa"));
+        assertTrue(items.contains("BB"));
+        assertEquals(Map.of("BB", 2.0), contents(items));
+    }
+
+    @Test
+    void behavesLikeAMapUnderRandomChanges() {
+        Random random = new Random(42);
+        ShoppingCartItems items = new ShoppingCartItems();
+        Map<String, Double> expected = new HashMap<>();
+
+        for (int i = 0; i < 10_000; i++) {
+            String article = "article" + random.nextInt(64);
+            if (random.nextBoolean()) {
+                double price = random.nextDouble();
+                items.add(article, price);
+                expected.putIfAbsent(article, price);
+            } else {
+                assertEquals(expected.remove(article) != null, items.remove(article));
+            }
+            assertEquals(expected.size(), items.size());
+            assertEquals(expected.containsKey(article), items.contains(article));
+        }
+        assertEquals(expected, contents(items));
+    }
+
+    private static Map<String, Double> contents(ShoppingCartItems items) {
+        Map<String, Double> contents = new HashMap<>();
+        items.forEach(contents::put);
+        return contents;
+    }
+}
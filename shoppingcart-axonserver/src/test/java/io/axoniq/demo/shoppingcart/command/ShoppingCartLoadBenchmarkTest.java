@@ -0,0 +1,133 @@
+package io.axoniq.demo.shoppingcart.command;
+
+import com.thoughtworks.xstream.XStream;
+import io.axoniq.demo.shoppingcart.Benchmark;
+import io.axoniq.demo.shoppingcart.api.ArticleAddedEvent;
+import io.axoniq.demo.shoppingcart.api.ArticleRemovedEvent;
+import io.axoniq.demo.shoppingcart.api.ShoppingCartStartedEvent;
+import io.axoniq.demo.shoppingcart.eventstore.MappedEventStorageEngine;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.axonframework.eventhandling.DomainEventMessage;
+import org.axonframework.eventhandling.GenericDomainEventMessage;
+import org.axonframework.eventsourcing.AggregateSnapshotter;
+import org.axonframework.eventsourcing.EventSourcingRepository;
+import org.axonframework.eventsourcing.GenericAggregateFactory;
+import org.axonframework.eventsourcing.eventstore.EmbeddedEventStore;
+import org.axonframework.messaging.annotation.ClasspathParameterResolverFactory;
+import org.axonframework.messaging.annotation.FixedValueParameterResolver;
+import org.axonframework.messaging.annotation.MultiParameterResolverFactory;
+import org.axonframework.messaging.annotation.ParameterResolverFactory;
+import org.axonframework.messaging.unitofwork.DefaultUnitOfWork;
+import org.axonframework.modelling.command.inspection.AggregateModel;
+import org.axonframework.modelling.command.inspection.AnnotatedAggregateMetaModelFactory;
+import org.axonframework.serialization.xml.CompactDriver;
+import org.axonframework.serialization.xml.XStreamSerializer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/*
+ * Loads carts of increasing length from the embedded event store, once sourced from all of their events and once from
+ * a snapshot taken after the last one. Every fourth event removes an article again, like a customer changing their
+ * mind. Snapshots are written like the command profile does in XStream format. The expiry passed to the command
+ * handlers of the cart is left out, as no commands are handled.
+ */
+@EnabledIfSystemProperty(named = "benchmarks", matches = "true")
+class ShoppingCartLoadBenchmarkTest {
+
+    private static final int[] STREAM_LENGTHS = {10, 100, 1_000, 10_000};
+
+    @TempDir
+    Path directory;
+
+    private MappedEventStorageEngine storageEngine;
+    private EmbeddedEventStore eventStore;
+    private EventSourcingRepository<ShoppingCartAggregate> repository;
+    private AggregateSnapshotter snapshotter;
+
+    @BeforeEach
+    void setUp() {
+        XStream xStream = new XStream(new CompactDriver());
+        xStream.registerLocalConverter(ShoppingCartAggregate.class, "items", new ShoppingCartItemsConverter());
+        XStreamSerializer snapshotSerializer = XStreamSerializer.builder().xStream(xStream).build();
+        storageEngine = MappedEventStorageEngine.builder()
+                                                .directory(directory)
+                                                .eventSerializer(XStreamSerializer.defaultSerializer())
+                                                .snapshotSerializer(snapshotSerializer)
+                                                .meterRegistry(new SimpleMeterRegistry())
+                                                .build();
+        eventStore = EmbeddedEventStore.builder().storageEngine(storageEngine).build();
+        ParameterResolverFactory noExpiry = (executable, parameters, index) ->
+                parameters[index].getType() == ShoppingCartExpiry.class ? new FixedValueParameterResolver<>(null)
+                                                                        : null;
+        AggregateModel<ShoppingCartAggregate> model = AnnotatedAggregateMetaModelFactory.inspectAggregate(
+                ShoppingCartAggregate.class,
+                MultiParameterResolverFactory.ordered(
+                        ClasspathParameterResolverFactory.forClass(ShoppingCartAggregate.class), noExpiry
+                )
+        );
+        repository = EventSourcingRepository.builder(ShoppingCartAggregate.class)
+                                            .aggregateModel(model)
+                                            .eventStore(eventStore)
+                                            .build();
+        snapshotter = AggregateSnapshotter.builder()
+                                          .eventStore(eventStore)
+                                          .aggregateFactories(new GenericAggregateFactory<>(model))
+                                          .build();
+    }
+
+    @AfterEach
+    void tearDown() {
+        eventStore.shutDown();
+        storageEngine.close();
+    }
+
+    @Test
+    void measuresLoadTimeAgainstStreamLengthWithAndWithoutSnapshots() {
+        for (int length : STREAM_LENGTHS) {
+            store("sourced-" + length, length);
+            store("snapshotted-" + length, length);
+            snapshotter.scheduleSnapshot(ShoppingCartAggregate.class, "snapshotted-" + length);
+            assertEquals(load("sourced-" + length), load("snapshotted-" + length));
+
+            long sourced = Benchmark.medianNanos(20, 100, () -> load("sourced-" + length));
+            long snapshotted = Benchmark.medianNanos(20, 100, () -> load("snapshotted-" + length));
+            Benchmark.report("load %6d events: %8.1f µs sourced, %8.1f µs from snapshot", length, sourced / 1e3,
+                             snapshotted / 1e3);
+        }
+    }
+
+    private void store(String cartId, int length) {
+        List<DomainEventMessage<?>> events = new ArrayList<>();
+        events.add(event(cartId, 0, new ShoppingCartStartedEvent(cartId, "customer")));
+        for (int i = 1; i < length; i++) {
+            events.add(i % 4 == 0 ? event(cartId, i, new ArticleRemovedEvent(cartId, "article-" + (i - 1)))
+                                  : event(cartId, i, new ArticleAddedEvent(cartId, "article-" + i, 1.0)));
+        }
+        eventStore.publish(events);
+    }
+
+    private static DomainEventMessage<?> event(String cartId, long sequenceNumber, Object payload) {
+        return new GenericDomainEventMessage<>("ShoppingCartAggregate", cartId, sequenceNumber, payload);
+    }
+
+    /*
+     * Returns the estimated size of the loaded cart, which is the same for carts holding the same articles.
+     */
+    private int load(String cartId) {
+        DefaultUnitOfWork<?> unitOfWork = DefaultUnitOfWork.startAndGet(null);
+        try {
+            return repository.load(cartId).invoke(ShoppingCartAggregate::estimatedSize);
+        } finally {
+            unitOfWork.rollback();
+        }
+    }
+}
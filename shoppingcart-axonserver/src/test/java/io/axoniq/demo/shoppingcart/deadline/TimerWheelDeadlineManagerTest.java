@@ -0,0 +1,155 @@
+package io.axoniq.demo.shoppingcart.deadline;
+
+import org.axonframework.deadline.DeadlineMessage;
+import org.axonframework.messaging.Message;
+import org.axonframework.messaging.ScopeAware;
+import org.axonframework.messaging.ScopeDescriptor;
+import org.axonframework.modelling.command.AggregateScopeDescriptor;
+import org.axonframework.serialization.xml.XStreamSerializer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+/*
+ * The wheel ticks every 10ms and goes round in 80ms, so deadlines further away than that have to survive laps.
+ */
+class TimerWheelDeadlineManagerTest {
+
+    private static final ScopeDescriptor CART = new AggregateScopeDescriptor("ShoppingCart", "cart");
+    private static final ScopeDescriptor OTHER_CART = new AggregateScopeDescriptor("ShoppingCart", "other");
+
+    @TempDir
+    Path directory;
+
+    private final Recorder recorder = new Recorder();
+    private TimerWheelDeadlineManager deadlineManager;
+
+    @AfterEach
+    void shutDown() {
+        if (deadlineManager != null) {
+            deadlineManager.shutdown();
+        }
+    }
+
+    @Test
+    void firesADeadlineOnceItIsDue() throws InterruptedException {
+        deadlineManager = start();
+        Instant due = Instant.now().plusMillis(50);
+
+        deadlineManager.schedule(due, "expiry", null, CART);
+
+        Fired fired = recorder.await(1).get(0);
+        assertEquals("expiry", fired.deadlineName);
+        assertEquals(CART, fired.scope);
+        assertFalse(fired.at.isBefore(due), "fired at " + fired.at + ", before it was due at " + due);
+    }
+
+    @Test
+    void firesADeadlineFurtherAwayThanTheWheelGoesRoundOnlyWhenDue() throws InterruptedException {
+        deadlineManager = start();
+        Instant due = Instant.now().plusMillis(300);
+
+        deadlineManager.schedule(due, "expiry", null, CART);
+
+        Fired fired = recorder.await(1).get(0);
+        assertFalse(fired.at.isBefore(due), "fired at " + fired.at + ", before it was due at " + due);
+    }
+
+    @Test
+    void schedulingADeadlineAgainReplacesThePendingOne() throws InterruptedException {
+        deadlineManager = start();
+        Instant due = Instant.now().plusMillis(200);
+
+        String first = deadlineManager.schedule(Instant.now().plusMillis(30), "expiry", null, CART);
+        String second = deadlineManager.schedule(due, "expiry", null, CART);
+
+        assertEquals(first, second);
+        Fired fired = recorder.await(1).get(0);
+        assertFalse(fired.at.isBefore(due), "fired at " + fired.at + ", the time it was first scheduled at");
+        Thread.sleep(100);
+        assertEquals(1, recorder.fired.size());
+    }
+
+    @Test
+    void doesNotFireACanceledDeadline() throws InterruptedException {
+        deadlineManager = start();
+
+        String scheduleId = deadlineManager.schedule(Instant.now().plusMillis(30), "expiry", null, CART);
+        deadlineManager.schedule(Instant.now().plusMillis(60), "expiry", null, OTHER_CART);
+        deadlineManager.cancelSchedule("expiry", scheduleId);
+
+        assertEquals(OTHER_CART, recorder.await(1).get(0).scope);
+        Thread.sleep(100);
+        assertEquals(1, recorder.fired.size());
+    }
+
+    @Test
+    void recoversPendingDeadlinesFromTheCheckpointWrittenAtShutDown() throws InterruptedException {
+        TimerWheelDeadlineManager stopped = start();
+        stopped.schedule(Instant.now().plusMillis(100), "expiry", null, CART);
+        stopped.shutdown();
+
+        deadlineManager = start();
+
+        assertEquals(CART, recorder.await(1).get(0).scope);
+    }
+
+    private TimerWheelDeadlineManager start() {
+        TimerWheelDeadlineManager manager = TimerWheelDeadlineManager.builder()
+                                                                     .scopeAwareProvider(scope -> Stream.of(recorder))
+                                                                     .serializer(XStreamSerializer.defaultSerializer())
+                                                                     .tick(Duration.ofMillis(10))
+                                                                     .wheelSize(8)
+                                                                     .checkpointFile(directory.resolve("deadlines"))
+                                                                     .build();
+        manager.start();
+        return manager;
+    }
+
+    private static class Recorder implements ScopeAware {
+
+        private final List<Fired> fired = new CopyOnWriteArrayList<>();
+
+        @Override
+        public void send(Message<?> message, ScopeDescriptor scope) {
+            fired.add(new Fired(((DeadlineMessage<?>) message).getDeadlineName(), scope, Instant.now()));
+        }
+
+        @Override
+        public boolean canResolve(ScopeDescriptor scope) {
+            return true;
+        }
+
+        private List<Fired> await(int count) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + 5000;
+            while (fired.size() < count && System.currentTimeMillis() < deadline) {
+                Thread.sleep(5);
+            }
+            assertEquals(count, fired.size());
+            return fired;
+        }
+    }
+
+    private static class Fired {
+
+        private final String deadlineName;
+        private final ScopeDescriptor scope;
+        private final Instant at;
+
+        private Fired(String deadlineName, ScopeDescriptor scope, Instant at) {
+            this.deadlineName = deadlineName;
+            this.scope = scope;
+            this.at = at;
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package io.axoniq.demo.shoppingcart.eventstore;
+
+import io.axoniq.demo.shoppingcart.Benchmark;
+import io.axoniq.demo.shoppingcart.api.ArticleAddedEvent;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.axonframework.eventhandling.DomainEventMessage;
+import org.axonframework.eventhandling.GenericDomainEventMessage;
+import org.axonframework.eventhandling.TrackedEventMessage;
+import org.axonframework.eventhandling.TrackingToken;
+import org.axonframework.serialization.xml.XStreamSerializer;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/*
+ * Appends the events of ten thousand carts, in a batch of ten events per cart, then replays them all as an event
+ * processor does, by tracking token, and as carts are loaded, by aggregate. Appends forced to disk are measured on a
+ * tenth of the carts, as they take a lot longer.
+ */
+@EnabledIfSystemProperty(named = "benchmarks", matches = "true")
+class MappedEventStorageEngineBenchmarkTest {
+
+    private static final int CARTS = 10_000;
+    private static final int EVENTS_PER_CART = 10;
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void measuresAppendAndReplayThroughput() {
+        try (MappedEventStorageEngine engine = open(directory.resolve("unforced"), false)) {
+            double appended = Benchmark.perSecond(0, (long) CARTS * EVENTS_PER_CART, () -> append(engine, CARTS));
+            double tracked = Benchmark.perSecond(2, (long) CARTS * EVENTS_PER_CART,
+                                                 () -> assertEquals(CARTS * EVENTS_PER_CART, replay(engine)));
+            double loaded = Benchmark.perSecond(2, (long) CARTS * EVENTS_PER_CART, () -> {
+                for (int cart = 0; cart < CARTS; cart++) {
+                    assertEquals(EVENTS_PER_CART, engine.readEvents("cart-" + cart).asStream().count());
+                }
+            });
+            Benchmark.report("append %9.0f events/s, replay %9.0f events/s by token, %9.0f events/s by aggregate",
+                             appended, tracked, loaded);
+        }
+        try (MappedEventStorageEngine engine = open(directory.resolve("forced"), true)) {
+            double appended = Benchmark.perSecond(0, (long) CARTS / 10 * EVENTS_PER_CART,
+                                                  () -> append(engine, CARTS / 10));
+            Benchmark.report("append %9.0f events/s, forced to disk", appended);
+        }
+    }
+
+    private static MappedEventStorageEngine open(Path directory, boolean forceOnAppend) {
+        return MappedEventStorageEngine.builder()
+                                       .directory(directory)
+                                       .forceOnAppend(forceOnAppend)
+                                       .eventSerializer(XStreamSerializer.defaultSerializer())
+                                       .snapshotSerializer(XStreamSerializer.defaultSerializer())
+                                       .meterRegistry(new SimpleMeterRegistry())
+                                       .build();
+    }
+
+    private static void append(MappedEventStorageEngine engine, int carts) {
+        for (int cart = 0; cart < carts; cart++) {
+            List<DomainEventMessage<?>> events = new ArrayList<>(EVENTS_PER_CART);
+            for (int i = 0; i < EVENTS_PER_CART; i++) {
+                events.add(new GenericDomainEventMessage<>("ShoppingCartAggregate", "cart-" + cart, i,
+                                                           new ArticleAddedEvent("cart-" + cart, "article-" + i, 1.0)));
+            }
+            engine.appendEvents(events);
+        }
+    }
+
+    /*
+     * Reads batch after batch from the start, deserializing every event, returning the number of events read.
+     */
+    private static int replay(MappedEventStorageEngine engine) {
+        int count = 0;
+        TrackingToken token = null;
+        while (true) {
+            List<TrackedEventMessage<?>> batch = new ArrayList<>();
+            try (Stream<? extends TrackedEventMessage<?>> events = engine.readEvents(token, false)) {
+                events.forEach(event -> {
+                    event.getPayload();
+                    batch.add(event);
+                });
+            }
+            if (batch.isEmpty()) {
+                return count;
+            }
+            count += batch.size();
+            token = batch.get(batch.size() - 1).trackingToken();
+        }
+    }
+}
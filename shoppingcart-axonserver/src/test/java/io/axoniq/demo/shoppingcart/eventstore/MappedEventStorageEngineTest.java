@@ -0,0 +1,233 @@
+package io.axoniq.demo.shoppingcart.eventstore;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.axonframework.eventhandling.DomainEventMessage;
+import org.axonframework.eventhandling.EventMessage;
+import org.axonframework.eventhandling.GenericDomainEventMessage;
+import org.axonframework.eventhandling.GlobalSequenceTrackingToken;
+import org.axonframework.eventhandling.TrackedEventMessage;
+import org.axonframework.eventhandling.TrackingToken;
+import org.axonframework.eventsourcing.eventstore.DomainEventStream;
+import org.axonframework.modelling.command.AggregateStreamCreationException;
+import org.axonframework.modelling.command.ConcurrencyException;
+import org.axonframework.serialization.xml.XStreamSerializer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/*
+ * Segments of 1 kB hold a few events each, so appending a few dozen of them rolls over to new segments.
+ */
+class MappedEventStorageEngineTest {
+
+    private static final int SEGMENT_SIZE = 1024;
+    private static final Instant START = Instant.parse("2021-06-01T00:00:00Z");
+
+    @TempDir
+    Path directory;
+
+    private MappedEventStorageEngine engine;
+
+    @AfterEach
+    void close() {
+        if (engine != null) {
+            engine.close();
+        }
+    }
+
+    @Test
+    void readsTheEventsOfAnAggregateFromTheGivenSequenceNumber() {
+        engine = open();
+
+        engine.appendEvents(event("cart", 0, 0), event("other", 0, 1), event("cart", 1, 2), event("cart", 2, 3));
+
+        assertEquals(List.of("cart-0", "cart-1", "cart-2"), payloads(engine.readEvents("cart")));
+        assertEquals(List.of("cart-1", "cart-2"), payloads(engine.readEvents("cart", 1)));
+        assertEquals(List.of("other-0"), payloads(engine.readEvents("other")));
+        assertEquals(List.of(), payloads(engine.readEvents("unknown")));
+        assertEquals(2L, engine.lastSequenceNumberFor("cart").orElse(null));
+    }
+
+    @Test
+    void readsAllEventsInBatchesFromATrackingToken() {
+        engine = open();
+        engine.appendEvents(events("cart", 0, 10));
+
+        List<TrackedEventMessage<?>> first = read(null);
+        List<TrackedEventMessage<?>> second = read(first.get(first.size() - 1).trackingToken());
+
+        assertEquals(List.of("cart-0", "cart-1", "cart-2", "cart-3"), payloads(first));
+        assertEquals(new GlobalSequenceTrackingToken(3), first.get(3).trackingToken());
+        assertEquals(List.of("cart-4", "cart-5", "cart-6", "cart-7"), payloads(second));
+        assertEquals(List.of(), read(new GlobalSequenceTrackingToken(9)));
+    }
+
+    @Test
+    void rollsOverToNewSegmentsAndReadsAcrossThem() throws IOException {
+        engine = open();
+
+        for (int i = 0; i < 50; i++) {
+            engine.appendEvents(event("cart", i, i));
+        }
+
+        assertTrue(segmentFiles() > 1, "expected the events to span several segments");
+        List<String> expected = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            expected.add("cart-" + i);
+        }
+        assertEquals(expected, payloads(engine.readEvents("cart")));
+        assertEquals(new GlobalSequenceTrackingToken(49), engine.createHeadToken());
+    }
+
+    @Test
+    void findsTheEventsAgainWhenOpenedAgain() {
+        MappedEventStorageEngine closed = open();
+        closed.appendEvents(events("cart", 0, 30));
+        closed.appendEvents(event("other", 0, 30));
+        closed.storeSnapshot(event("cart", 29, 30));
+        closed.close();
+
+        engine = open();
+
+        assertEquals(30, payloads(engine.readEvents("cart")).size());
+        assertEquals(List.of("other-0"), payloads(engine.readEvents("other")));
+        assertEquals(new GlobalSequenceTrackingToken(30), engine.createHeadToken());
+        assertEquals("cart-29", engine.readSnapshot("cart").map(EventMessage::getPayload).orElse(null));
+        engine.appendEvents(event("cart", 30, 31));
+        assertEquals(List.of("cart-30"), payloads(engine.readEvents("cart", 30)));
+    }
+
+    /*
+     * The two events of the second batch take the same number of bytes, so wiping the second one leaves the segment
+     * as if the process stopped right after writing the first.
+     */
+    @Test
+    void dropsABatchWhichWasOnlyPartlyWrittenWhenOpenedAgain() throws IOException {
+        MeterRegistry meterRegistry = new SimpleMeterRegistry();
+        MappedEventStorageEngine closed = open(meterRegistry);
+        closed.appendEvents(event("cart", 0, 0));
+        int firstBatchEnd = eventBytes(meterRegistry);
+        closed.appendEvents(event("cart", 1, 1), event("cart", 2, 2));
+        int secondBatchEnd = eventBytes(meterRegistry);
+        closed.close();
+        int secondEventEnd = firstBatchEnd + (secondBatchEnd - firstBatchEnd) / 2;
+        Path file = directory.resolve("events").resolve(String.format("%020d.seg", 0));
+        try (FileChannel segment = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            segment.write(ByteBuffer.allocate(secondBatchEnd - secondEventEnd), secondEventEnd);
+        }
+
+        engine = open();
+
+        assertEquals(List.of("cart-0"), payloads(engine.readEvents("cart")));
+        assertEquals(new GlobalSequenceTrackingToken(0), engine.createHeadToken());
+        engine.appendEvents(event("cart", 1, 3));
+        engine.close();
+        engine = open();
+        assertEquals(List.of("cart-0", "cart-1"), payloads(engine.readEvents("cart")));
+    }
+
+    @Test
+    void rejectsEventsWhichDoNotFollowOnTheLastOneOfTheirAggregate() {
+        engine = open();
+        engine.appendEvents(events("cart", 0, 2));
+
+        assertThrows(AggregateStreamCreationException.class,
+                     () -> engine.appendEvents(event("other", 0, 2), event("cart", 0, 3)));
+        assertThrows(ConcurrencyException.class, () -> engine.appendEvents(event("cart", 1, 4)));
+        assertThrows(ConcurrencyException.class, () -> engine.appendEvents(event("cart", 3, 4)));
+        assertThrows(ConcurrencyException.class,
+                     () -> engine.appendEvents(event("cart", 2, 5), event("cart", 2, 6)));
+
+        assertEquals(List.of("cart-0", "cart-1"), payloads(engine.readEvents("cart")));
+        assertEquals(List.of(), payloads(engine.readEvents("other")));
+        assertEquals(new GlobalSequenceTrackingToken(1), engine.createHeadToken());
+    }
+
+    @Test
+    void createsATokenBeforeTheFirstEventAtOrAfterTheGivenTime() {
+        engine = open();
+        engine.appendEvents(events("cart", 0, 10));
+
+        assertNull(engine.createTokenAt(START.minusSeconds(1)));
+        assertNull(engine.createTokenAt(START));
+        assertEquals(new GlobalSequenceTrackingToken(4), engine.createTokenAt(START.plusSeconds(5)));
+        assertEquals(new GlobalSequenceTrackingToken(4), engine.createTokenAt(START.plusMillis(4500)));
+        assertEquals(new GlobalSequenceTrackingToken(9), engine.createTokenAt(START.plusSeconds(60)));
+    }
+
+    private MappedEventStorageEngine open() {
+        return open(new SimpleMeterRegistry());
+    }
+
+    private MappedEventStorageEngine open(MeterRegistry meterRegistry) {
+        return MappedEventStorageEngine.builder()
+                                       .directory(directory)
+                                       .segmentSize(SEGMENT_SIZE)
+                                       .batchSize(4)
+                                       .eventSerializer(XStreamSerializer.defaultSerializer())
+                                       .snapshotSerializer(XStreamSerializer.defaultSerializer())
+                                       .meterRegistry(meterRegistry)
+                                       .build();
+    }
+
+    private static int eventBytes(MeterRegistry meterRegistry) {
+        return (int) meterRegistry.get("shoppingcart.eventstore.size").tag("content", "events").gauge().value();
+    }
+
+    private List<TrackedEventMessage<?>> read(TrackingToken trackingToken) {
+        try (Stream<? extends TrackedEventMessage<?>> events = engine.readEvents(trackingToken, false)) {
+            return events.collect(Collectors.toList());
+        }
+    }
+
+    private long segmentFiles() throws IOException {
+        try (Stream<Path> files = Files.list(directory.resolve("events"))) {
+            return files.count();
+        }
+    }
+
+    /*
+     * Stamped the given number of seconds after the start, so events appended in that order have increasing timestamps.
+     */
+    private static DomainEventMessage<String> event(String aggregateIdentifier, long sequenceNumber, int second) {
+        return new GenericDomainEventMessage<>("ShoppingCart", aggregateIdentifier, sequenceNumber,
+                                               aggregateIdentifier + "-" + sequenceNumber, Collections.emptyMap(),
+                                               UUID.randomUUID().toString(), START.plusSeconds(second));
+    }
+
+    private static List<DomainEventMessage<String>> events(String aggregateIdentifier, int from, int to) {
+        List<DomainEventMessage<String>> events = new ArrayList<>();
+        for (int i = from; i < to; i++) {
+            events.add(event(aggregateIdentifier, i, i));
+        }
+        return events;
+    }
+
+    private static List<Object> payloads(DomainEventStream events) {
+        return events.asStream().map(EventMessage::getPayload).collect(Collectors.toList());
+    }
+
+    private static List<Object> payloads(List<TrackedEventMessage<?>> events) {
+        return events.stream().map(EventMessage::getPayload).collect(Collectors.toList());
+    }
+}
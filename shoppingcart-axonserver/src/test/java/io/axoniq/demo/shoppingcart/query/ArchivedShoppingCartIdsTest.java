@@ -0,0 +1,127 @@
+package io.axoniq.demo.shoppingcart.query;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.SingleConnectionDataSource;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ArchivedShoppingCartIdsTest {
+
+    private SingleConnectionDataSource dataSource;
+    private JdbcTemplate jdbcTemplate;
+    private MeterRegistry meterRegistry;
+
+    @BeforeEach
+    void setUp() {
+        dataSource = new SingleConnectionDataSource("jdbc:h2:mem:archive", true);
+        jdbcTemplate = new JdbcTemplate(dataSource);
+        jdbcTemplate.execute("CREATE TABLE archived_shopping_cart (id VARCHAR(255) NOT NULL, customer VARCHAR(255), "
+                                     + "items CLOB, canceled_at TIMESTAMP, PRIMARY KEY (id))");
+        meterRegistry = new SimpleMeterRegistry();
+    }
+
+    @AfterEach
+    void tearDown() {
+        jdbcTemplate.execute("DROP TABLE archived_shopping_cart");
+        dataSource.destroy();
+    }
+
+    @Test
+    void tellsTheCartsInTheArchiveWhenLoaded() {
+        archive("cart-1");
+        archive("cart-2");
+
+        ArchivedShoppingCartIds archivedIds = load(1000, 0.01);
+
+        assertTrue(archivedIds.isArchived("cart-1"));
+        assertTrue(archivedIds.isArchived("cart-2"));
+        assertFalse(archivedIds.isArchived("cart-3"));
+    }
+
+    @Test
+    void tellsCartsArchivedLaterOnceTheirArchiveIsWritten() {
+        ArchivedShoppingCartIds archivedIds = load(1000, 0.01);
+
+        archivedIds.archived("cart-1");
+        assertFalse(archivedIds.isArchived("cart-1"), "the archive of the cart hasn't been written yet");
+        archive("cart-1");
+
+        assertTrue(archivedIds.isArchived("cart-1"));
+    }
+
+    @Test
+    void looksUpCartsTheFilterMayHoldOnlyOnceFoundInTheArchive() {
+        archive("cart-1");
+        ArchivedShoppingCartIds archivedIds = load(1000, 0.01);
+
+        archivedIds.isArchived("cart-1");
+        archivedIds.isArchived("cart-1");
+        archivedIds.archived("cart-2");
+        archivedIds.isArchived("cart-2");
+        archivedIds.isArchived("cart-2");
+
+        assertEquals(1, lookups("true"));
+        assertEquals(2, lookups("false"));
+    }
+
+    /*
+     * Far more carts than the filter was sized for make it answer "maybe" for nearly every id, which the lookups in the
+     * archive then answer correctly.
+     */
+    @Test
+    void staysCorrectWithMoreArchivedCartsThanExpected() {
+        for (int i = 0; i < 2000; i++) {
+            archive("cart-" + i);
+        }
+
+        ArchivedShoppingCartIds archivedIds = load(10, 0.01);
+
+        for (int i = 0; i < 2000; i++) {
+            assertTrue(archivedIds.isArchived("cart-" + i));
+        }
+        for (int i = 2000; i < 4000; i++) {
+            assertFalse(archivedIds.isArchived("cart-" + i));
+        }
+    }
+
+    @Test
+    void readsTheArchiveAgainWhenReloaded() {
+        ArchivedShoppingCartIds archivedIds = load(1000, 0.01);
+        archive("cart-1");
+
+        archivedIds.reload();
+
+        assertTrue(archivedIds.isArchived("cart-1"));
+    }
+
+    @Test
+    void rejectsNoExpectedCartsOrAFalsePositiveRateOutsideZeroAndOne() {
+        assertThrows(IllegalArgumentException.class,
+                     () -> new ArchivedShoppingCartIds(null, jdbcTemplate, meterRegistry, 1000, 1, 100));
+        assertThrows(IllegalArgumentException.class,
+                     () -> new ArchivedShoppingCartIds(null, jdbcTemplate, meterRegistry, 0, 0.01, 100));
+    }
+
+    private ArchivedShoppingCartIds load(long expectedCarts, double falsePositiveRate) {
+        ArchivedShoppingCartIds archivedIds =
+                new ArchivedShoppingCartIds(null, jdbcTemplate, meterRegistry, expectedCarts, falsePositiveRate, 100);
+        archivedIds.reload();
+        return archivedIds;
+    }
+
+    private void archive(String id) {
+        jdbcTemplate.update("INSERT INTO archived_shopping_cart (id, customer, items) VALUES (?, 'customer', '')", id);
+    }
+
+    private long lookups(String archived) {
+        return (long) meterRegistry.get("shoppingcart.archive.lookups").tag("archived", archived).counter().count();
+    }
+}
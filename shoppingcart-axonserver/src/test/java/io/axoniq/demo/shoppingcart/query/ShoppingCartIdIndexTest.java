@@ -0,0 +1,155 @@
+package io.axoniq.demo.shoppingcart.query;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.axonframework.messaging.unitofwork.DefaultUnitOfWork;
+import org.junit.jupiter.api.Test;
+
+import java.time.Instant;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+import java.util.stream.Collectors;
+
+import static org.axonframework.eventhandling.GenericEventMessage.asEventMessage;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class ShoppingCartIdIndexTest {
+
+    private static final Instant STARTED = Instant.ofEpochMilli(1000);
+    private static final Instant CANCELED = Instant.ofEpochMilli(2000);
+
+    private final ShoppingCartIdIndex index = new ShoppingCartIdIndex(
+            null, null, new ShoppingCartQueryCache(new SimpleMeterRegistry(), 10), new SimpleMeterRegistry(), null, 10
+    );
+
+    @Test
+    void countsTheIdsStartingWithAPrefix() {
+        add("a", "ab", "abc", "abd", "b");
+
+        assertEquals(5, index.count("").getCount());
+        assertEquals(4, index.count("a").getCount());
+        assertEquals(3, index.count("ab").getCount());
+        assertEquals(1, index.count("abc").getCount());
+        assertEquals(0, index.count("abcd").getCount());
+        assertEquals(0, index.count("c").getCount());
+    }
+
+    @Test
+    void keepsMaterializedCountsUpToDate() {
+        add("a1", "a2");
+        assertEquals(2, index.count("a").getCount());
+
+        add("a3");
+        remove("a1", "a2");
+
+        ShoppingCartIdIndex.PrefixCount count = index.count("a");
+        assertEquals(1, count.getCount());
+        assertEquals(CANCELED.toEpochMilli(), count.getLastEvent());
+    }
+
+    @Test
+    void pagesThroughTheIdsStartingWithAPrefixInOrder() {
+        add("b", "a3", "a1", "a10", "a2", "c");
+
+        assertEquals(List.of("a1", "a10", "a2", "a3"), index.page("a", null, 0, 10));
+        assertEquals(List.of("a10", "a2"), index.page("a", null, 1, 2));
+        assertEquals(List.of(), index.page("a", null, 4, 10));
+        assertEquals(List.of(), index.page("d", null, 0, 10));
+    }
+
+    @Test
+    void pagesOnFromTheIdBeforeThePage() {
+        add("a1", "a10", "a2", "a3", "b");
+
+        assertEquals(List.of("a10", "a2"), index.page("a", "a1", 0, 2));
+        assertEquals(List.of("a3"), index.page("a", "a1", 2, 2));
+        assertEquals(List.of("a3"), index.page("a", "a2", 0, 10));
+        assertEquals(List.of(), index.page("a", "a3", 0, 10));
+    }
+
+    @Test
+    void pagesOnFromAnIdWhichIsNotIndexed() {
+        add("a1", "a10", "a2", "a3");
+
+        assertEquals(List.of("a2", "a3"), index.page("a", "a11", 0, 10));
+        assertEquals(List.of("a1", "a10"), index.page("a", "a", 0, 2));
+        assertEquals(List.of("a1"), index.page("a", "0", 0, 1));
+        assertEquals(List.of(), index.page("a", "b", 0, 10));
+    }
+
+    @Test
+    void forgetsACartStartedAndCanceledInTheSameUnitOfWork() {
+        DefaultUnitOfWork.startAndGet(asEventMessage("batch")).execute(() -> {
+            index.add("a", STARTED);
+            index.remove("a", CANCELED);
+        });
+
+        assertEquals(0, index.count("").getCount());
+        assertEquals(List.of(), index.page("", null, 0, 10));
+    }
+
+    /*
+     * The nodes of removed ids are pruned: a prefix no id starts with anymore has last changed when the longest prefix
+     * of it with ids did, unless its count was materialized before.
+     */
+    @Test
+    void reportsTheLastChangeOfPrefixesWhoseIdsWereRemoved() {
+        add("a", "bc");
+        assertEquals(1, index.count("b").getCount());
+
+        remove("bc");
+
+        assertEquals(0, index.count("b").getCount());
+        assertEquals(CANCELED.toEpochMilli(), index.count("b").getLastEvent());
+        assertEquals(0, index.count("bc").getCount());
+        assertEquals(CANCELED.toEpochMilli(), index.count("bc").getLastEvent());
+        assertEquals(List.of("a"), index.page("", null, 0, 10));
+    }
+
+    @Test
+    void behavesLikeASortedSetUnderRandomChanges() {
+        Random random = new Random(42);
+        TreeSet<String> expected = new TreeSet<>();
+
+        for (int i = 0; i < 2_000; i++) {
+            String id = Integer.toString(random.nextInt(500), 4);
+            if (random.nextBoolean()) {
+                add(id);
+                expected.add(id);
+            } else {
+                remove(id);
+                expected.remove(id);
+            }
+        }
+
+        for (String prefix : List.of("", "1", "13", "2", "321", "4")) {
+            List<String> ids = expected.stream().filter(id -> id.startsWith(prefix)).collect(Collectors.toList());
+            assertEquals(ids.size(), index.count(prefix).getCount(), prefix);
+            for (int offset = 0; offset <= ids.size(); offset += 7) {
+                assertEquals(ids.subList(offset, Math.min(offset + 5, ids.size())),
+                             index.page(prefix, null, offset, 5), prefix + " from " + offset);
+            }
+            for (String afterId : List.of("", "1", "13", "2", "22", "3333")) {
+                List<String> after = ids.stream().filter(id -> id.compareTo(afterId) > 0).collect(Collectors.toList());
+                assertEquals(after.subList(0, Math.min(5, after.size())), index.page(prefix, afterId, 0, 5),
+                             prefix + " after " + afterId);
+            }
+        }
+    }
+
+    private void add(String... ids) {
+        DefaultUnitOfWork.startAndGet(asEventMessage("started")).execute(() -> {
+            for (String id : ids) {
+                index.add(id, STARTED);
+            }
+        });
+    }
+
+    private void remove(String... ids) {
+        DefaultUnitOfWork.startAndGet(asEventMessage("canceled")).execute(() -> {
+            for (String id : ids) {
+                index.remove(id, CANCELED);
+            }
+        });
+    }
+}
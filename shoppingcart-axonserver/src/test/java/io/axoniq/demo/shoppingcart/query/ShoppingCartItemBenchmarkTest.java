@@ -0,0 +1,137 @@
+package io.axoniq.demo.shoppingcart.query;
+
+import com.google.common.base.Joiner;
+import com.google.common.base.Splitter;
+import io.axoniq.demo.shoppingcart.Benchmark;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * Adds an article to and removes it from carts of increasing size, in an in-memory H2 database, once in the item table
+ * the summaries keep their items in, and once in the comma joined items column they replaced: there, every event reads
+ * the items of the cart, splits them, and writes them back joined. The statements are those the projection and the
+ * entity manager run for an event, without the caches and batching around them, so only the cost of the item model
+ * itself is compared.
+ */
+@EnabledIfSystemProperty(named = "benchmarks", matches = "true")
+class ShoppingCartItemBenchmarkTest {
+
+    private static final int[] CART_SIZES = {10, 100, 1_000, 5_000};
+
+    private Connection connection;
+
+    @BeforeEach
+    void setUp() throws SQLException {
+        connection = DriverManager.getConnection("jdbc:h2:mem:items");
+        try (Statement statement = connection.createStatement()) {
+            statement.execute("CREATE TABLE shopping_cart_summary (id VARCHAR(255) NOT NULL, customer VARCHAR(255), "
+                                      + "items CLOB, item_count INTEGER DEFAULT 0 NOT NULL, PRIMARY KEY (id))");
+            statement.execute("CREATE TABLE shopping_cart_item (article VARCHAR(255) NOT NULL, "
+                                      + "cart_id VARCHAR(255) NOT NULL, sequence_number BIGINT NOT NULL, "
+                                      + "PRIMARY KEY (article, cart_id))");
+        }
+    }
+
+    @AfterEach
+    void tearDown() throws SQLException {
+        connection.close();
+    }
+
+    @Test
+    void measuresPerEventCostAgainstCartSize() throws SQLException {
+        for (int size : CART_SIZES) {
+            String cartId = "cart-" + size;
+            fill(cartId, size);
+            long itemTable = Benchmark.medianNanos(50, 500, () -> {
+                insertItem(cartId, "extra");
+                deleteItem(cartId, "extra");
+            });
+            long joinedColumn = Benchmark.medianNanos(50, 500, () -> {
+                addToColumn(cartId, "extra");
+                removeFromColumn(cartId, "extra");
+            });
+            Benchmark.report("%5d items: %8.1f µs/event in the item table, %8.1f µs/event in the joined column",
+                             size, itemTable / 2e3, joinedColumn / 2e3);
+        }
+    }
+
+    private void fill(String cartId, int size) throws SQLException {
+        List<String> articles = new ArrayList<>();
+        try (PreparedStatement insert = connection.prepareStatement(
+                "INSERT INTO shopping_cart_item (article, cart_id, sequence_number) VALUES (?, ?, ?)")) {
+            for (int i = 0; i < size; i++) {
+                articles.add("article-" + i);
+                insert.setString(1, "article-" + i);
+                insert.setString(2, cartId);
+                insert.setLong(3, i + 1);
+                insert.addBatch();
+            }
+            insert.executeBatch();
+        }
+        try (PreparedStatement insert = connection.prepareStatement(
+                "INSERT INTO shopping_cart_summary (id, customer, items, item_count) VALUES (?, ?, ?, ?)")) {
+            insert.setString(1, cartId);
+            insert.setString(2, "customer");
+            insert.setString(3, Joiner.on(",").join(articles));
+            insert.setInt(4, size);
+            insert.executeUpdate();
+        }
+    }
+
+    private void insertItem(String cartId, String article) {
+        update("INSERT INTO shopping_cart_item (article, cart_id, sequence_number) VALUES (?, ?, 0)", article, cartId);
+        update("UPDATE shopping_cart_summary SET item_count = item_count + 1 WHERE id = ?", cartId);
+    }
+
+    private void deleteItem(String cartId, String article) {
+        update("DELETE FROM shopping_cart_item WHERE cart_id = ? AND article = ?", cartId, article);
+        update("UPDATE shopping_cart_summary SET item_count = item_count - 1 WHERE id = ?", cartId);
+    }
+
+    private void addToColumn(String cartId, String article) {
+        List<String> items = new ArrayList<>(Splitter.on(",").trimResults().splitToList(readItems(cartId)));
+        items.add(article);
+        update("UPDATE shopping_cart_summary SET items = ? WHERE id = ?", Joiner.on(",").join(items), cartId);
+    }
+
+    private void removeFromColumn(String cartId, String article) {
+        List<String> items = new ArrayList<>(Splitter.on(",").trimResults().splitToList(readItems(cartId)));
+        items.remove(article);
+        update("UPDATE shopping_cart_summary SET items = ? WHERE id = ?", Joiner.on(",").join(items), cartId);
+    }
+
+    private String readItems(String cartId) {
+        try (PreparedStatement select = connection.prepareStatement(
+                "SELECT items FROM shopping_cart_summary WHERE id = ?")) {
+            select.setString(1, cartId);
+            try (ResultSet row = select.executeQuery()) {
+                row.next();
+                return row.getString(1);
+            }
+        } catch (SQLException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private void update(String sql, Object... parameters) {
+        try (PreparedStatement statement = connection.prepareStatement(sql)) {
+            for (int i = 0; i < parameters.length; i++) {
+                statement.setObject(i + 1, parameters[i]);
+            }
+            statement.executeUpdate();
+        } catch (SQLException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package io.axoniq.demo.shoppingcart.subscription;
+
+import io.axoniq.demo.shoppingcart.Benchmark;
+import org.axonframework.messaging.responsetypes.ResponseTypes;
+import org.axonframework.queryhandling.GenericSubscriptionQueryMessage;
+import org.axonframework.queryhandling.QueryUpdateEmitter;
+import org.axonframework.queryhandling.SimpleQueryUpdateEmitter;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/*
+ * Emits updates about carts to a growing number of subscriptions, each watching carts of a prefix of its own, once
+ * looked up by the key of the update in the prefix index, and once by testing a filter against every subscription, as
+ * Axon's own emitter does. Every update matches a single subscription.
+ */
+@EnabledIfSystemProperty(named = "benchmarks", matches = "true")
+class PrefixIndexedQueryUpdateEmitterBenchmarkTest {
+
+    private static final int[] SUBSCRIPTION_COUNTS = {10, 100, 1_000, 10_000};
+    private static final int UPDATES = 10_000;
+
+    @Test
+    void measuresPrefixLookupAgainstScanAsSubscriptionsGrow() {
+        for (int subscriptions : SUBSCRIPTION_COUNTS) {
+            PrefixIndexedQueryUpdateEmitter indexed =
+                    PrefixIndexedQueryUpdateEmitter.builder()
+                                                   .indexBy(PrefixQuery.class, PrefixQuery::getPrefix)
+                                                   .build();
+            SimpleQueryUpdateEmitter scanned = SimpleQueryUpdateEmitter.builder().build();
+            try {
+                AtomicLong indexedUpdates = subscribe(indexed, subscriptions);
+                AtomicLong scannedUpdates = subscribe(scanned, subscriptions);
+
+                double lookups = Benchmark.perSecond(2, UPDATES, () -> {
+                    for (int i = 0; i < UPDATES; i++) {
+                        indexed.emit(PrefixQuery.class, cartId(i, subscriptions), "changed");
+                    }
+                });
+                double scans = Benchmark.perSecond(2, UPDATES, () -> {
+                    for (int i = 0; i < UPDATES; i++) {
+                        String cartId = cartId(i, subscriptions);
+                        scanned.emit(PrefixQuery.class, query -> cartId.startsWith(query.getPrefix()), "changed");
+                    }
+                });
+                assertEquals(3L * UPDATES, indexedUpdates.get());
+                assertEquals(3L * UPDATES, scannedUpdates.get());
+                Benchmark.report("%6d subscriptions: %10.0f updates/s by prefix lookup, %10.0f updates/s by scan",
+                                 subscriptions, lookups, scans);
+            } finally {
+                indexed.shutDown();
+            }
+        }
+    }
+
+    /*
+     * Subscribes to the carts of every prefix, returning the number of updates received by all subscriptions.
+     */
+    private static AtomicLong subscribe(QueryUpdateEmitter emitter, int subscriptions) {
+        AtomicLong updates = new AtomicLong();
+        for (int i = 0; i < subscriptions; i++) {
+            emitter.registerUpdateHandler(
+                    new GenericSubscriptionQueryMessage<>(new PrefixQuery(prefix(i)),
+                                                          ResponseTypes.instanceOf(String.class),
+                                                          ResponseTypes.instanceOf(String.class)),
+                    16
+            ).getUpdates().subscribe(update -> updates.incrementAndGet());
+        }
+        return updates;
+    }
+
+    private static String prefix(int subscription) {
+        return String.format("%04x", subscription);
+    }
+
+    private static String cartId(int update, int subscriptions) {
+        return prefix(update % subscriptions) + "-cart-" + update;
+    }
+
+    private static class PrefixQuery {
+
+        private final String prefix;
+
+        private PrefixQuery(String prefix) {
+            this.prefix = prefix;
+        }
+
+        private String getPrefix() {
+            return prefix;
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package io.axoniq.demo.shoppingcart.subscription;
+
+import org.axonframework.messaging.responsetypes.ResponseTypes;
+import org.axonframework.messaging.unitofwork.DefaultUnitOfWork;
+import org.axonframework.queryhandling.GenericSubscriptionQueryMessage;
+import org.axonframework.queryhandling.SubscriptionQueryUpdateMessage;
+import org.axonframework.queryhandling.UpdateHandlerRegistration;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.axonframework.eventhandling.GenericEventMessage.asEventMessage;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/*
+ * Without a coalesce window, updates emitted outside a unit of work are sent right away.
+ */
+class PrefixIndexedQueryUpdateEmitterTest {
+
+    private final PrefixIndexedQueryUpdateEmitter emitter =
+            PrefixIndexedQueryUpdateEmitter.builder()
+                                           .indexBy(PrefixQuery.class, PrefixQuery::getPrefix)
+                                           .build();
+
+    @AfterEach
+    void shutDown() {
+        emitter.shutDown();
+    }
+
+    @Test
+    void sendsAKeyedUpdateToTheSubscriptionsWhosePrefixTheKeyStartsWith() {
+        Subscription all = subscribe(new PrefixQuery(""));
+        Subscription a = subscribe(new PrefixQuery("a"));
+        Subscription ab = subscribe(new PrefixQuery("ab"));
+        Subscription abcd = subscribe(new PrefixQuery("abcd"));
+        Subscription b = subscribe(new PrefixQuery("b"));
+
+        emitter.emit(PrefixQuery.class, "abc", "abc changed");
+        emitter.emit(PrefixQuery.class, "b1", "b1 changed");
+
+        assertEquals(List.of("abc changed", "b1 changed"), all.updates);
+        assertEquals(List.of("abc changed"), a.updates);
+        assertEquals(List.of("abc changed"), ab.updates);
+        assertEquals(List.of(), abcd.updates);
+        assertEquals(List.of("b1 changed"), b.updates);
+    }
+
+    @Test
+    void sendsAKeyedUpdateToEverySubscriptionOfTheSamePrefix() {
+        Subscription first = subscribe(new PrefixQuery("a"));
+        Subscription second = subscribe(new PrefixQuery("a"));
+
+        emitter.emit(PrefixQuery.class, "a1", "a1 changed");
+
+        assertEquals(List.of("a1 changed"), first.updates);
+        assertEquals(List.of("a1 changed"), second.updates);
+    }
+
+    @Test
+    void stopsSendingUpdatesToACanceledSubscription() {
+        Subscription canceled = subscribe(new PrefixQuery("a"));
+        Subscription kept = subscribe(new PrefixQuery("a"));
+
+        canceled.registration.getRegistration().cancel();
+        emitter.emit(PrefixQuery.class, "a1", "a1 changed");
+
+        assertEquals(List.of(), canceled.updates);
+        assertEquals(List.of("a1 changed"), kept.updates);
+        assertEquals(1, emitter.activeSubscriptions().size());
+    }
+
+    @Test
+    void coalescesTheUpdatesForTheSameKeyEmittedInAUnitOfWork() {
+        Subscription subscription = subscribe(new PrefixQuery("a"));
+
+        DefaultUnitOfWork.startAndGet(asEventMessage("batch")).execute(() -> {
+            emitter.emit(PrefixQuery.class, "a1", "first");
+            emitter.emit(PrefixQuery.class, "a2", "other");
+            emitter.emit(PrefixQuery.class, "a1", "second");
+            emitter.emit(PrefixQuery.class, "a3", "first", (earlier, later) -> earlier + "+" + later);
+            emitter.emit(PrefixQuery.class, "a3", "second", (earlier, later) -> earlier + "+" + later);
+            assertEquals(List.of(), subscription.updates);
+        });
+
+        assertEquals(List.of("second", "other", "first+second"), subscription.updates);
+    }
+
+    @Test
+    void sendsUpdatesEmittedWithAFilterToTheSubscriptionsItMatches() {
+        Subscription indexed = subscribe(new PrefixQuery("a"));
+        Subscription other = subscribe("not indexed");
+
+        emitter.emit(query -> query.getPayload() instanceof String, "changed");
+
+        assertEquals(List.of(), indexed.updates);
+        assertEquals(List.of("changed"), other.updates);
+    }
+
+    @Test
+    void refusesKeyedUpdatesForQueryTypesWhichAreNotIndexed() {
+        assertThrows(IllegalArgumentException.class, () -> emitter.emit(String.class, "a1", "a1 changed"));
+    }
+
+    private Subscription subscribe(Object query) {
+        UpdateHandlerRegistration<Object> registration = emitter.registerUpdateHandler(
+                new GenericSubscriptionQueryMessage<>(query, ResponseTypes.instanceOf(String.class),
+                                                      ResponseTypes.instanceOf(String.class)),
+                16
+        );
+        Subscription subscription = new Subscription(registration);
+        registration.getUpdates().map(SubscriptionQueryUpdateMessage::getPayload).subscribe(subscription.updates::add);
+        return subscription;
+    }
+
+    private static class Subscription {
+
+        private final UpdateHandlerRegistration<Object> registration;
+        private final List<Object> updates = new CopyOnWriteArrayList<>();
+
+        private Subscription(UpdateHandlerRegistration<Object> registration) {
+            this.registration = registration;
+        }
+    }
+
+    private static class PrefixQuery {
+
+        private final String prefix;
+
+        private PrefixQuery(String prefix) {
+            this.prefix = prefix;
+        }
+
+        private String getPrefix() {
+            return prefix;
+        }
+    }
+}